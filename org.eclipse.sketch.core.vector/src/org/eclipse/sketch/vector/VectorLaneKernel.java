@@ -0,0 +1,226 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Ugo Sangiorgi and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *  Ugo Sangiorgi <ugo.sangiorgi@gmail.com> - Initial contribution
+ *******************************************************************************/
+package org.eclipse.sketch.vector;
+
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+import org.eclipse.sketch.Sketch.Dna;
+import org.eclipse.sketch.chain.BitParallelLevenshtein;
+import org.eclipse.sketch.chain.LaneKernel;
+
+/**
+ * The {@link LaneKernel} written with the Vector API, in lanes of short integers: as many
+ * lanes as the widest vectors of the processor hold, 8 with 128 bits vectors, 16 with 256
+ * bits vectors. It is found by {@link LaneKernel#create()}.
+ * <ul>
+ * <li>{@link #distances(Dna, Dna[], int, int, int[])} keeps one lane per text: each cell of
+ * the matrix is computed for all the texts at once;</li>
+ * <li>{@link #distance(Dna, Dna)} fills the matrix one anti-diagonal at a time, as the cells
+ * of an anti-diagonal only depend on the two previous ones, a vector of cells at a time.</li>
+ * </ul>
+ * The distances are counted in shorts: the words longer than {@link #LONGEST} are compared
+ * with the {@link BitParallelLevenshtein} kernel.
+ */
+public class VectorLaneKernel extends LaneKernel
+{
+	private static final VectorSpecies<Short> SPECIES = ShortVector.SPECIES_PREFERRED;
+	private static final int LANES = SPECIES.length();
+	/** length of the longest word compared in lanes */
+	public static final int LONGEST = Short.MAX_VALUE - 1;
+
+	//the column of each lane, cell i of lane l at i*LANES + l
+	private short[] column = new short[0];
+	//the symbol of each lane at position j of the texts, at j*LANES + l; -1 past its end
+	private short[] symbols = new short[0];
+	private final short[] lengths = new short[LANES];
+	private final short[] ends = new short[LANES];
+	private byte[] bytes = new byte[0];
+	private short[] query = new short[0];
+	//the second word reversed, and 3 anti-diagonals, for distance()
+	private short[] reversed = new short[0];
+	private short[] before = new short[0];
+	private short[] previous = new short[0];
+	private short[] current = new short[0];
+
+	@Override
+	public int lanes()
+	{
+		return LANES;
+	}
+
+	/**
+	 * @return the symbols of the DNA, in the working memory of the kernel
+	 */
+	private byte[] symbols(Dna dna)
+	{
+		if (bytes.length < dna.length())
+			bytes = new byte[dna.length()];
+		dna.getSymbols(bytes);
+		return bytes;
+	}
+
+	@Override
+	public int distance(Dna s, Dna t)
+	{
+		int m = s.length();
+		int n = t.length();
+		if (m == 0)
+			return n;
+		if (n == 0)
+			return m;
+		if (m > LONGEST || n > LONGEST)
+			return BitParallelLevenshtein.distance(s, t);
+
+		if (query.length < m)
+			query = new short[m];
+		if (reversed.length < n)
+			reversed = new short[n];
+		if (current.length < m+1)
+		{
+			before = new short[m+1];
+			previous = new short[m+1];
+			current = new short[m+1];
+		}
+		byte[] symbols = symbols(s);
+		for (int i=0; i!=m; ++i)
+			query[i] = symbols[i];
+		symbols = symbols(t);
+		for (int j=0; j!=n; ++j)
+			reversed[n-1-j] = symbols[j];
+
+		//cell i of a diagonal d is D[i][d-i], the symbol of t it reads is reversed[n-d+i]
+		short[] before = this.before;
+		short[] previous = this.previous;
+		short[] current = this.current;
+		previous[0] = 1;
+		previous[1] = 1;
+		before[0] = 0;
+		for (int d=2; d<=m+n; ++d)
+		{
+			int from = Math.max(1, d-n);
+			int to = Math.min(m, d-1);
+			int i = from;
+			for (int bound=from+SPECIES.loopBound(to-from+1); i<bound; i+=LANES)
+			{
+				ShortVector a = ShortVector.fromArray(SPECIES, query, i-1);
+				ShortVector b = ShortVector.fromArray(SPECIES, reversed, n-d+i);
+				ShortVector v = ShortVector.fromArray(SPECIES, before, i-1).add((short)1, a.compare(VectorOperators.NE, b));
+				ShortVector up = ShortVector.fromArray(SPECIES, previous, i-1).add((short)1);
+				ShortVector left = ShortVector.fromArray(SPECIES, previous, i).add((short)1);
+				v.min(up).min(left).intoArray(current, i);
+			}
+			for (; i<=to; ++i)
+			{
+				int v = before[i-1] + (query[i-1] == reversed[n-d+i] ? 0 : 1);
+				int up = previous[i-1] + 1;
+				int left = previous[i] + 1;
+				if (up < v)
+					v = up;
+				if (left < v)
+					v = left;
+				current[i] = (short)v;
+			}
+			if (d <= n)
+				current[0] = (short)d;
+			if (d <= m)
+				current[d] = (short)d;
+
+			short[] swap = before;
+			before = previous;
+			previous = current;
+			current = swap;
+		}
+		return previous[m];
+	}
+
+	@Override
+	public void distances(Dna query, Dna[] texts, int from, int count, int[] distances)
+	{
+		if (count > LANES)
+			throw new IllegalArgumentException("At most "+LANES+" texts can be compared at once");
+
+		int m = query.length();
+		int longest = 0;
+		for (int l=0; l!=count; ++l)
+			longest = Math.max(longest, texts[from+l].length());
+		if (m > LONGEST || longest > LONGEST)
+		{
+			for (int l=0; l!=count; ++l)
+				distances[l] = BitParallelLevenshtein.distance(query, texts[from+l]);
+			return;
+		}
+
+		if (this.query.length < m)
+			this.query = new short[m];
+		byte[] bytes = symbols(query);
+		for (int i=0; i!=m; ++i)
+			this.query[i] = bytes[i];
+		if (column.length < (m+1)*LANES)
+			column = new short[(m+1)*LANES];
+		if (symbols.length < longest*LANES)
+			symbols = new short[longest*LANES];
+
+		//the texts are laid out across the lanes, the lanes without text are empty
+		for (int l=0; l!=LANES; ++l)
+		{
+			int n = 0;
+			if (l < count)
+			{
+				n = texts[from+l].length();
+				bytes = symbols(texts[from+l]);
+				for (int j=0; j!=n; ++j)
+					symbols[j*LANES + l] = bytes[j];
+			}
+			for (int j=n; j<longest; ++j)
+				symbols[j*LANES + l] = -1;
+			lengths[l] = (short)n;
+		}
+		lanes(m, longest);
+		for (int l=0; l!=count; ++l)
+			distances[l] = ends[l];
+	}
+
+	private void lanes(int m, int longest)
+	{
+		final short[] column = this.column;
+		final short[] query = this.query;
+
+		for (int i=0; i<=m; ++i)
+			ShortVector.broadcast(SPECIES, (short)i).intoArray(column, i*LANES);
+
+		//the distance of the empty texts is the length of the query
+		ShortVector lengths = ShortVector.fromArray(SPECIES, this.lengths, 0);
+		ShortVector ends = ShortVector.broadcast(SPECIES, (short)m);
+		for (int j=0; j!=longest; ++j)
+		{
+			ShortVector symbols = ShortVector.fromArray(SPECIES, this.symbols, j*LANES);
+			ShortVector diagonal = ShortVector.fromArray(SPECIES, column, 0);
+			ShortVector above = ShortVector.broadcast(SPECIES, (short)(j+1));
+			above.intoArray(column, 0);
+
+			for (int i=1; i<=m; ++i)
+			{
+				ShortVector left = ShortVector.fromArray(SPECIES, column, i*LANES);
+				ShortVector v = diagonal.add((short)1, symbols.compare(VectorOperators.NE, query[i-1]));
+				v = v.min(left.add((short)1)).min(above.add((short)1));
+				v.intoArray(column, i*LANES);
+				diagonal = left;
+				above = v;
+			}
+
+			//the lanes whose text ends here keep their distance
+			ends = ends.blend(above, lengths.compare(VectorOperators.EQ, (short)(j+1)));
+		}
+		ends.intoArray(this.ends, 0);
+	}
+}
@@ -10,6 +10,8 @@
  *******************************************************************************/
 package org.eclipse.sketch;
 
+import java.util.concurrent.TimeUnit;
+
 import org.eclipse.core.runtime.Platform;
 import org.eclipse.ui.plugin.AbstractUIPlugin;
 import org.osgi.framework.BundleContext;
@@ -24,6 +26,9 @@ public class Activator extends AbstractUIPlugin {
 
 	// The shared instance
 	private static Activator plugin;
+
+	// Seconds waited for the sketch bank to be written when the plug-in stops
+	private static final long FLUSH_TIMEOUT = 5;
 	
 	/**
 	 * The constructor
@@ -38,6 +43,10 @@ public class Activator extends AbstractUIPlugin {
 	public void start(BundleContext context) throws Exception {
 		super.start(context);
 		plugin = this;
+		//starts reading the sketch bank in the background, so that neither the first
+		//SketchTool nor the first sketch wait for the disk; the workspace is only asked for
+		//the location of the bank from there, the plug-in does not wait for it either
+		SketchBank.getInstance();
 	}
 
 	/*
@@ -45,6 +54,12 @@ public class Activator extends AbstractUIPlugin {
 	 * @see org.eclipse.ui.plugin.AbstractUIPlugin#stop(org.osgi.framework.BundleContext)
 	 */
 	public void stop(BundleContext context) throws Exception {
+		//the bank is written in the background, wait for the last changes
+		try {
+			SketchBank.getInstance().flush().get(FLUSH_TIMEOUT, TimeUnit.SECONDS);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
 		plugin = null;
 		super.stop(context);
 	}
@@ -0,0 +1,243 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Ugo Sangiorgi and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *  Ugo Sangiorgi <ugo.sangiorgi@gmail.com> - Initial contribution
+ *******************************************************************************/
+package org.eclipse.sketch;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+
+import org.eclipse.sketch.Sketch.Dna;
+
+/**
+ * The changes made to the SketchBank since its last snapshot, appended to a file one record
+ * per line, so that teaching a sketch writes a few bytes instead of the whole bank:
+ * <ul>
+ * <li><code>I&lt;tab&gt;type</code>: the type was inserted, or its sketches removed;</li>
+ * <li><code>A&lt;tab&gt;type&lt;tab&gt;dna</code>: a sketch was added to the type.</li>
+ * </ul>
+ * The records are appended by batches, each one forced to the disk before the next one is
+ * written (see {@link BankWriter}). A record cut by a crash is ignored, and removed, when
+ * the journal is replayed.
+ *
+ * The journal is replayed on top of the snapshot, and emptied once a new snapshot is written.
+ * The bank is changed through the SketchBank only: the journal is public to be tested.
+ */
+public class BankJournal
+{
+	private static final String ENCODING = "UTF-8";
+
+	/**
+	 * Receives the records of the journal
+	 */
+	public interface Replay
+	{
+		void insert(String type);
+
+		void add(String type, Dna dna);
+	}
+
+	private final File file;
+	private RandomAccessFile out;
+	//end of the last record read or written
+	private long position;
+	//records in the journal
+	private int records;
+
+	/**
+	 * @param file the journal, created on the first record
+	 */
+	public BankJournal(File file)
+	{
+		this.file = file;
+	}
+
+	/**
+	 * @return the number of records since the last snapshot
+	 */
+	public synchronized int getRecords()
+	{
+		return records;
+	}
+
+	/**
+	 * @return the record of the insertion of a type
+	 */
+	public static String insertRecord(String type)
+	{
+		return "I\t"+escape(type)+"\n";
+	}
+
+	/**
+	 * @return the record of the addition of a sketch to a type
+	 */
+	public static String addRecord(String type, Dna dna)
+	{
+		return "A\t"+escape(type)+"\t"+dna+"\n";
+	}
+
+	/**
+	 * Appends records, and forces them to the disk
+	 * @param batch the records, one per line
+	 * @param count the number of records
+	 */
+	public synchronized void append(String batch, int count)
+	{
+		try
+		{
+			if (out == null)
+				out = new RandomAccessFile(file, "rw");
+			out.seek(position);
+			out.write(batch.getBytes(ENCODING));
+			out.getFD().sync();
+			position = out.getFilePointer();
+			records += count;
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Empties the journal, once the snapshot holds all its records
+	 */
+	public synchronized void truncate()
+	{
+		try
+		{
+			if (out == null)
+				out = new RandomAccessFile(file, "rw");
+			out.setLength(0);
+			out.getFD().sync();
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+		position = 0;
+		records = 0;
+	}
+
+	/**
+	 * Replays the records appended since the journal was last read or written
+	 * @param replay
+	 * @param all true to replay the journal from its start, over a snapshot just loaded
+	 */
+	public synchronized void replay(Replay replay, boolean all)
+	{
+		if (all)
+		{
+			position = 0;
+			records = 0;
+		}
+		if (!file.exists())
+		{
+			position = 0;
+			return;
+		}
+
+		byte[] bytes;
+		try
+		{
+			RandomAccessFile in = new RandomAccessFile(file, "r");
+			try
+			{
+				if (in.length() < position)
+				{
+					//emptied by someone else, whose snapshot was not loaded
+					position = 0;
+					records = 0;
+				}
+				bytes = new byte[(int)(in.length() - position)];
+				in.seek(position);
+				in.readFully(bytes);
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			return;
+		}
+
+		int start = 0;
+		for (int end=0; end!=bytes.length; ++end)
+		{
+			if (bytes[end] != '\n')
+				continue;
+			try
+			{
+				String[] fields = new String(bytes, start, end-start, ENCODING).split("\t", -1);
+				if (fields.length == 2 && fields[0].equals("I"))
+					replay.insert(unescape(fields[1]));
+				else if (fields.length == 3 && fields[0].equals("A"))
+					replay.add(unescape(fields[1]), new Dna(fields[2]));
+				else
+					System.err.println("Ignoring a journal record that is not understood: "+new String(bytes, start, end-start, ENCODING));
+			}
+			catch (UnsupportedEncodingException e)
+			{
+				e.printStackTrace();
+			}
+			catch (IllegalArgumentException e)
+			{
+				System.err.println("Ignoring a sketch that is not a DNA in the journal");
+			}
+			records++;
+			start = end+1;
+		}
+		position += start;
+
+		if (start != bytes.length)
+		{
+			//the last record was cut by a crash
+			System.err.println("Ignoring the incomplete last record of the journal");
+			try
+			{
+				if (out == null)
+					out = new RandomAccessFile(file, "rw");
+				out.setLength(position);
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private static String escape(String type)
+	{
+		return type.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n");
+	}
+
+	private static String unescape(String type)
+	{
+		StringBuilder s = new StringBuilder(type.length());
+		for (int i=0; i!=type.length(); ++i)
+		{
+			char c = type.charAt(i);
+			if (c == '\\' && i+1 != type.length())
+			{
+				c = type.charAt(++i);
+				if (c == 't')
+					c = '\t';
+				else if (c == 'n')
+					c = '\n';
+			}
+			s.append(c);
+		}
+		return s.toString();
+	}
+}
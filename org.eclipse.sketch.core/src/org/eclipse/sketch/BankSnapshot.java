@@ -0,0 +1,593 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Ugo Sangiorgi and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *  Ugo Sangiorgi <ugo.sangiorgi@gmail.com> - Initial contribution
+ *******************************************************************************/
+package org.eclipse.sketch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.eclipse.gmf.runtime.emf.type.core.IElementType;
+import org.eclipse.sketch.Sketch.Dna;
+import org.eclipse.sketch.chain.BitParallelLevenshtein;
+import org.eclipse.sketch.util.BKTree;
+import org.eclipse.sketch.util.DnaClusters;
+import org.eclipse.sketch.util.DnaTrie;
+import org.eclipse.sketch.util.MinHashIndex;
+
+/**
+ * The SketchBank at a given version, never modified once published: each change to the bank
+ * publishes a new snapshot through a volatile reference (see {@link SketchBank#getSnapshot()}),
+ * so a recognizer reading a snapshot needs no lock and sees the types and sketches of a single
+ * version, whatever is taught meanwhile.
+ *
+ * The types untouched by a change share their sketches with the previous snapshot. The
+ * search structures of a type (edit distance index, prefix tree, locality sensitive index,
+ * clusters) are built from its sketches the first time they are asked for; when sketches
+ * are only added to a type, the structures already built for it are copied, sharing most
+ * of their nodes with the previous snapshot, and the new sketches added to them. The types read
+ * from a {@link MappedBank} keep their words in the mapping, the sketches taught next being
+ * added after them, and only make them into sketches and templates when those are asked for.
+ */
+public class BankSnapshot
+{
+	static final BKTree.Metric<Dna> EDIT_DISTANCE = new BKTree.Metric<Dna>() {
+		public int distance(Dna a, Dna b) {
+			return BitParallelLevenshtein.distance(a, b);
+		}
+	};
+
+	/**
+	 * The sketches of a type, and the structures built from them
+	 */
+	private static class Entry
+	{
+		//the words in the mapped bank, null for a type not read from one
+		final MappedBank.Words words;
+		//the sketches added after the words, all the sketches of a type not mapped
+		final List<Dna> added;
+		final List<SketchTemplate> addedTemplates;
+		//the words made into sketches and templates, shared with the entries appended to this one
+		private List<Dna> wordSketches;
+		private List<SketchTemplate> wordTemplates;
+		private List<Dna> sketches;
+		private List<SketchTemplate> templates;
+		private BKTree<Dna> index;
+		private DnaTrie trie;
+		private MinHashIndex hashes;
+		private DnaClusters clusters;
+
+		Entry(MappedBank.Words words, ArrayList<Dna> added, ArrayList<SketchTemplate> addedTemplates)
+		{
+			this.words = words;
+			this.added = Collections.unmodifiableList(added);
+			this.addedTemplates = Collections.unmodifiableList(addedTemplates);
+			if (words == null)
+			{
+				sketches = this.added;
+				templates = this.addedTemplates;
+			}
+		}
+
+		Entry(MappedBank.Words words)
+		{
+			this(words, new ArrayList<Dna>(), new ArrayList<SketchTemplate>());
+		}
+
+		int size()
+		{
+			return (words == null ? 0 : words.size()) + added.size();
+		}
+
+		synchronized List<Dna> getSketches()
+		{
+			if (sketches == null)
+			{
+				if (wordSketches == null)
+				{
+					ArrayList<Dna> list = new ArrayList<Dna>(words.size());
+					for (int i=0; i!=words.size(); ++i)
+						list.add(words.getDna(i));
+					wordSketches = Collections.unmodifiableList(list);
+				}
+				sketches = concat(wordSketches, added);
+			}
+			return sketches;
+		}
+
+		synchronized List<SketchTemplate> getTemplates()
+		{
+			if (templates == null)
+			{
+				if (wordTemplates == null)
+				{
+					ArrayList<SketchTemplate> list = new ArrayList<SketchTemplate>(words.size());
+					for (Dna dna : getSketches().subList(0, words.size()))
+						list.add(new SketchTemplate(dna));
+					wordTemplates = Collections.unmodifiableList(list);
+				}
+				templates = concat(wordTemplates, addedTemplates);
+			}
+			return templates;
+		}
+
+		private static <T> List<T> concat(List<T> words, List<T> added)
+		{
+			if (added.isEmpty())
+				return words;
+			ArrayList<T> list = new ArrayList<T>(words.size() + added.size());
+			list.addAll(words);
+			list.addAll(added);
+			return Collections.unmodifiableList(list);
+		}
+
+		synchronized BKTree<Dna> getIndex()
+		{
+			if (index == null)
+			{
+				index = new BKTree<Dna>(EDIT_DISTANCE);
+				for (Dna dna : getSketches())
+					index.add(dna);
+			}
+			return index;
+		}
+
+		synchronized DnaTrie getTrie()
+		{
+			if (trie == null)
+			{
+				trie = new DnaTrie();
+				for (Dna dna : getSketches())
+					trie.add(dna);
+			}
+			return trie;
+		}
+
+		synchronized MinHashIndex getHashIndex()
+		{
+			if (hashes == null)
+			{
+				hashes = new MinHashIndex();
+				for (Dna dna : getSketches())
+					hashes.add(dna);
+			}
+			return hashes;
+		}
+
+		synchronized DnaClusters getClusters()
+		{
+			if (clusters == null)
+			{
+				clusters = new DnaClusters(EDIT_DISTANCE);
+				for (Dna dna : getSketches())
+					clusters.add(dna);
+				//built now, not by the first of the concurrent searches
+				clusters.build();
+			}
+			return clusters;
+		}
+
+		/**
+		 * Takes the structures already built for the previous entry of the type, adding the
+		 * sketches added since to copies of them, and the mapped words it made into sketches
+		 * and templates; the others are built when asked for. Called before the entry is
+		 * published.
+		 * @param previous the entry of the type in the previous snapshot, with the same words
+		 * @param added the sketches added since
+		 */
+		void derive(Entry previous, List<Dna> added)
+		{
+			BKTree<Dna> index;
+			DnaTrie trie;
+			MinHashIndex hashes;
+			DnaClusters clusters;
+			synchronized (previous)
+			{
+				index = previous.index;
+				trie = previous.trie;
+				hashes = previous.hashes;
+				clusters = previous.clusters;
+				wordSketches = previous.wordSketches;
+				wordTemplates = previous.wordTemplates;
+			}
+			if (index != null)
+			{
+				this.index = index.copy();
+				for (Dna dna : added)
+					this.index.add(dna);
+			}
+			if (trie != null)
+			{
+				this.trie = trie.copy();
+				for (Dna dna : added)
+					this.trie.add(dna);
+			}
+			if (hashes != null)
+			{
+				this.hashes = hashes.copy();
+				for (Dna dna : added)
+					this.hashes.add(dna);
+			}
+			if (clusters != null)
+			{
+				this.clusters = clusters.copy();
+				for (Dna dna : added)
+					this.clusters.add(dna);
+				//the words have doubled: built again when asked for, under the lock
+				if (this.clusters.getClusters() == 0)
+					this.clusters = null;
+			}
+		}
+	}
+
+	/**
+	 * Makes the next snapshot from a previous one, copying the sketches of a type the first
+	 * time it is changed; for a type read from a mapped bank, only the sketches added after
+	 * its words are copied. The SketchBank publishes the snapshots it builds; others may build
+	 * their own, as the tests do, without publishing them.
+	 */
+	public static class Builder
+	{
+		private final BankSnapshot previous;
+		private final ArrayList<Object> types;
+		private final HashMap<String, Entry> entries;
+		//the types changed, with their new sketches, those after the mapped words for the types in bases
+		private final HashMap<String, ArrayList<Dna>> sketches = new HashMap<String, ArrayList<Dna>>();
+		private final HashMap<String, ArrayList<SketchTemplate>> templates = new HashMap<String, ArrayList<SketchTemplate>>();
+		//the types changed which keep their words in a mapped bank, with those words
+		private final HashMap<String, MappedBank.Words> bases = new HashMap<String, MappedBank.Words>();
+		//the types changed by adding sketches only, with their entry in the previous snapshot
+		private final HashMap<String, Entry> appended = new HashMap<String, Entry>();
+		//the types cleared since the bank was started, which merge() leaves alone
+		private final HashSet<String> cleared;
+
+		public Builder(BankSnapshot previous)
+		{
+			this.previous = previous;
+			types = new ArrayList<Object>(previous.types);
+			entries = new HashMap<String, Entry>(previous.entries);
+			cleared = new HashSet<String>(previous.cleared);
+		}
+
+		/**
+		 * @return the sketches of a type as changed so far, null if it has none; the words
+		 * of a mapped type are made into sketches for this, see size()
+		 */
+		public List<Dna> getSketches(String type)
+		{
+			ArrayList<Dna> list = sketches.get(type);
+			if (list == null)
+			{
+				Entry entry = entries.get(type);
+				return entry == null ? null : entry.getSketches();
+			}
+			MappedBank.Words words = bases.get(type);
+			if (words == null)
+				return list;
+			ArrayList<Dna> all = new ArrayList<Dna>(words.size() + list.size());
+			for (int i=0; i!=words.size(); ++i)
+				all.add(words.getDna(i));
+			all.addAll(list);
+			return all;
+		}
+
+		/**
+		 * @return the number of sketches of a type as changed so far, 0 if it is not known
+		 */
+		public int size(String type)
+		{
+			ArrayList<Dna> list = sketches.get(type);
+			if (list == null)
+			{
+				Entry entry = entries.get(type);
+				return entry == null ? 0 : entry.size();
+			}
+			MappedBank.Words words = bases.get(type);
+			return (words == null ? 0 : words.size()) + list.size();
+		}
+
+		/**
+		 * @return the templates of a type not mapped, as changed so far
+		 */
+		private List<SketchTemplate> getTemplates(String type)
+		{
+			ArrayList<SketchTemplate> list = templates.get(type);
+			return list != null ? list : entries.get(type).getTemplates();
+		}
+
+		/**
+		 * Adds a type without sketches, if it is not known yet
+		 */
+		public void declare(String type)
+		{
+			if (!types.contains(type))
+				types.add(type);
+			if (!sketches.containsKey(type) && !entries.containsKey(type))
+				empty(type);
+		}
+
+		/**
+		 * Adds a type if it is not known yet, and removes all its sketches, including those
+		 * of a bank merged afterwards
+		 */
+		public void clear(String type)
+		{
+			if (!types.contains(type))
+				types.add(type);
+			empty(type);
+			cleared.add(type);
+		}
+
+		private void empty(String type)
+		{
+			sketches.put(type, new ArrayList<Dna>());
+			templates.put(type, new ArrayList<SketchTemplate>());
+			bases.remove(type);
+			appended.remove(type);
+		}
+
+		/**
+		 * Adds a sketch to a type, which must be known; the words of a mapped type are left
+		 * in the mapping
+		 */
+		public void add(String type, Dna dna)
+		{
+			ArrayList<Dna> list = sketches.get(type);
+			if (list == null)
+			{
+				Entry entry = entries.get(type);
+				list = new ArrayList<Dna>(entry.added);
+				sketches.put(type, list);
+				templates.put(type, new ArrayList<SketchTemplate>(entry.addedTemplates));
+				if (entry.words != null)
+					bases.put(type, entry.words);
+				appended.put(type, entry);
+			}
+			list.add(dna);
+			templates.get(type).add(new SketchTemplate(dna));
+		}
+
+		/**
+		 * Sets the sketches of a type to the words of a mapped bank, adding the type if it is
+		 * not known yet
+		 */
+		public void map(String type, MappedBank.Words words)
+		{
+			if (!types.contains(type))
+				types.add(type);
+			sketches.remove(type);
+			templates.remove(type);
+			bases.remove(type);
+			appended.remove(type);
+			entries.put(type, new Entry(words));
+		}
+
+		/**
+		 * Adds the types and the sketches of another snapshot to those already known: the
+		 * other snapshot (the bank stored on the disk) holds none of the sketches taught
+		 * meanwhile, so those it shares with them were taught again. A type without sketches
+		 * takes those of the other snapshot as they are; the sketches known of a type mapped
+		 * in the other snapshot are added after its words, which stay in the mapping.
+		 * The sketches of the types cleared since the bank was started are not added, as the
+		 * other snapshot (the bank stored on the disk) was read before they were cleared.
+		 */
+		public void merge(BankSnapshot other)
+		{
+			for (Object type : other.types)
+			{
+				String name = (String)type;
+				Entry entry = other.entries.get(name);
+				if (cleared.contains(name))
+				{
+					declare(name);
+					continue;
+				}
+				if (size(name) == 0)
+				{
+					if (!types.contains(name))
+						types.add(name);
+					sketches.remove(name);
+					templates.remove(name);
+					bases.remove(name);
+					appended.remove(name);
+					entries.put(name, entry);
+					continue;
+				}
+				if (entry.words != null && !bases.containsKey(name)
+						&& (sketches.containsKey(name) || entries.get(name).words == null))
+				{
+					ArrayList<Dna> list = new ArrayList<Dna>(entry.added);
+					list.addAll(getSketches(name));
+					ArrayList<SketchTemplate> listTemplates = new ArrayList<SketchTemplate>(entry.addedTemplates);
+					listTemplates.addAll(getTemplates(name));
+					sketches.put(name, list);
+					templates.put(name, listTemplates);
+					bases.put(name, entry.words);
+					appended.remove(name);
+					continue;
+				}
+				for (Dna dna : entry.getSketches())
+					add(name, dna);
+			}
+			//the bank stored is merged once: the types cleared next are cleared for good
+			cleared.clear();
+		}
+
+		/**
+		 * Removes the sketches of all the types
+		 */
+		public void reset()
+		{
+			for (Object type : types)
+				clear((String)type);
+		}
+
+		public BankSnapshot build()
+		{
+			for (String type : sketches.keySet())
+			{
+				ArrayList<Dna> list = sketches.get(type);
+				Entry entry = new Entry(bases.get(type), list, templates.get(type));
+				Entry from = appended.get(type);
+				if (from != null)
+					entry.derive(from, list.subList(from.added.size(), list.size()));
+				entries.put(type, entry);
+			}
+			return new BankSnapshot(previous.version+1, types, entries, cleared);
+		}
+	}
+
+	private final long version;
+	private final ArrayList<Object> types;
+	private final List<Object> publicTypes;
+	private final HashMap<String, Entry> entries;
+	private final Set<String> cleared;
+
+	private BankSnapshot(long version, ArrayList<Object> types, HashMap<String, Entry> entries, Set<String> cleared)
+	{
+		this.version = version;
+		this.types = types;
+		this.entries = entries;
+		this.cleared = cleared;
+		publicTypes = Collections.unmodifiableList(types);
+	}
+
+	/**
+	 * @return the bank before anything is loaded or taught
+	 */
+	public static BankSnapshot empty()
+	{
+		return new BankSnapshot(0, new ArrayList<Object>(), new HashMap<String, Entry>(), new HashSet<String>());
+	}
+
+	/**
+	 * @return a number that grows with each change to the bank, so that results computed from
+	 * a snapshot can tell whether they are still valid
+	 */
+	public long getVersion()
+	{
+		return version;
+	}
+
+	/**
+	 * @return the names of the types
+	 */
+	public List<Object> getTypes()
+	{
+		return publicTypes;
+	}
+
+	/**
+	 * @param type
+	 * @return the sketches of a type, null if it is not known
+	 */
+	public List<Dna> getSketches(Object type)
+	{
+		Entry entry = entries.get(getName(type));
+		return entry == null ? null : entry.getSketches();
+	}
+
+	/**
+	 * @param type
+	 * @return the sketches of a type with their rotations precomputed, null if it is not known
+	 */
+	public List<SketchTemplate> getTemplates(Object type)
+	{
+		Entry entry = entries.get(getName(type));
+		return entry == null ? null : entry.getTemplates();
+	}
+
+	/**
+	 * @param type
+	 * @return the words of a type in the mapped bank it was read from, followed by those of
+	 * getAppended(); null if it was cleared since, was not read from one or is not known
+	 */
+	public MappedBank.Words getWords(Object type)
+	{
+		Entry entry = entries.get(getName(type));
+		return entry == null ? null : entry.words;
+	}
+
+	/**
+	 * @param type
+	 * @return the sketches added to a type after its words in the mapped bank, null if it
+	 * has no such words, see getWords()
+	 */
+	public List<Dna> getAppended(Object type)
+	{
+		Entry entry = entries.get(getName(type));
+		return entry == null || entry.words == null ? null : entry.added;
+	}
+
+	/**
+	 * @param type
+	 * @return the templates of the sketches of getAppended(), null if the type has no words
+	 * in the mapped bank
+	 */
+	public List<SketchTemplate> getAppendedTemplates(Object type)
+	{
+		Entry entry = entries.get(getName(type));
+		return entry == null || entry.words == null ? null : entry.addedTemplates;
+	}
+
+	/**
+	 * @param type
+	 * @return an edit distance index over the sketches of a type, null if it is not known
+	 */
+	public BKTree<Dna> getIndex(Object type)
+	{
+		Entry entry = entries.get(getName(type));
+		return entry == null ? null : entry.getIndex();
+	}
+
+	/**
+	 * @param type
+	 * @return a prefix tree of the sketches of a type, null if it is not known
+	 */
+	public DnaTrie getTrie(Object type)
+	{
+		Entry entry = entries.get(getName(type));
+		return entry == null ? null : entry.getTrie();
+	}
+
+	/**
+	 * @param type
+	 * @return a locality sensitive index of the sketches of a type, null if it is not known
+	 */
+	public MinHashIndex getHashIndex(Object type)
+	{
+		Entry entry = entries.get(getName(type));
+		return entry == null ? null : entry.getHashIndex();
+	}
+
+	/**
+	 * @param type
+	 * @return the sketches of a type grouped around medoids, null if it is not known
+	 */
+	public DnaClusters getClusters(Object type)
+	{
+		Entry entry = entries.get(getName(type));
+		return entry == null ? null : entry.getClusters();
+	}
+
+	/**
+	 * @return the name of a type, the display name of an IElementType or the String itself
+	 */
+	static String getName(Object type)
+	{
+		if (type instanceof IElementType)
+			return ((IElementType)type).getDisplayName();
+		else
+			return (String)type;
+	}
+}
@@ -0,0 +1,294 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Ugo Sangiorgi and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *  Ugo Sangiorgi <ugo.sangiorgi@gmail.com> - Initial contribution
+ *******************************************************************************/
+package org.eclipse.sketch;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes the changes of the SketchBank on the disk from a single background thread, so that
+ * neither the UI nor the recognition wait for the disk.
+ *
+ * The changes are gathered during a window starting at the first one, then written
+ * together: the records with a single write and a single sync of the journal, and of the
+ * snapshots only the last one, which replaces all the records before it. The bank in
+ * memory is authoritative, nothing is read back after being written.
+ *
+ * A snapshot is written both as XML and as a binary bank (see {@link MappedBank}), the
+ * binary one last so that it is the newest of the two, the one read at startup. When it
+ * cannot be written, as when the binary bank it replaces is still mapped where a mapped file
+ * cannot be replaced, the records it holds are appended to the journal instead, and it is
+ * tried again with the next write.
+ * The changes made before the writer knows where to write them (see
+ * {@link #open(BankJournal, File, File)}) wait for it.
+ * Only the SketchBank writes through it; it is public for the tests.
+ */
+public class BankWriter
+{
+	/** default time the changes are gathered before being written, in milliseconds */
+	public static final long WINDOW = 200;
+
+	//where the changes are written, null until open()
+	private BankJournal journal;
+	private File snapshot;
+	private File binary;
+	private final ScheduledExecutorService executor;
+	private volatile long window = WINDOW;
+
+	//the changes waiting to be written: the records, and a snapshot holding the first
+	//coveredLength characters (coveredCount records) of them
+	private BankSnapshot pendingSnapshot;
+	private StringBuilder pendingRecords = new StringBuilder();
+	private int pendingCount;
+	private int coveredLength;
+	private int coveredCount;
+	//the records made after the pending snapshot but appended to the journal already, as it
+	//could not be written: appended again once it empties the journal
+	private StringBuilder journaledRecords = new StringBuilder();
+	private int journaledCount;
+	private boolean scheduled;
+
+	private final Runnable write = new Runnable() {
+		public void run() {
+			write();
+		}
+	};
+
+	/**
+	 * @param journal where the records are appended
+	 * @param snapshot where the snapshots are written as XML
+	 * @param binary where the snapshots are written as a binary bank
+	 */
+	public BankWriter(BankJournal journal, File snapshot, File binary)
+	{
+		this();
+		open(journal, snapshot, binary);
+	}
+
+	/**
+	 * Makes a writer that keeps the changes until it is opened
+	 */
+	public BankWriter()
+	{
+		executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Sketch bank writer");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Sets where the changes are written, those queued meanwhile being written within the
+	 * window
+	 * @param journal where the records are appended
+	 * @param snapshot where the snapshots are written as XML
+	 * @param binary where the snapshots are written as a binary bank
+	 */
+	public synchronized void open(BankJournal journal, File snapshot, File binary)
+	{
+		this.journal = journal;
+		this.snapshot = snapshot;
+		this.binary = binary;
+		if (pendingSnapshot != null || pendingCount > 0)
+		{
+			scheduled = false;
+			schedule();
+		}
+	}
+
+	public long getWindow()
+	{
+		return window;
+	}
+
+	public void setWindow(long milliseconds)
+	{
+		window = milliseconds;
+	}
+
+	/**
+	 * Queues a record of the journal
+	 */
+	public synchronized void append(String record)
+	{
+		pendingRecords.append(record);
+		pendingCount++;
+		schedule();
+	}
+
+	/**
+	 * Queues a snapshot of the whole bank, which makes the records queued before useless
+	 * once it is written; they are kept until then, in case it cannot be
+	 * @param bank
+	 */
+	public synchronized void snapshot(BankSnapshot bank)
+	{
+		pendingSnapshot = bank;
+		coveredLength = pendingRecords.length();
+		coveredCount = pendingCount;
+		journaledRecords.setLength(0);
+		journaledCount = 0;
+		schedule();
+	}
+
+	/**
+	 * Makes sure the changes queued are written within the window
+	 */
+	public synchronized void schedule()
+	{
+		if (!scheduled)
+		{
+			scheduled = true;
+			executor.schedule(write, window, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Runs a task on the thread of the writer, after the writes queued before it
+	 * @param task
+	 * @return a future done once the task has run
+	 */
+	public Future<?> execute(Runnable task)
+	{
+		return executor.submit(task);
+	}
+
+	/**
+	 * @return a future done once the changes queued so far are on the disk
+	 */
+	public Future<?> flush()
+	{
+		return executor.submit(write);
+	}
+
+	private void write()
+	{
+		BankSnapshot bank;
+		String records;
+		int count;
+		int covered;
+		int coveredRecords;
+		String journaled;
+		int journaledRecords;
+		BankJournal journal;
+		File snapshot;
+		File binary;
+		synchronized (this)
+		{
+			//kept until the writer is opened
+			if (this.journal == null)
+				return;
+			journal = this.journal;
+			snapshot = this.snapshot;
+			binary = this.binary;
+			bank = pendingSnapshot;
+			records = pendingRecords.toString();
+			count = pendingCount;
+			covered = coveredLength;
+			coveredRecords = coveredCount;
+			journaled = this.journaledRecords.toString();
+			journaledRecords = journaledCount;
+			pendingSnapshot = null;
+			pendingRecords.setLength(0);
+			pendingCount = 0;
+			coveredLength = 0;
+			coveredCount = 0;
+			this.journaledRecords.setLength(0);
+			journaledCount = 0;
+			scheduled = false;
+		}
+
+		if (bank == null)
+		{
+			if (count > 0)
+				journal.append(records, count);
+		}
+		else if (writeSnapshot(bank, journal, snapshot, binary))
+		{
+			//the journal is empty: only the records made after the snapshot are appended
+			if (journaledRecords + count - coveredRecords > 0)
+				journal.append(journaled + records.substring(covered), journaledRecords + count - coveredRecords);
+		}
+		else
+		{
+			//the journal still holds the records before the snapshot: those queued are
+			//appended, and the snapshot is tried again with the next write, unless a newer one
+			//replaces it
+			if (count > 0)
+				journal.append(records, count);
+			synchronized (this)
+			{
+				if (pendingSnapshot == null)
+				{
+					pendingSnapshot = bank;
+					this.journaledRecords.append(journaled).append(records.substring(covered));
+					journaledCount = journaledRecords + count - coveredRecords;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return false if the snapshot could not replace the previous one, the journal being
+	 * left as it was
+	 */
+	private static boolean writeSnapshot(BankSnapshot bank, BankJournal journal, File snapshot, File binary)
+	{
+		File temporary = new File(snapshot.getPath() + ".tmp");
+		File temporaryBinary = new File(binary.getPath() + ".tmp");
+		try {
+			FileOutputStream out = new FileOutputStream(temporary);
+			try {
+				SketchBank.toProperties(bank).storeToXML(out, "Generated by Eclipse Sketch - sketches made by "
+						+ System.getProperty("user.name"));
+				out.getFD().sync();
+			} finally {
+				out.close();
+			}
+			MappedBank.write(bank, temporaryBinary);
+
+			//the binary snapshot, written last hence the newest, is the one read at startup:
+			//once it is replaced the journal is emptied, whether the XML one is replaced or not
+			replace(temporaryBinary, binary);
+		} catch (Exception e) {
+			e.printStackTrace();
+			temporary.delete();
+			temporaryBinary.delete();
+			return false;
+		}
+		journal.truncate();
+		try {
+			replace(temporary, snapshot);
+		} catch (IOException e) {
+			e.printStackTrace();
+			temporary.delete();
+		}
+		return true;
+	}
+
+	private static void replace(File temporary, File file) throws IOException
+	{
+		//where a file still mapped cannot be replaced, the journal is kept until it can
+		if (!temporary.renameTo(file)) {
+			file.delete();
+			if (!temporary.renameTo(file))
+				throw new IOException("Cannot replace "+file);
+		}
+	}
+}
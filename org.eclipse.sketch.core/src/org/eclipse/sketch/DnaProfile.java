@@ -0,0 +1,168 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Ugo Sangiorgi and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *  Ugo Sangiorgi <ugo.sangiorgi@gmail.com> - Initial contribution
+ *******************************************************************************/
+package org.eclipse.sketch;
+
+import org.eclipse.sketch.Sketch.Dna;
+
+/**
+ * Symbol and 2-gram counts of a DNA. Comparing the profiles of two words gives lower bounds
+ * of their edit distance, far cheaper to compute than the distance itself:
+ * <ul>
+ * <li>each edit changes the count of at most one symbol up and one down, so the distance is
+ * at least the largest of the surplus and the deficit of symbols between the two histograms;</li>
+ * <li>each edit destroys at most 2 of the 2-grams of a word, so two words of lengths n and m
+ * sharing c 2-grams are at least (max(n,m) - 1 - c)/2 edits apart.</li>
+ * </ul>
+ * The bounds can be computed against the other word rotated by any number of quarters,
+ * by permuting the directions of its counts.
+ */
+public class DnaProfile
+{
+	private static final int GRAMS = Dna.SYMBOLS*Dna.SYMBOLS;
+	//ROTATE[q][s] is the symbol s rotated by q quarters
+	private static final int[][] ROTATE = new int[4][Dna.SYMBOLS];
+	static
+	{
+		for (int s=0; s!=Dna.SYMBOLS; ++s)
+		{
+			ROTATE[0][s] = s;
+			for (int q=1; q!=4; ++q)
+				ROTATE[q][s] = Dna.rotatedSymbol(ROTATE[q-1][s]);
+		}
+	}
+
+	private final int length;
+	private final int[] histogram = new int[Dna.SYMBOLS];
+	//the distinct 2-grams of the word (first*SYMBOLS + second) and their counts
+	private final short[] grams;
+	private final int[] gramCounts;
+	//count of every 2-gram, computed when this profile is the one rotated against
+	private int[] denseGrams;
+
+	public DnaProfile(Dna dna)
+	{
+		this(dna.length(), gramCounts(dna));
+		for (int i=0; i!=length; ++i)
+			histogram[dna.symbolAt(i)]++;
+	}
+
+	/**
+	 * The profile of a DNA counted on its runs: a run of n symbols holds n-1 times the
+	 * 2-gram of its symbol repeated
+	 */
+	public DnaProfile(RunLengthDna runs)
+	{
+		this(runs.length(), gramCounts(runs));
+		for (int run=0; run!=runs.runs(); ++run)
+			histogram[runs.runSymbol(run)] += runs.runLength(run);
+	}
+
+	/**
+	 * @param length the length of the word
+	 * @param counts the count of every 2-gram of the word
+	 */
+	private DnaProfile(int length, int[] counts)
+	{
+		this.length = length;
+		int distinct = 0;
+		for (int i=0; i!=GRAMS; ++i)
+			if (counts[i] != 0)
+				distinct++;
+
+		grams = new short[distinct];
+		gramCounts = new int[distinct];
+		int g = 0;
+		for (int i=0; i!=GRAMS; ++i)
+		{
+			if (counts[i] != 0)
+			{
+				grams[g] = (short)i;
+				gramCounts[g] = counts[i];
+				g++;
+			}
+		}
+	}
+
+	private static int[] gramCounts(Dna dna)
+	{
+		int[] counts = new int[GRAMS];
+		for (int i=1; i<dna.length(); ++i)
+			counts[dna.symbolAt(i-1)*Dna.SYMBOLS + dna.symbolAt(i)]++;
+		return counts;
+	}
+
+	private static int[] gramCounts(RunLengthDna runs)
+	{
+		int[] counts = new int[GRAMS];
+		for (int run=0; run!=runs.runs(); ++run)
+		{
+			int symbol = runs.runSymbol(run);
+			counts[symbol*Dna.SYMBOLS + symbol] += runs.runLength(run) - 1;
+			if (run > 0)
+				counts[runs.runSymbol(run-1)*Dna.SYMBOLS + symbol]++;
+		}
+		return counts;
+	}
+
+	public int length()
+	{
+		return length;
+	}
+
+	/**
+	 * @param other the profile of another word
+	 * @param quarters the number of 90 degrees rotations applied to the other word
+	 * @return a lower bound of the edit distance between this word and the other one, rotated
+	 */
+	public int histogramBound(DnaProfile other, int quarters)
+	{
+		int[] rotate = ROTATE[quarters];
+		int surplus = 0, deficit = 0;
+		for (int s=0; s!=Dna.SYMBOLS; ++s)
+		{
+			int diff = histogram[rotate[s]] - other.histogram[s];
+			if (diff > 0)
+				surplus += diff;
+			else
+				deficit -= diff;
+		}
+		return Math.max(surplus, deficit);
+	}
+
+	/**
+	 * @param other the profile of another word
+	 * @param quarters the number of 90 degrees rotations applied to the other word
+	 * @return a lower bound of the edit distance between this word and the other one, rotated
+	 */
+	public int gramBound(DnaProfile other, int quarters)
+	{
+		int longest = Math.max(length, other.length);
+		if (longest < 2)
+			return 0;
+
+		if (denseGrams == null)
+		{
+			denseGrams = new int[GRAMS];
+			for (int g=0; g!=grams.length; ++g)
+				denseGrams[grams[g]] = gramCounts[g];
+		}
+
+		int[] rotate = ROTATE[quarters];
+		int common = 0;
+		for (int g=0; g!=other.grams.length; ++g)
+		{
+			int gram = other.grams[g];
+			int rotated = rotate[gram / Dna.SYMBOLS]*Dna.SYMBOLS + rotate[gram % Dna.SYMBOLS];
+			common += Math.min(other.gramCounts[g], denseGrams[rotated]);
+		}
+		return Math.max(0, (longest - common)/2);
+	}
+}
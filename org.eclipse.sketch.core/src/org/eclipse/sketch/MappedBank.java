@@ -0,0 +1,292 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Ugo Sangiorgi and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *  Ugo Sangiorgi <ugo.sangiorgi@gmail.com> - Initial contribution
+ *******************************************************************************/
+package org.eclipse.sketch;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.sketch.Sketch.Dna;
+
+/**
+ * The SketchBank in a binary file, mapped in memory instead of parsed, so that opening a
+ * large bank only reads its table of types; the words are read from the mapping when they
+ * are asked for, the recognizer can even compare them without making a {@link Dna} (see
+ * {@link Words#getSymbols(int, byte[])}).
+ *
+ * The file holds, all the numbers being 32 bits big-endian:
+ * <ul>
+ * <li>the magic number and the number of types;</li>
+ * <li>for each type, the length of its name, its name in UTF-8, the index of its first word
+ * and its number of words, its words following each other;</li>
+ * <li>the number of words, then the offset in the file and the length of each word;</li>
+ * <li>the words, packed 2 symbols per byte as in a {@link Dna}, the first one in the low
+ * nibble.</li>
+ * </ul>
+ */
+public class MappedBank
+{
+	private static final int MAGIC = 0x534B4231; //SKB1
+	private static final String ENCODING = "UTF-8";
+
+	/**
+	 * The words of a type, read from the mapping
+	 */
+	public class Words
+	{
+		private final int first;
+		private final int size;
+
+		private Words(int first, int size)
+		{
+			this.first = first;
+			this.size = size;
+		}
+
+		/**
+		 * @return the number of words
+		 */
+		public int size()
+		{
+			return size;
+		}
+
+		/**
+		 * @param i index of a word, from 0 to size()-1
+		 * @return the number of symbols of the word
+		 */
+		public int length(int i)
+		{
+			return buffer.getInt(table + 8*(first+i) + 4);
+		}
+
+		/**
+		 * Copies the symbols of a word, one per byte, straight from the mapping
+		 * @param i index of a word, from 0 to size()-1
+		 * @param symbols where to write them, at least length(i) long
+		 */
+		public void getSymbols(int i, byte[] symbols)
+		{
+			int offset = buffer.getInt(table + 8*(first+i));
+			int length = buffer.getInt(table + 8*(first+i) + 4);
+			for (int j=0; j<length; j+=2)
+			{
+				int b = buffer.get(offset + (j>>1));
+				symbols[j] = (byte)(b & 0xF);
+				if (j+1 < length)
+					symbols[j+1] = (byte)((b >>> 4) & 0xF);
+			}
+		}
+
+		/**
+		 * @param i index of a word, from 0 to size()-1
+		 * @return the word, made into a Dna
+		 */
+		public Dna getDna(int i)
+		{
+			byte[] symbols = new byte[length(i)];
+			getSymbols(i, symbols);
+			return Dna.valueOf(symbols, symbols.length);
+		}
+	}
+
+	private final ByteBuffer buffer;
+	private final ArrayList<String> types = new ArrayList<String>();
+	private final ArrayList<Words> words = new ArrayList<Words>();
+	//position of the offsets and lengths of the words
+	private final int table;
+
+	private MappedBank(ByteBuffer buffer) throws IOException
+	{
+		this.buffer = buffer;
+		try
+		{
+			if (buffer.getInt() != MAGIC)
+				throw new IOException("Not a sketch bank");
+			int count = buffer.getInt();
+			if (count < 0)
+				throw new IOException("Corrupted sketch bank");
+			int total = 0;
+			for (int t=0; t!=count; ++t)
+			{
+				int length = buffer.getInt();
+				if (length < 0 || length > buffer.remaining())
+					throw new IOException("Truncated sketch bank");
+				byte[] name = new byte[length];
+				buffer.get(name);
+				int first = buffer.getInt();
+				int size = buffer.getInt();
+				if (first != total || size < 0 || size > Integer.MAX_VALUE/8 - total)
+					throw new IOException("Corrupted sketch bank");
+				types.add(new String(name, ENCODING));
+				words.add(new Words(first, size));
+				total += size;
+			}
+			if (buffer.getInt() != total)
+				throw new IOException("Corrupted sketch bank");
+			table = buffer.position();
+			if ((long)table + 8L*total > buffer.limit())
+				throw new IOException("Truncated sketch bank");
+			//every word must follow the table and the previous word, and end within the file,
+			//since the words are read from the mapping without checking them again
+			long end = table + 8L*total;
+			for (int i=0; i!=total; ++i)
+			{
+				int offset = buffer.getInt(table + 8*i);
+				int length = buffer.getInt(table + 8*i + 4);
+				if (offset < end || length < 0)
+					throw new IOException("Corrupted sketch bank");
+				end = offset + (length+1L)/2;
+				if (end > buffer.limit())
+					throw new IOException("Truncated sketch bank");
+			}
+		}
+		catch (BufferUnderflowException e)
+		{
+			throw new IOException("Truncated sketch bank");
+		}
+		catch (IndexOutOfBoundsException e)
+		{
+			throw new IOException("Truncated sketch bank");
+		}
+	}
+
+	/**
+	 * Maps a bank file in memory, read only
+	 * @param file
+	 * @return the bank
+	 * @throws IOException if the file cannot be read, or is not a complete bank
+	 */
+	public static MappedBank open(File file) throws IOException
+	{
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try
+		{
+			//the mapping stays valid once the file is closed
+			FileChannel channel = in.getChannel();
+			return new MappedBank(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	/**
+	 * @return the names of the types, in the order of the file
+	 */
+	public List<String> getTypes()
+	{
+		return types;
+	}
+
+	/**
+	 * @param t index of a type in getTypes()
+	 * @return the words of the type
+	 */
+	public Words getWords(int t)
+	{
+		return words.get(t);
+	}
+
+	/**
+	 * Writes a snapshot of the bank, the words mapped from a previous file being copied
+	 * without making them into Dnas
+	 * @param bank
+	 * @param file
+	 * @throws IOException
+	 */
+	public static void write(BankSnapshot bank, File file) throws IOException
+	{
+		List<Object> names = bank.getTypes();
+		byte[][] encoded = new byte[names.size()][];
+		int[] sizes = new int[names.size()];
+		int total = 0;
+		int header = 12;
+		for (int t=0; t!=names.size(); ++t)
+		{
+			encoded[t] = BankSnapshot.getName(names.get(t)).getBytes(ENCODING);
+			Words mapped = bank.getWords(names.get(t));
+			List<Dna> sketches = mapped == null ? bank.getSketches(names.get(t)) : bank.getAppended(names.get(t));
+			sizes[t] = (mapped == null ? 0 : mapped.size()) + (sketches == null ? 0 : sketches.size());
+			total += sizes[t];
+			header += 12 + encoded[t].length;
+		}
+
+		FileOutputStream file_out = new FileOutputStream(file);
+		try
+		{
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file_out));
+			out.writeInt(MAGIC);
+			out.writeInt(names.size());
+			int first = 0;
+			for (int t=0; t!=names.size(); ++t)
+			{
+				out.writeInt(encoded[t].length);
+				out.write(encoded[t]);
+				out.writeInt(first);
+				out.writeInt(sizes[t]);
+				first += sizes[t];
+			}
+			out.writeInt(total);
+
+			int offset = header + 8*total;
+			for (int t=0; t!=names.size(); ++t)
+			{
+				Words mapped = bank.getWords(names.get(t));
+				List<Dna> sketches = mapped == null ? bank.getSketches(names.get(t)) : bank.getAppended(names.get(t));
+				int base = mapped == null ? 0 : mapped.size();
+				for (int i=0; i!=sizes[t]; ++i)
+				{
+					int length = i < base ? mapped.length(i) : sketches.get(i-base).length();
+					out.writeInt(offset);
+					out.writeInt(length);
+					offset += (length+1)/2;
+				}
+			}
+
+			byte[] symbols = new byte[64];
+			for (int t=0; t!=names.size(); ++t)
+			{
+				Words mapped = bank.getWords(names.get(t));
+				List<Dna> sketches = mapped == null ? bank.getSketches(names.get(t)) : bank.getAppended(names.get(t));
+				int base = mapped == null ? 0 : mapped.size();
+				for (int i=0; i!=sizes[t]; ++i)
+				{
+					int length = i < base ? mapped.length(i) : sketches.get(i-base).length();
+					if (symbols.length < length+1)
+						symbols = new byte[2*length+1];
+					if (i < base)
+						mapped.getSymbols(i, symbols);
+					else
+						sketches.get(i-base).getSymbols(symbols);
+					symbols[length] = 0;
+					for (int j=0; j<length; j+=2)
+						out.writeByte(symbols[j] | symbols[j+1] << 4);
+				}
+			}
+			out.flush();
+			file_out.getFD().sync();
+		}
+		finally
+		{
+			file_out.close();
+		}
+	}
+}
@@ -0,0 +1,182 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Ugo Sangiorgi and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *  Ugo Sangiorgi <ugo.sangiorgi@gmail.com> - Initial contribution
+ *******************************************************************************/
+package org.eclipse.sketch;
+
+import java.util.Arrays;
+
+import org.eclipse.sketch.Sketch.Dna;
+import org.eclipse.sketch.exceptions.IllegalLengthException;
+
+/**
+ * A DNA kept as runs of the same symbol: "33333555" is 3 five times then 5 three times.
+ * The directions of a sketch change seldom, so a DNA holds a few runs only, and the
+ * stretched words of the bank even fewer relatively to their length. A run-length DNA
+ * is stretched and rotated as it is, without making a {@link Dna} of it.
+ */
+public class RunLengthDna
+{
+	private final byte[] symbols;
+	private final int[] lengths;
+	private final int length;
+
+	public RunLengthDna(Dna dna)
+	{
+		this(symbols(dna), dna.length());
+	}
+
+	/**
+	 * @param symbols symbols of {@link Dna}, one per byte
+	 * @param length the number of symbols
+	 */
+	private RunLengthDna(byte[] symbols, int length)
+	{
+		this.length = length;
+		int runs = 0;
+		for (int i=0; i!=length; ++i)
+			if (i == 0 || symbols[i] != symbols[i-1])
+				runs++;
+
+		this.symbols = new byte[runs];
+		lengths = new int[runs];
+		int run = -1;
+		for (int i=0; i!=length; ++i)
+		{
+			if (i == 0 || symbols[i] != symbols[i-1])
+				this.symbols[++run] = symbols[i];
+			lengths[run]++;
+		}
+	}
+
+	private static byte[] symbols(Dna dna)
+	{
+		byte[] symbols = new byte[dna.length()];
+		dna.getSymbols(symbols);
+		return symbols;
+	}
+
+	private RunLengthDna(byte[] symbols, int[] lengths, int length)
+	{
+		this.symbols = symbols;
+		this.lengths = lengths;
+		this.length = length;
+	}
+
+	/**
+	 * @return the number of runs
+	 */
+	public int runs()
+	{
+		return symbols.length;
+	}
+
+	/**
+	 * @param run
+	 * @return the symbol repeated by a run, see {@link Dna}
+	 */
+	public int runSymbol(int run)
+	{
+		return symbols[run];
+	}
+
+	/**
+	 * @param run
+	 * @return the number of times the symbol of a run is repeated
+	 */
+	public int runLength(int run)
+	{
+		return lengths[run];
+	}
+
+	/**
+	 * @return the length of the DNA, the sum of the lengths of the runs
+	 */
+	public int length()
+	{
+		return length;
+	}
+
+	/**
+	 * @return the same DNA rotated 90 degrees clockwise, see {@link Dna#rotate90()}
+	 */
+	public RunLengthDna rotate90()
+	{
+		byte[] rotated = new byte[symbols.length];
+		for (int i=0; i!=symbols.length; ++i)
+			rotated[i] = (byte)Dna.rotatedSymbol(symbols[i]);
+		return new RunLengthDna(rotated, lengths, length);
+	}
+
+	/**
+	 * @param length the length to reach, not smaller than the length of the DNA
+	 * @return the DNA stretched as {@link Dna#stretch(int)} does, in runs
+	 * @throws IllegalLengthException when the length is smaller than the DNA
+	 */
+	public RunLengthDna stretch(int length) throws IllegalLengthException
+	{
+		if (this.length > length)
+			throw new IllegalLengthException(length);
+		if (this.length == length)
+			return this;
+
+		byte[] in = expand();
+		byte[] out = new byte[Dna.stretchBound(this.length, length)];
+		return new RunLengthDna(out, Dna.stretch(in, this.length, length, out));
+	}
+
+	private byte[] expand()
+	{
+		byte[] expanded = new byte[length];
+		int i = 0;
+		for (int run=0; run!=symbols.length; ++run)
+			for (int k=0; k!=lengths[run]; ++k)
+				expanded[i++] = symbols[run];
+		return expanded;
+	}
+
+	/**
+	 * @return the DNA, one symbol after the other
+	 */
+	public Dna toDna()
+	{
+		return Dna.valueOf(expand(), length);
+	}
+
+	@Override
+	public boolean equals(Object o)
+	{
+		if (!(o instanceof RunLengthDna))
+			return false;
+		RunLengthDna r = (RunLengthDna)o;
+		return Arrays.equals(symbols, r.symbols) && Arrays.equals(lengths, r.lengths);
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return Arrays.hashCode(symbols)*31 + Arrays.hashCode(lengths);
+	}
+
+	/**
+	 * @return the runs, as "3x5 5x3"
+	 */
+	@Override
+	public String toString()
+	{
+		StringBuilder s = new StringBuilder();
+		for (int run=0; run!=symbols.length; ++run)
+		{
+			if (run != 0)
+				s.append(' ');
+			s.append(Dna.charOf(symbols[run])).append('x').append(lengths[run]);
+		}
+		return s.toString();
+	}
+}
@@ -17,12 +17,14 @@ import java.awt.Graphics2D;
 import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 
 import org.eclipse.draw2d.geometry.Dimension;
 import org.eclipse.draw2d.geometry.Point;
+import org.eclipse.sketch.exceptions.IllegalLengthException;
 
 /**
  * Sketch object is created by the Recognizer and is responsible to hold all the information
@@ -32,49 +34,448 @@ import org.eclipse.draw2d.geometry.Point;
 public class Sketch 
 {	
 	/**
-	 * Defines the DNA of a sketch. It is basically a String, with some useful methods
-	 * (as reverting the DNA)
+	 * Defines the DNA of a sketch: a word over the alphabet '0' to '8', '[' and ']', packed
+	 * with 4 bits per symbol (two symbols per byte). Rotating, reversing and stretching are
+	 * done with lookup tables on the packed form; the String form is only used to store the
+	 * DNA (see {@link SketchBank}) or to show it.
 	 * @author Olivier Bourdoux <olivier.bourdoux@gmail.com>
 	 */
-	public static class Dna
+	public static class Dna implements Comparable<Dna>
 	{
-		private String value;
+		/** Number of symbols in the alphabet */
+		public static final int SYMBOLS = 11;
+		/** Symbol of a pen lift, in the DNAs made before the '[' and ']' markers */
+		public static final int PEN_LIFT = 0;
+		/** Symbol starting a move made without drawing */
+		public static final int PEN_UP = 9;
+		/** Symbol ending a move made without drawing */
+		public static final int PEN_DOWN = 10;
 		
+		private static final char[] CHARS = {'0','1','2','3','4','5','6','7','8','[',']'};
+		private static final byte[] SYMBOL = new byte[128];
+		//symbol once rotated by 90 degrees, and symbol of the opposite direction
+		private static final byte[] ROTATE_90 = new byte[SYMBOLS];
+		private static final byte[] OPPOSITE = new byte[SYMBOLS];
+		//rotation of both symbols of a packed byte at once
+		private static final byte[] ROTATE_90_PACKED = new byte[256];
+		//move of each direction on the grid, the y axis going down
+		private static final int[] DX = {0, 0, 1, 1, 1, 0,-1,-1,-1, 0, 0};
+		private static final int[] DY = {0,-1,-1, 0, 1, 1, 1, 0,-1, 0, 0};
+		//largest gap between the ends of a closed stroke, relatively to its length
+		private static final float CLOSED_TOLERANCE = 0.1f;
+		static
+		{
+			for (int i=0; i!=SYMBOL.length; ++i)
+				SYMBOL[i] = -1;
+			for (int i=0; i!=SYMBOLS; ++i)
+			{
+				SYMBOL[CHARS[i]] = (byte)i;
+				ROTATE_90[i] = (byte)i;
+				OPPOSITE[i] = (byte)i;
+			}
+			for (int dir=1; dir<=8; ++dir)
+			{
+				ROTATE_90[dir] = (byte)((dir+1)%8 + 1);
+				OPPOSITE[dir] = (byte)((dir+3)%8 + 1);
+			}
+			for (int b=0; b!=256; ++b)
+			{
+				int low = b & 0xF, high = b >>> 4;
+				if (low < SYMBOLS && high < SYMBOLS)
+					ROTATE_90_PACKED[b] = (byte)(ROTATE_90[low] | ROTATE_90[high] << 4);
+			}
+		}
+		
+		private final byte[] packed;
+		private final int length;
+		private int hash;
+		
+		/**
+		 * @param v the String form of a DNA
+		 * @throws IllegalArgumentException if v holds a character outside the DNA alphabet
+		 */
 		public Dna(String v)
-		{ value = v; }
+		{
+			length = v.length();
+			packed = new byte[(length+1)/2];
+			for (int i=0; i!=length; ++i)
+			{
+				int symbol = symbolOf(v.charAt(i));
+				if (symbol < 0)
+					throw new IllegalArgumentException("Not a DNA symbol: '"+v.charAt(i)+"' in "+v);
+				packed[i>>1] |= symbol << ((i&1)<<2);
+			}
+		}
+		
+		private Dna(byte[] packed, int length)
+		{
+			this.packed = packed;
+			this.length = length;
+		}
+		
+		/**
+		 * @param symbols one symbol per byte
+		 * @param length the number of symbols to take
+		 * @return the packed DNA
+		 */
+		public static Dna valueOf(byte[] symbols, int length)
+		{
+			byte[] packed = new byte[(length+1)/2];
+			for (int i=0; i!=length; ++i)
+				packed[i>>1] |= symbols[i] << ((i&1)<<2);
+			return new Dna(packed, length);
+		}
+		
+		/**
+		 * @return the symbol of a DNA character, or -1 if it is not part of the alphabet
+		 */
+		public static int symbolOf(char c)
+		{
+			return c < SYMBOL.length ? SYMBOL[c] : -1;
+		}
+		
+		/**
+		 * @return the DNA character of a symbol
+		 */
+		public static char charOf(int symbol)
+		{
+			return CHARS[symbol];
+		}
+		
+		/**
+		 * @return true if the symbol is one of the 8 directions
+		 */
+		public static boolean isDirection(int symbol)
+		{
+			return symbol >= 1 && symbol <= 8;
+		}
+
+		/**
+		 * @return the symbol once rotated by 90 degrees; pen lifts and moves are kept
+		 */
+		public static int rotatedSymbol(int symbol)
+		{
+			return ROTATE_90[symbol];
+		}
+
+		public int length()
+		{ return length; }
+		
+		/**
+		 * @return the symbol at index i, from 0 to {@link #SYMBOLS}-1
+		 */
+		public int symbolAt(int i)
+		{
+			return (packed[i>>1] >>> ((i&1)<<2)) & 0xF;
+		}
+		
+		public char charAt(int i)
+		{
+			return CHARS[symbolAt(i)];
+		}
+		
+		/**
+		 * Copies the symbols, one per byte
+		 * @param symbols where to write them, at least {@link #length()} long
+		 */
+		public void getSymbols(byte[] symbols)
+		{
+			for (int i=0; i!=length; ++i)
+				symbols[i] = (byte)symbolAt(i);
+		}
 		
 		public String toString()
-		{ return value; }
+		{
+			char[] out = new char[length];
+			for (int i=0; i!=length; ++i)
+				out[i] = charAt(i);
+			return new String(out);
+		}
+		
+		/**
+		 * @return the DNA of the same sketch rotated by 90 degrees
+		 */
+		public Dna rotate90()
+		{
+			byte[] out = new byte[packed.length];
+			for (int i=0; i!=packed.length; ++i)
+				out[i] = ROTATE_90_PACKED[packed[i] & 0xFF];
+			return new Dna(out, length);
+		}
 		
 		/**
-		 * @return the reverse DNA of this instance
+		 * @return the reverse DNA of this instance: every stroke is drawn backwards (each
+		 * direction is replaced by the opposite one, in reverse order) while pen lifts and
+		 * moves stay where they are.
 		 */
 		public Dna reverse()
 		{
-			StringBuffer out = new StringBuffer();
-			StringBuffer buf = new StringBuffer();
+			byte[] symbols = new byte[length];
+			getSymbols(symbols);
 			
-			int l = value.length();
-			for (int i=0; i!=l; ++i)
+			int start = 0;
+			while (start < length)
 			{
-				int c = Integer.parseInt(value.substring(i, i+1));
-				
-				if (c==0)
+				if (!isDirection(symbols[start]))
 				{
-					if (buf.length()!=0)
-					{
-						out.append(buf.reverse().append(0));
-						buf = new StringBuffer();
-					}
+					start++;
+					continue;
+				}
+				int end = start;
+				while (end < length && isDirection(symbols[end]))
+					end++;
+				for (int i=start, j=end-1; i<=j; ++i, --j)
+				{
+					byte s = OPPOSITE[symbols[i]];
+					symbols[i] = OPPOSITE[symbols[j]];
+					symbols[j] = s;
+				}
+				start = end;
+			}
+			return valueOf(symbols, length);
+		}
+		
+		/**
+		 * @return the smallest, in the order of {@link #compareTo(Dna)}, of the 8 DNAs of this
+		 * sketch rotated by 0, 90, 180 or 270 degrees and drawn forwards or backwards. Two
+		 * sketches that only differ by their orientation and drawing direction have the same
+		 * canonical DNA.
+		 */
+		public Dna canonical()
+		{
+			Dna min = this;
+			Dna rotated = this;
+			Dna reversed = reverse();
+			for (int i=0; i!=4; ++i)
+			{
+				if (rotated.compareTo(min) < 0)
+					min = rotated;
+				if (reversed.compareTo(min) < 0)
+					min = reversed;
+				rotated = rotated.rotate90();
+				reversed = reversed.rotate90();
+			}
+			return min;
+		}
+		
+		/**
+		 * @return true if this DNA is a single stroke ending close to where it started, like
+		 * a circle or a square: such a sketch can be started anywhere along its outline. The
+		 * pen symbols before and after the stroke, as the SketchTool writes them, are ignored;
+		 * a pen symbol within it makes several strokes.
+		 */
+		public boolean isClosed()
+		{
+			int start = 0, end = length;
+			while (start < end && !isDirection(symbolAt(start)))
+				start++;
+			while (end > start && !isDirection(symbolAt(end-1)))
+				end--;
+			if (start == end)
+				return false;
+			int dx = 0, dy = 0;
+			for (int i=start; i!=end; ++i)
+			{
+				int symbol = symbolAt(i);
+				if (!isDirection(symbol))
+					return false;
+				dx += DX[symbol];
+				dy += DY[symbol];
+			}
+			return Math.max(Math.abs(dx), Math.abs(dy)) <= Math.max(1, (end-start)*CLOSED_TOLERANCE);
+		}
+		
+		/**
+		 * The same drawing quantized on a grid factor times bigger: the moves of the DNA are
+		 * followed on the fine grid, and a symbol is written each time they leave the current
+		 * cell of the coarse grid. The drawing starts at the centre of a coarse cell, and a
+		 * point on the border of two cells stays in the cell it came from, so that coarsening
+		 * commutes with {@link #rotate90()} whatever the factor. The pen symbols are kept as
+		 * they are.
+		 * @param factor the size of a coarse cell, in cells of the grid of this DNA
+		 * @return the coarse DNA, about factor times shorter
+		 */
+		public Dna coarsen(int factor)
+		{
+			byte[] s = new byte[length];
+			int n = 0;
+			//the position from the start, and the coarse cell whose centre is at cx*factor, cy*factor
+			int x = 0, y = 0, cx = 0, cy = 0;
+			int half = factor/2;
+			for (int i=0; i!=length; ++i)
+			{
+				int symbol = symbolAt(i);
+				if (!isDirection(symbol))
+				{
+					s[n++] = (byte)symbol;
+					continue;
+				}
+				x += DX[symbol];
+				y += DY[symbol];
+				int nx = x > cx*factor + half ? cx+1 : x < cx*factor - half ? cx-1 : cx;
+				int ny = y > cy*factor + half ? cy+1 : y < cy*factor - half ? cy-1 : cy;
+				if (nx != cx || ny != cy)
+				{
+					s[n++] = (byte)directionOf(nx-cx, ny-cy);
+					cx = nx;
+					cy = ny;
+				}
+			}
+			return valueOf(s, n);
+		}
+		
+		/**
+		 * @return the direction of a move of at most one cell along each axis
+		 */
+		private static int directionOf(int dx, int dy)
+		{
+			for (int symbol=1; symbol<=8; ++symbol)
+				if (DX[symbol] == dx && DY[symbol] == dy)
+					return symbol;
+			return PEN_LIFT;
+		}
+		
+		/**
+		 * Stretch the Dna so that it has a given length (bigger than its current length).
+		 * 
+		 * The purpose of this is to scale the sketching so that it has the same size as
+		 * the sketch that is compared with.
+		 * 
+		 * For example, if you train your system with small triangles but huge circles, 
+		 * without stretching the Circle recognition have less chances to be chosen 
+		 * when sketching tiny circles. With stretching, because the tiny circles are
+		 * stretched to represent a big one, the chances are better distributed.
+		 * 
+		 * @param length the length to reach
+		 * @throws IllegalLengthException when the length to obtain is smaller than the 
+		 * current length of the Dna
+		 * @return the new Dna, stretched
+		 */
+		public Dna stretch(int length) throws IllegalLengthException
+		{
+			int curlength = this.length;
+			
+			//Handling lengths that are too big
+				if (curlength > length)
+					throw new IllegalLengthException(length);
+				if (curlength == length)
+					return this;
+			
+			byte[] in = new byte[curlength];
+			getSymbols(in);
+			byte[] out = new byte[stretchBound(curlength, length)];
+			return valueOf(out, stretch(in, curlength, length, out));
+		}
+		
+		/**
+		 * @param curlength the length of a DNA
+		 * @param length the length it is stretched to, bigger than curlength
+		 * @return the number of symbols the stretched DNA can need, at least length
+		 */
+		public static int stretchBound(int curlength, int length)
+		{
+			float step = stretchStep(curlength, length);
+			//each step copies the symbols it covers, plus one
+			return length + curlength + (int)(curlength/step) + 4;
+		}
+		
+		private static float stretchStep(int curlength, int length)
+		{
+			float step = curlength/(float)(length-curlength);
+			if (step==0) //happens if we sketch a unique point
+				step = 0.1f;
+			return step;
+		}
+		
+		/**
+		 * Stretches symbols given one per byte, as {@link #stretch(int)} does, without
+		 * making a Dna of them
+		 * @param in the symbols
+		 * @param curlength the number of symbols, smaller than length
+		 * @param length the length to reach
+		 * @param out where the stretched symbols are written, {@link #stretchBound} long
+		 * @return the number of symbols written
+		 */
+		public static int stretch(byte[] in, int curlength, int length, byte[] out)
+		{
+			float step = stretchStep(curlength, length);
+			int o = 0;
+			
+			for (float i=0; i<curlength; i+=step)
+			{
+				if (i+step > curlength)
+				{
+					for (int k=(int)i; k<curlength; ++k)
+						out[o++] = in[k];
 				}
 				else
 				{
-					c = (c+3)%8+1; //computes the reverse direction
-					buf.append(c);
+					byte c = in[(int)(i+step-1)];
+					if (c==PEN_LIFT) //0 should not be repeated, so handled a different way
+					{
+						if (step >= 1)
+						{
+							c = in[Math.max(0, (int)(i+step-2))];
+							for (int k=(int)i; k<(int)(i+step-1); ++k)
+								out[o++] = in[k];
+							out[o++] = c;
+						}
+						out[o++] = PEN_LIFT;
+					}
+					else
+					{
+						for (int k=(int)i; k<(int)(i+step); ++k)
+							out[o++] = in[k];
+						out[o++] = c;
+					}
 				}
 			}
 			
-			return new Dna(out./*reverse().*/toString());
+			//This is to make sure that the stretching gives the right size
+				while (o < length)
+					out[o++] = in[curlength-1];
+			
+			return o;
+		}
+		
+		@Override
+		public boolean equals(Object o)
+		{
+			if (this == o)
+				return true;
+			if (!(o instanceof Dna))
+				return false;
+			Dna other = (Dna)o;
+			return length == other.length && Arrays.equals(packed, other.packed);
+		}
+		
+		@Override
+		public int hashCode()
+		{
+			int h = hash;
+			if (h == 0)
+			{
+				h = length;
+				for (int i=0; i!=packed.length; ++i)
+					h = 31*h + packed[i];
+				hash = h;
+			}
+			return h;
+		}
+		
+		/**
+		 * Lexicographic order of the symbols, then by length
+		 */
+		public int compareTo(Dna o)
+		{
+			int l = Math.min(length, o.length);
+			for (int i=0; i!=l; ++i)
+			{
+				int a = symbolAt(i), b = o.symbolAt(i);
+				if (a != b)
+					return a - b;
+			}
+			return length - o.length;
 		}
 	}
 // ------------------------------------------------------------------------------
@@ -211,12 +612,20 @@ public class Sketch
 	
 	/**
 	 * 
-	 * @return the word representing this Sketch
+	 * @return the word representing this Sketch, in String form
 	 */
 	public String getDna() {
+		return getPackedDna().toString();
+	}
+
+	/**
+	 * 
+	 * @return the word representing this Sketch
+	 */
+	public Dna getPackedDna() {
 		if(dna==null)
 			dna = buildDna(quantizedPoints);
-		return dna.toString();
+		return dna;
 	}
 
 	/* Olivier : DNA should not be changed outside of a sketch
@@ -236,55 +645,63 @@ public class Sketch
 	 * @return
 	 */
 	private static Dna buildDna(ArrayList<Point> quantizedPoints){
-		StringBuilder s = new StringBuilder();
+		byte[] s = new byte[Math.max(0, quantizedPoints.size()-1)];
+		int length = 0;
 		
 		for(int i=0;i<quantizedPoints.size()-1;i++){
+			int symbol = direction(quantizedPoints.get(i), quantizedPoints.get(i+1));
+			if(symbol>=0)
+				s[length++] = (byte)symbol;
+		}
 
-			Point p0 = quantizedPoints.get(i);
-			Point p1 = quantizedPoints.get(i+1);
-			
-			int x0 = p0.x;
-			int y0 = p0.y;
+		return Dna.valueOf(s, length);
+	}
+	
+	/**
+	 * @param p0 a quantized point
+	 * @param p1 the next quantized point
+	 * @return the DNA symbol going from p0 to p1, or -1 if there is none
+	 */
+	public static int direction(Point p0, Point p1){
+		int x0 = p0.x;
+		int y0 = p0.y;
 
-			int x1 = p1.x;
-			int y1 = p1.y;
+		int x1 = p1.x;
+		int y1 = p1.y;
 
-			int x = x1-x0;
-			int y = y1-y0;
+		int x = x1-x0;
+		int y = y1-y0;
 
-			if(x1==-1)
-			{
-				if (x0!=-1)
-					s.append('[');
-			}
-			else if(x1==-2)
-			{
-				if (x0!=-2)
-					s.append(']');
-			}
-			else{
-				if(x>0 && y>0){
-					s.append('4');
-				}else if(x>0 && y==0){
-					s.append('3');
-				}else if(x>0 && y<0){
-					s.append('2');
-				}else if(x==0 && y<0){
-					s.append('1');
-				}else if(x<0 && y<0){				
-					s.append('8');
-				}else if(x<0 && y==0){
-					s.append('7');
-				}else if(x<0 && y>0){
-					s.append('6');
-				}else if(x==0 && y>0){
-					s.append('5');
-				}
+		if(x1==-1)
+		{
+			if (x0!=-1)
+				return Dna.PEN_UP;
+		}
+		else if(x1==-2)
+		{
+			if (x0!=-2)
+				return Dna.PEN_DOWN;
+		}
+		else{
+			if(x>0 && y>0){
+				return 4;
+			}else if(x>0 && y==0){
+				return 3;
+			}else if(x>0 && y<0){
+				return 2;
+			}else if(x==0 && y<0){
+				return 1;
+			}else if(x<0 && y<0){				
+				return 8;
+			}else if(x<0 && y==0){
+				return 7;
+			}else if(x<0 && y>0){
+				return 6;
+			}else if(x==0 && y>0){
+				return 5;
 			}
 		}
-
-
-		return new Dna(s.toString());
+		return -1;
 	}
 	
 	/**
@@ -21,10 +21,19 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.InvalidPropertiesFormatException;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.eclipse.core.resources.ResourcesPlugin;
-import org.eclipse.gmf.runtime.emf.type.core.IElementType;
+import org.eclipse.sketch.Sketch.Dna;
+import org.eclipse.sketch.util.BKTree;
+import org.eclipse.sketch.util.DnaClusters;
+import org.eclipse.sketch.util.DnaTrie;
+import org.eclipse.sketch.util.MinHashIndex;
 
 
 
@@ -32,52 +41,167 @@ import org.eclipse.gmf.runtime.emf.type.core.IElementType;
  * Very basic implementation of a Sketch database, using properties and storing ONLY the sketched in string form (based on
  * work from Adrien Coyette, Sascha Schimke, Jean Vanderdonckt, and Claus Vielhauer - http://www.isys.ucl.ac.be/bchi/publications/2007/Schimke-Interact2007.pdf).
  *
+ * The bank can be read from any thread without locking through its snapshots (see
+ * {@link BankSnapshot}); the changes are serialized, each one publishing a new snapshot.
+ *
+ * The bank is stored both as XML and as a binary bank next to it (see {@link MappedBank}),
+ * which is mapped at startup rather than parsed; the XML is only read when it is newer, as
+ * when a bank is copied from someone else.
+ *
+ * The bank stored on the disk is read in the background as soon as the instance is made
+ * (see the Activator), the bank staying usable meanwhile: what is taught before it is read
+ * is merged with it. Those who need it whole wait for {@link #getReady()}. Without a
+ * workspace, getReady() fails and the bank is only kept in memory.
+ *
  * TODO: store the whole Sketch object - bug https://bugs.eclipse.org/bugs/show_bug.cgi?id=312513.
  * @author  Ugo Sangiorgi
  */
 public class SketchBank {
 
+	//the XML bank in the workspace, resolved by the thread reading the bank, see location()
 	String path;
-	//String path = "/home/ugo/runtime-shapes.product/sketches.xml";
 	
 	
-	//Types defined by Object. Usually an IElementType or a plain String 
-	public ArrayList types = new ArrayList();
+	//the bank as the readers see it, replaced as a whole by each change, see getSnapshot()
+	private volatile BankSnapshot snapshot = BankSnapshot.empty();
+
+	//largest number of words per type, 0 for no limit, see setCapacity()
+	private static volatile int capacity = 0;
+
+	//separates a word taught more than once from its number in the XML bank, see toProperties()
+	static final char REPEAT = '#';
+
+	//number of records in the journal from which a new snapshot is written, see compact()
+	private static final int COMPACT_RECORDS = 1000;
 
-	//all the words associated with a type, represented by its name, in case of IElementType, or itself in case of a String
-	public static HashMap<String, ArrayList<String>> maps = new HashMap<String, ArrayList<String>>();
+	//changes since the snapshot at path
+	private BankJournal journal;
+	//writes the changes in the background
+	private BankWriter writer;
+	//records written or queued since the last snapshot
+	private int journaled;
+	//the bank stored on the disk was read, and can be replaced by a snapshot
+	private boolean loaded;
+	//done once the bank stored on the disk is read
+	private final Future<?> ready;
 
-	private static SketchBank instance;
+	private static volatile SketchBank instance;
 
 	public static SketchBank getInstance() {
-		if (instance == null)
-			instance = new SketchBank();
+		if (instance == null) {
+			synchronized (SketchBank.class) {
+				if (instance == null)
+					instance = new SketchBank();
+			}
+		}
 
 		return instance;
 	}
 
 	private SketchBank()
 	{
-		try{
-			path = ResourcesPlugin.getWorkspace().getRoot().getLocation().toString() + File.separator + "sketches.xml";
+		writer = new BankWriter();
+		//the workspace is only asked for its location from the thread of the writer, so that
+		//the plug-in starts without waiting for it; the bank at the disk is read from there
+		//as well, so that nothing is written to the journal before it is replayed
+		ready = writer.execute(new Runnable() {
+			public void run() {
+				try {
+					path = location();
+				} catch (IllegalStateException e) {
+					//reported once: the bank stays usable, but only in memory
+					e.printStackTrace();
+					throw e;
+				}
+				journal = new BankJournal(new File(path + ".journal"));
+				writer.open(journal, new File(path), new File(path + ".bank"));
+				load();
+			}
+		});
+		
+	}
+
+	/**
+	 * @return the path of the XML bank in the workspace
+	 * @throws IllegalStateException if there is no workspace
+	 */
+	private static String location() {
+		try {
+			return ResourcesPlugin.getWorkspace().getRoot().getLocation().toString() + File.separator + "sketches.xml";
+		} catch (Exception e) {
+			throw new IllegalStateException("No workspace to store the sketch bank in, the sketches taught will be lost", e);
 		}
-		catch (Exception e)
-		{
-			//FIXME debug, should be removed before june 2011
-			path = "/home/olivier/Dropbox/cpme/mémoire/sketches_sketchi.xml";
+	}
+
+	/**
+	 * @return a future done once the bank stored on the disk is read and merged with the bank
+	 * in memory
+	 */
+	public Future<?> getReady() {
+		return ready;
+	}
+
+	/**
+	 * @return true if the bank stored on the disk is read
+	 */
+	public boolean isLoaded() {
+		return ready.isDone();
+	}
+
+	/**
+	 * Waits for the bank stored on the disk to be read
+	 * @param timeout
+	 * @param unit
+	 * @return true if it is read, false if it is still being read after the timeout
+	 */
+	public boolean awaitLoaded(long timeout, TimeUnit unit) {
+		try {
+			ready.get(timeout, unit);
+			return true;
+		} catch (TimeoutException e) {
+			return false;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} catch (ExecutionException e) {
+			//the bank stays as it is in memory, the failure was reported by the thread reading it
+			return true;
 		}
-		//if there is a bank already at the disk, fill the maps
-		fetch();
-		
 	}
 
+	/**
+	 * Runs a task once the bank stored on the disk is read: at once if it is already,
+	 * otherwise from the thread reading it, so the task should be short (as a
+	 * Display.asyncExec() to refresh a view).
+	 * @param task
+	 */
+	public void whenLoaded(Runnable task) {
+		if (isLoaded())
+			task.run();
+		else
+			writer.execute(task);
+	}
+
+	/**
+	 * @return the bank as it is now, which will never change: a recognizer should read all
+	 * it needs from a single snapshot, to see the types and the sketches of the same version
+	 */
+	public BankSnapshot getSnapshot() {
+		return snapshot;
+	}
+
+	/**
+	 * Removes all the sketches, keeping the types. Waits for the bank stored on the disk to
+	 * be read, since it would be merged back otherwise.
+	 */
 	public void reset(){
-		File f = new File(path);
-		f.delete();
-		
-		
-		maps = new HashMap<String, ArrayList<String>>();
-		dump();
+		fetch();
+		synchronized (this) {
+			BankSnapshot.Builder next = new BankSnapshot.Builder(snapshot);
+			next.reset();
+			snapshot = next.build();
+			compact();
+		}
 		
 	}
 	
@@ -85,100 +209,431 @@ public class SketchBank {
 	 * SketchTool classes set their recognizable types using this method
 	 * @param t
 	 */
-	public void setTypes(ArrayList t) {
+	public synchronized void setTypes(ArrayList t) {
 		
 		//merge the already existing types in the properties file, with those
+		BankSnapshot.Builder next = new BankSnapshot.Builder(snapshot);
+		boolean changed = false;
 		for(int i=0;i<t.size();i++){
 			Object newType = t.get(i);
-			if(!types.contains(getName(newType))){
-				types.add(getName(newType));
-				maps.put(getName(newType), new ArrayList<String>());
+			if(!snapshot.getTypes().contains(getName(newType))){
+				next.declare(getName(newType));
+				changed = true;
 			}
 		}		
+		if (changed)
+			snapshot = next.build();
 
 	}
 	
+	/**
+	 * @return a copy of the names of the types
+	 */
 	public ArrayList<Object> getAvailableTypes(){
-		return types;
+		return new ArrayList<Object>(snapshot.getTypes());
 	}
 
-	public ArrayList<String> getSketches(Object type) {
-		return maps.get(getName(type));
+	/**
+	 * @param type
+	 * @return the sketches of a type in the current snapshot, see getSnapshot()
+	 */
+	public List<Dna> getSketches(Object type) {
+		return snapshot.getSketches(type);
 	}
 
-	public void insert(Object type){
-
-		if(!this.types.contains(getName(type))){
-			this.types.add(getName(type));
-		}
-			
-		maps.put(getName(type), new ArrayList<String>());
+	/**
+	 * Adds a type, or removes all the sketches of a type already known
+	 * @param type
+	 */
+	public synchronized void insert(Object type){
+		BankSnapshot.Builder next = new BankSnapshot.Builder(snapshot);
+		next.clear(getName(type));
+		snapshot = next.build();
+		record(BankJournal.insertRecord(getName(type)));
 	}
 	
+	/**
+	 * @param type
+	 * @param dna a word in String form, as stored on the disk
+	 */
 	public void add(Object type, String dna) {
-		maps.get(getName(type)).add(dna);
+		add(type, new Dna(dna));
+	}
+
+	public synchronized void add(Object type, Dna dna) {
+		BankSnapshot.Builder next = new BankSnapshot.Builder(snapshot);
+		next.declare(getName(type));
+		next.add(getName(type), dna);
+		snapshot = next.build();
+		record(BankJournal.addRecord(getName(type), dna));
+	}
+
+	/**
+	 * Replaces all the words of a type
+	 * @param type
+	 * @param sketches the words to keep
+	 */
+	public synchronized void replace(Object type, List<Dna> sketches) {
+		BankSnapshot.Builder next = new BankSnapshot.Builder(snapshot);
+		next.clear(getName(type));
+		for (Dna dna : sketches)
+			next.add(getName(type), dna);
+		snapshot = next.build();
+		record(BankJournal.insertRecord(getName(type)));
+		for (Dna dna : sketches)
+			record(BankJournal.addRecord(getName(type), dna));
+	}
+
+	/**
+	 * Removes words of a type, as done when the bank is capped, as long as the type holds
+	 * more than capacity words. The words added since the ones to remove were chosen are
+	 * kept, the choice being made away from the lock.
+	 * @param type
+	 * @param sketches the words to remove, the first ones first
+	 * @param capacity the number of words of the type under which nothing more is removed
+	 */
+	public synchronized void evict(Object type, List<Dna> sketches, int capacity) {
+		List<Dna> current = snapshot.getSketches(getName(type));
+		if (current == null)
+			return;
+		//the number of times each word is in the type, then the number of times to remove it
+		HashMap<Dna, Integer> left = new HashMap<Dna, Integer>();
+		for (Dna dna : current) {
+			Integer count = left.get(dna);
+			left.put(dna, count == null ? 1 : count + 1);
+		}
+		HashMap<Dna, Integer> removed = new HashMap<Dna, Integer>();
+		int size = current.size();
+		for (Dna dna : sketches) {
+			if (size <= capacity)
+				break;
+			Integer count = left.get(dna);
+			if (count == null || count == 0)
+				continue;
+			left.put(dna, count - 1);
+			Integer times = removed.get(dna);
+			removed.put(dna, times == null ? 1 : times + 1);
+			size--;
+		}
+		if (size == current.size())
+			return;
+		//the first occurrences of a word are removed
+		ArrayList<Dna> kept = new ArrayList<Dna>(size);
+		for (Dna dna : current) {
+			Integer times = removed.get(dna);
+			if (times != null && times > 0)
+				removed.put(dna, times - 1);
+			else
+				kept.add(dna);
+		}
+		replace(type, kept);
+	}
+
+	/**
+	 * Removes words of a type, as done when the bank is condensed. The words added since
+	 * the ones to remove were chosen are kept, the choice being made away from the lock.
+	 * @param type
+	 * @param sketches the words to remove, a word taught more than once being removed as
+	 * many times as it is listed
+	 */
+	public void remove(Object type, List<Dna> sketches) {
+		evict(type, sketches, 0);
+	}
+
+	/**
+	 * @return the largest number of words kept per type when a sketch is added from the UI,
+	 * 0 when the bank grows without limit
+	 */
+	public static int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @param c the largest number of words kept per type, the least useful ones being
+	 * evicted, see BankCondenser; 0 for no limit
+	 */
+	public static void setCapacity(int c) {
+		capacity = c;
+	}
+
+	/**
+	 * @return a number that changes each time a word or a type is added, or the bank is reset,
+	 * so that results computed from the bank can tell whether they are still valid
+	 */
+	public long getGeneration() {
+		return snapshot.getVersion();
+	}
+
+	/**
+	 * @param type
+	 * @return the sketches of a type with their rotations precomputed, in the current snapshot
+	 */
+	public List<SketchTemplate> getTemplates(Object type) {
+		return snapshot.getTemplates(type);
+	}
+
+	/**
+	 * @param type
+	 * @return an edit distance index over the sketches of a type, in the current snapshot
+	 */
+	public BKTree<Dna> getIndex(Object type) {
+		return snapshot.getIndex(type);
+	}
+
+	/**
+	 * @param type
+	 * @return a prefix tree of the sketches of a type, in the current snapshot
+	 */
+	public DnaTrie getTrie(Object type) {
+		return snapshot.getTrie(type);
+	}
+
+	/**
+	 * @param type
+	 * @return a locality sensitive index of the sketches of a type, in the current snapshot
+	 */
+	public MinHashIndex getHashIndex(Object type) {
+		return snapshot.getHashIndex(type);
 	}
 
+	/**
+	 * @param type
+	 * @return the sketches of a type grouped around medoids, in the current snapshot
+	 */
+	public DnaClusters getClusters(Object type) {
+		return snapshot.getClusters(type);
+	}
+
+	private void record(String record) {
+		writer.append(record);
+		if (++journaled >= COMPACT_RECORDS && loaded)
+			compact();
+	}
+
+	/**
+	 * Asks for the changes to the bank to be written within the write window, without
+	 * waiting for them to be, see flush(). The bank in memory stays authoritative: there is
+	 * no need to fetch() it afterwards.
+	 */
 	public void dump() {
-		OutputStream out = null;
-		try {
+		writer.schedule();
+	}
+
+	/**
+	 * @return a future done once the changes made to the bank so far are on the disk
+	 */
+	public Future<?> flush() {
+		return writer.flush();
+	}
+
+	/**
+	 * @return the time the changes to the bank are gathered before being written, in milliseconds
+	 */
+	public long getWriteWindow() {
+		return writer.getWindow();
+	}
+
+	public void setWriteWindow(long milliseconds) {
+		writer.setWindow(milliseconds);
+	}
+
+	/**
+	 * Queues a snapshot of the whole bank, which empties the journal once written. Done every
+	 * COMPACT_RECORDS changes, so that the journal to replay at startup stays short.
+	 * Until the bank stored on the disk is read, the snapshot would miss it: nothing is
+	 * done, the bank being compacted once read if it was changed meanwhile.
+	 */
+	public synchronized void compact() {
+		if (!loaded)
+			return;
+		writer.snapshot(snapshot);
+		journaled = 0;
+	}
+
+	/**
+	 * @param bank
+	 * @return the type of each word of a snapshot, as stored in the XML bank: a word taught
+	 * more than once, to the same type or to another, is keyed by the DNA followed by
+	 * REPEAT and the number of times it was seen before, see toWord()
+	 */
+	static Properties toProperties(BankSnapshot bank) {
+		Properties properties = new Properties();
+		HashMap<String, Integer> repeats = new HashMap<String, Integer>();
+		for (int i = 0; i < bank.getTypes().size(); i++) {
+			Object type = bank.getTypes().get(i);
+			//the mapped words are not kept as Dnas in the snapshot for this
+			MappedBank.Words words = bank.getWords(type);
+			if(words != null){
+				for (int j = 0; j < words.size(); j++)
+					put(properties, repeats, words.getDna(j).toString(), BankSnapshot.getName(type));
+			}
+			List<Dna> sketches = words == null ? bank.getSketches(type) : bank.getAppended(type);
+			if(sketches != null){
+				for (int j = 0; j < sketches.size(); j++) {
+				
+					put(properties, repeats, sketches.get(j).toString(), BankSnapshot.getName(type));
+				
 
-			Properties properties = new Properties();
-			for (int i = 0; i < types.size(); i++) {
-				Object type = types.get(i);
-				ArrayList<String> sketches = getSketches(getName(type));
-				if(sketches != null){
-					for (int j = 0; j < sketches.size(); j++) {
-					
-						properties.put(sketches.get(j), getName(type));
-					
-
-					}
 				}
 			}
+		}
+		return properties;
+	}
 
-			
-			out = new FileOutputStream(path);
-			properties.storeToXML(out, "Generated by Eclipse Sketch - sketches made by "
-					+ System.getProperty("user.name"));
+	private static void put(Properties properties, HashMap<String, Integer> repeats, String word, String type) {
+		Integer seen = repeats.get(word);
+		if (seen == null) {
+			properties.put(word, type);
+			repeats.put(word, 1);
+		} else {
+			properties.put(word + REPEAT + seen, type);
+			repeats.put(word, seen + 1);
+		}
+	}
+
+	/**
+	 * @param key a key of the XML bank
+	 * @return the DNA of the word, without the number of a repeated word
+	 */
+	static String toWord(String key) {
+		int repeat = key.indexOf(REPEAT);
+		return repeat < 0 ? key : key.substring(0, repeat);
+	}
 
+	/**
+	 * Writes the bank as it is now to an XML file, as the one stored in the workspace
+	 * @param file
+	 * @throws IOException
+	 */
+	public void exportXml(File file) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		try {
+			toProperties(snapshot).storeToXML(out, "Generated by Eclipse Sketch - sketches made by "
+					+ System.getProperty("user.name"));
+		} finally {
 			out.close();
-		} catch (Exception e) {
-			e.printStackTrace();
 		}
 	}
 
+	/**
+	 * Adds the sketches of an XML file to the bank, as they are: those it already has are
+	 * taught again, as when they are drawn again
+	 * @param file
+	 */
+	public synchronized void importXml(File file) {
+		loadSnapshot(file, new BankJournal.Replay() {
+			public void insert(String type) {
+			}
+			public void add(String type, Dna dna) {
+				SketchBank.this.add(type, dna);
+			}
+		});
+	}
+
+	/**
+	 * Waits for the bank stored on the disk to be read, see getReady(). It is read once, in
+	 * the background, as soon as the instance is made: afterwards the bank in memory is
+	 * authoritative, and holds everything written.
+	 */
 	public void fetch() {
+		awaitLoaded(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Reads the bank stored on the disk, the snapshot then the records of the journal, then
+	 * merges it with the sketches taught meanwhile. Only the merge holds the lock of the bank.
+	 *
+	 * The binary snapshot is mapped rather than the XML one parsed, unless the XML one is
+	 * newer or the binary one cannot be read.
+	 */
+	private void load() {
+		final BankSnapshot.Builder next = new BankSnapshot.Builder(BankSnapshot.empty());
+		//fills the next snapshot without writing the journal again
+		BankJournal.Replay replay = new BankJournal.Replay() {
+			public void insert(String type) {
+				next.clear(type);
+			}
+			public void add(String type, Dna dna) {
+				next.declare(type);
+				next.add(type, dna);
+			}
+		};
+		File xml = new File(path);
+		File binary = new File(path + ".bank");
+		if (!binary.exists() || binary.lastModified() < xml.lastModified() || !mapSnapshot(binary, next, replay))
+			loadSnapshot(xml, replay);
+		journal.replay(replay, true);
+		BankSnapshot stored = next.build();
+
+		synchronized (this) {
+			BankSnapshot.Builder merged = new BankSnapshot.Builder(snapshot);
+			merged.merge(stored);
+			snapshot = merged.build();
+			//the records taught meanwhile were made without the bank stored
+			boolean changed = journaled > 0;
+			journaled += journal.getRecords();
+			loaded = true;
+			if (changed || journaled >= COMPACT_RECORDS)
+				compact();
+		}
+	}
 
+	/**
+	 * @return false if the binary snapshot cannot be read
+	 */
+	private boolean mapSnapshot(File snapshot, BankSnapshot.Builder next, BankJournal.Replay replay) {
+		MappedBank bank;
 		try {
-			InputStream in = new FileInputStream(path);
+			bank = MappedBank.open(snapshot);
+		} catch (IOException e) {
+			System.err.println("Ignoring the binary sketch bank: "+e.getMessage());
+			return false;
+		}
+		for (int t = 0; t < bank.getTypes().size(); t++) {
+			String type = bank.getTypes().get(t);
+			MappedBank.Words words = bank.getWords(t);
+			if (next.size(type) == 0) {
+				next.map(type, words);
+			} else {
+				for (int i = 0; i < words.size(); i++)
+					replay.add(type, words.getDna(i));
+			}
+		}
+		return true;
+	}
+
+	private void loadSnapshot(File snapshot, BankJournal.Replay replay) {
+
+		try {
+			InputStream in = new FileInputStream(snapshot);
 			
 			Properties properties = new Properties();
-			properties.loadFromXML(in);
-
+			try {
+				properties.loadFromXML(in);
+			} finally {
+				in.close();
+			}
 			Iterator it = properties.keySet().iterator();
 
 			while (it.hasNext()) {
-				String sketch = (String) it.next();
+				String key = (String) it.next();
 
-				String type = properties.getProperty(sketch);
-				
-				ArrayList<String> sketches = maps.get(getName(type));
-				if(sketches==null){
-					sketches = new ArrayList<String>();
-					sketches.add(sketch);
-					insert((Object)type);
-					maps.put(type, sketches);
-					
-				}else{
-					if(!sketches.contains(sketch))
-						sketches.add(sketch);						
+				String type = properties.getProperty(key);
+				String word = toWord(key);
+				Dna sketch;
+				try {
+					sketch = new Dna(word);
+				} catch (IllegalArgumentException e) {
+					System.err.println("Ignoring a sketch that is not a DNA: "+word);
+					continue;
 				}
 				
+				replay.add(type, sketch);
+				
 			}
 
 		} catch (FileNotFoundException e) {
-			dump();
+			//nothing was stored yet
 		} catch (InvalidPropertiesFormatException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
@@ -192,11 +647,7 @@ public class SketchBank {
 	
 	
 	public String getName(Object type){
-		if(type instanceof IElementType)
-			return ((IElementType)type).getDisplayName();
-		else
-			return (String)type;
-		
+		return BankSnapshot.getName(type);
 	}
 	
 	
@@ -218,7 +669,7 @@ public class SketchBank {
 		SketchBank.getInstance().fetch();
 		
 		SketchBank.getInstance().add("Circle", "3423423423");
-		SketchBank.getInstance().dump();
+		SketchBank.getInstance().flush().get();
 		
 		
 		
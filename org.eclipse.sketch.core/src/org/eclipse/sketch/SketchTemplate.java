@@ -0,0 +1,296 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Ugo Sangiorgi and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *  Ugo Sangiorgi <ugo.sangiorgi@gmail.com> - Initial contribution
+ *******************************************************************************/
+package org.eclipse.sketch;
+
+import org.eclipse.sketch.Sketch.Dna;
+import org.eclipse.sketch.chain.BitParallelLevenshtein;
+import org.eclipse.sketch.exceptions.IllegalLengthException;
+
+/**
+ * A word of the SketchBank, with what every recognition needs precomputed when it is
+ * inserted: its 4 orientations (0, 90, 180 and 270 degrees), its {@link DnaProfile} and,
+ * memoized on demand, the same for the last few lengths it was stretched to.
+ *
+ * What only some modes of the recognizer use is computed the first time they ask for it,
+ * and kept: its canonical form (see {@link Dna#canonical()}), whether it is closed, the
+ * run-length forms of its orientations (see {@link RunLengthDna}), its orientations
+ * compiled as patterns for the {@link org.eclipse.sketch.chain.IncrementalMatcher}, and its pyramid: the
+ * same word quantized on grids 2 and 4 times bigger (see {@link Dna#coarsen(int)}), as
+ * templates of their own, for a first cheaper comparison.
+ */
+public class SketchTemplate
+{
+	//number of stretched lengths remembered by each template
+	private static final int STRETCH_SLOTS = 4;
+	/** grid factors of the levels of the pyramid, from the finest to the coarsest */
+	public static final int[] PYRAMID = {2, 4};
+
+	private final Dna dna;
+	private final Dna[] rotations = new Dna[4];
+	private final DnaProfile profile;
+	//computed when they are asked for, see getCanonical(), isClosed() and getCoarse()
+	private Dna canonical;
+	private Boolean closed;
+	private RunLengthDna[] runLengths;
+	private DnaProfile runLengthProfile;
+	private BitParallelLevenshtein[] patterns;
+	//the coarse levels of the word, none for a level itself
+	private final SketchTemplate[] pyramid;
+
+	private final int[] stretchLengths = new int[STRETCH_SLOTS];
+	private final Dna[][] stretchRotations = new Dna[STRETCH_SLOTS][];
+	private final DnaProfile[] stretchProfiles = new DnaProfile[STRETCH_SLOTS];
+	//stretched only when they are asked for
+	private final Dna[] stretchCanonicals = new Dna[STRETCH_SLOTS];
+	private final long[] stretchUses = new long[STRETCH_SLOTS];
+	//the run-length forms are stretched apart, without filling the slots above
+	private final int[] runLengthLengths = new int[STRETCH_SLOTS];
+	private final RunLengthDna[][] stretchRunLengths = new RunLengthDna[STRETCH_SLOTS][];
+	private final DnaProfile[] runLengthProfiles = new DnaProfile[STRETCH_SLOTS];
+	private final long[] runLengthUses = new long[STRETCH_SLOTS];
+	private long uses;
+
+	public SketchTemplate(Dna dna)
+	{
+		this(dna, true);
+	}
+
+	private SketchTemplate(Dna dna, boolean withPyramid)
+	{
+		this.dna = dna;
+		rotations[0] = dna;
+		for (int i=1; i!=4; ++i)
+			rotations[i] = rotations[i-1].rotate90();
+		profile = new DnaProfile(dna);
+		pyramid = new SketchTemplate[withPyramid ? PYRAMID.length : 0];
+	}
+
+	/**
+	 * @return the word, as stored in the bank
+	 */
+	public Dna getDna()
+	{
+		return dna;
+	}
+
+	public int length()
+	{
+		return dna.length();
+	}
+
+	/**
+	 * @param quarter number of 90 degrees rotations, from 0 to 3
+	 * @return the word rotated
+	 */
+	public Dna getRotation(int quarter)
+	{
+		return rotations[quarter];
+	}
+
+	/**
+	 * @param quarter number of 90 degrees rotations, from 0 to 3
+	 * @return a new column of the edit distance matrix between the word rotated and a text
+	 * given one symbol at a time, the word being compiled once for all the columns
+	 */
+	public synchronized BitParallelLevenshtein.Column newColumn(int quarter)
+	{
+		if (patterns == null)
+		{
+			patterns = new BitParallelLevenshtein[4];
+			for (int i=0; i!=4; ++i)
+				patterns[i] = new BitParallelLevenshtein(rotations[i]);
+		}
+		return patterns[quarter].newColumn();
+	}
+
+	/**
+	 * @param level index of a level in {@link #PYRAMID}
+	 * @return the word quantized on a coarser grid, as a template
+	 */
+	public synchronized SketchTemplate getCoarse(int level)
+	{
+		if (pyramid[level] == null)
+			pyramid[level] = new SketchTemplate(dna.coarsen(PYRAMID[level]), false);
+		return pyramid[level];
+	}
+
+	/**
+	 * @return true if the word is a closed stroke, see {@link Dna#isClosed()}
+	 */
+	public synchronized boolean isClosed()
+	{
+		if (closed == null)
+			closed = Boolean.valueOf(dna.isClosed());
+		return closed.booleanValue();
+	}
+
+	/**
+	 * @return the canonical form of the word
+	 */
+	public synchronized Dna getCanonical()
+	{
+		if (canonical == null)
+			canonical = dna.canonical();
+		return canonical;
+	}
+
+	/**
+	 * @param length the length to reach, not smaller than the length of the word
+	 * @return the canonical form of the word, stretched to a given length
+	 * @throws IllegalLengthException when the length is smaller than the word
+	 */
+	public synchronized Dna getStretchedCanonical(int length) throws IllegalLengthException
+	{
+		if (length == dna.length())
+			return getCanonical();
+
+		int slot = stretchSlot(length);
+		if (stretchCanonicals[slot] == null)
+			stretchCanonicals[slot] = getCanonical().stretch(length);
+		return stretchCanonicals[slot];
+	}
+
+	/**
+	 * The 4 orientations of this word stretched to a given length. Stretching and rotating
+	 * can be done in any order, so only the stretching is computed, once per length.
+	 * @param length the length to reach, not smaller than the length of the word
+	 * @return the 4 orientations of the stretched word, do not modify
+	 * @throws IllegalLengthException when the length is smaller than the word
+	 */
+	public synchronized Dna[] getStretchedRotations(int length) throws IllegalLengthException
+	{
+		if (length == dna.length())
+			return rotations;
+		return stretchRotations[stretchSlot(length)];
+	}
+
+	/**
+	 * The run-length forms are stretched from the run-length form of the word, so the
+	 * stretched words in symbols are not made for them.
+	 * @param length the length to reach, not smaller than the length of the word
+	 * @return the run-length forms of the 4 orientations of the stretched word, do not modify
+	 * @throws IllegalLengthException when the length is smaller than the word
+	 */
+	public synchronized RunLengthDna[] getStretchedRunLengths(int length) throws IllegalLengthException
+	{
+		if (length == dna.length())
+			return getRunLengths();
+		return stretchRunLengths[runLengthSlot(length)];
+	}
+
+	/**
+	 * @param length the length to reach, not smaller than the length of the word
+	 * @return the profile of the word stretched to a given length, in its first orientation,
+	 * counted on its run-length form
+	 * @throws IllegalLengthException when the length is smaller than the word
+	 */
+	public synchronized DnaProfile getStretchedRunLengthProfile(int length) throws IllegalLengthException
+	{
+		if (length == dna.length())
+		{
+			if (runLengthProfile == null)
+				runLengthProfile = new DnaProfile(getRunLengths()[0]);
+			return runLengthProfile;
+		}
+		return runLengthProfiles[runLengthSlot(length)];
+	}
+
+	private RunLengthDna[] getRunLengths()
+	{
+		if (runLengths == null)
+			runLengths = rotations(new RunLengthDna(dna));
+		return runLengths;
+	}
+
+	private static RunLengthDna[] rotations(RunLengthDna runs)
+	{
+		RunLengthDna[] rotated = new RunLengthDna[4];
+		rotated[0] = runs;
+		for (int i=1; i!=4; ++i)
+			rotated[i] = rotated[i-1].rotate90();
+		return rotated;
+	}
+
+	/**
+	 * @param length the length to reach, not smaller than the length of the word
+	 * @return the profile of the word stretched to a given length, in its first orientation
+	 * @throws IllegalLengthException when the length is smaller than the word
+	 */
+	public synchronized DnaProfile getStretchedProfile(int length) throws IllegalLengthException
+	{
+		if (length == dna.length())
+			return profile;
+		return stretchProfiles[stretchSlot(length)];
+	}
+
+	/**
+	 * @return the slot holding the word stretched to length, filled if it was not there
+	 */
+	private int stretchSlot(int length) throws IllegalLengthException
+	{
+		uses++;
+		int lru = 0;
+		for (int i=0; i!=STRETCH_SLOTS; ++i)
+		{
+			if (stretchRotations[i] != null && stretchLengths[i] == length)
+			{
+				stretchUses[i] = uses;
+				return i;
+			}
+			if (stretchUses[i] < stretchUses[lru])
+				lru = i;
+		}
+
+		Dna[] stretched = new Dna[4];
+		stretched[0] = dna.stretch(length);
+		for (int i=1; i!=4; ++i)
+			stretched[i] = stretched[i-1].rotate90();
+
+		stretchLengths[lru] = length;
+		stretchRotations[lru] = stretched;
+		stretchProfiles[lru] = new DnaProfile(stretched[0]);
+		stretchCanonicals[lru] = null;
+		stretchUses[lru] = uses;
+		return lru;
+	}
+
+	/**
+	 * @return the slot holding the run-length forms stretched to length, filled if they were not there
+	 */
+	private int runLengthSlot(int length) throws IllegalLengthException
+	{
+		uses++;
+		int lru = 0;
+		for (int i=0; i!=STRETCH_SLOTS; ++i)
+		{
+			if (stretchRunLengths[i] != null && runLengthLengths[i] == length)
+			{
+				runLengthUses[i] = uses;
+				return i;
+			}
+			if (runLengthUses[i] < runLengthUses[lru])
+				lru = i;
+		}
+
+		RunLengthDna[] stretched = rotations(getRunLengths()[0].stretch(length));
+		runLengthLengths[lru] = length;
+		stretchRunLengths[lru] = stretched;
+		runLengthProfiles[lru] = new DnaProfile(stretched[0]);
+		runLengthUses[lru] = uses;
+		return lru;
+	}
+
+	@Override
+	public String toString()
+	{
+		return dna.toString();
+	}
+}
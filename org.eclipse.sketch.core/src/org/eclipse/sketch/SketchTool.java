@@ -18,6 +18,8 @@ import org.eclipse.draw2d.geometry.Point;
 import org.eclipse.gef.tools.AbstractTool;
 import org.eclipse.gmf.runtime.diagram.ui.parts.DiagramEditor;
 import org.eclipse.gmf.runtime.emf.type.core.IElementType;
+import org.eclipse.sketch.chain.IncrementalMatcher;
+import org.eclipse.sketch.chain.LevenshteinHandler;
 import org.eclipse.sketch.clientobserver.ISketchListener;
 import org.eclipse.sketch.ui.views.SketchRecognizerControlView;
 import org.eclipse.swt.SWT;
@@ -40,6 +42,13 @@ public abstract class SketchTool extends AbstractTool{
 
 	private ArrayList<Point> quantizedPoints = new ArrayList<Point>();
 	
+	//compares the current sketch with the bank as it is drawn, in INCREMENTAL mode only
+	private IncrementalMatcher matcher;
+	//index of the first quantized point whose symbol was not given to the matcher
+	private int matchedPoints;
+	//the symbols given to the matcher at once, see feedMatcher()
+	private byte[] matchedSymbols = new byte[16];
+	
 	protected SketchManager manager = new SketchManager();
 
 	private MonitorThread thread = new MonitorThread(Display.getCurrent());
@@ -157,6 +166,7 @@ public abstract class SketchTool extends AbstractTool{
 		addQP(qp, SketchTool.NODRAW_POINT);
 		if (must_draw_begin)
 			quantizedPoints.add(new Point(-2,-2));
+		feedMatcher();
 
 		points.add(getLocation());
 		
@@ -239,6 +249,41 @@ public abstract class SketchTool extends AbstractTool{
 				gc.drawRectangle(qp.x*grid,qp.y*grid,2,2);
 				gc.setForeground(color);
 			}
+			
+			feedMatcher();
+	}
+	
+	/**
+	 * Gives the matcher the DNA symbols of the quantized points added since the last call,
+	 * the same way {@link Sketch} builds its DNA. The matcher compares them with the bank
+	 * from its own thread, not from the UI thread.
+	 */
+	private void feedMatcher()
+	{
+		if (LevenshteinHandler.getMode() != LevenshteinHandler.Mode.INCREMENTAL)
+			return;
+		
+		if (matcher == null)
+		{
+			matcher = new IncrementalMatcher();
+			matchedPoints = 1;
+		}
+		int count = 0;
+		for (; matchedPoints<quantizedPoints.size(); matchedPoints++)
+		{
+			int symbol = Sketch.direction(quantizedPoints.get(matchedPoints-1), quantizedPoints.get(matchedPoints));
+			if (symbol < 0)
+				continue;
+			if (count == matchedSymbols.length)
+			{
+				byte[] s = new byte[count*2];
+				System.arraycopy(matchedSymbols, 0, s, 0, count);
+				matchedSymbols = s;
+			}
+			matchedSymbols[count++] = (byte)symbol;
+		}
+		if (count > 0)
+			matcher.feed(matchedSymbols, count);
 	}
 	
 	@Override
@@ -248,6 +293,7 @@ public abstract class SketchTool extends AbstractTool{
 	
 		points.add(new Point(-1,-1));
 		quantizedPoints.add(new Point(-1,-1));
+		feedMatcher();
 						
 		return super.handleButtonUp(button);
 	}
@@ -264,6 +310,7 @@ public abstract class SketchTool extends AbstractTool{
 		quantizedPoints = new ArrayList<Point>();
 		
 		prev_qp = null;
+		matcher = null;
 		
 		penuptime = -1;
 	}
@@ -304,6 +351,8 @@ public abstract class SketchTool extends AbstractTool{
 
 								sketch.setPoints(points);
 								sketch.setQuantizedPoints(quantizedPoints);
+								if (matcher != null)
+									sketch.getResult().put(IncrementalMatcher.MATCHER_RESULT_KEY, matcher);
 
 								manager.newSketch(sketch);
 
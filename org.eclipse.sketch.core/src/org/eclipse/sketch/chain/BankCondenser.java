@@ -0,0 +1,589 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Ugo Sangiorgi and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *  Ugo Sangiorgi <ugo.sangiorgi@gmail.com> - Initial contribution
+ *******************************************************************************/
+package org.eclipse.sketch.chain;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.eclipse.sketch.BankSnapshot;
+import org.eclipse.sketch.SketchBank;
+import org.eclipse.sketch.SketchTemplate;
+import org.eclipse.sketch.Sketch.Dna;
+import org.eclipse.sketch.exceptions.IllegalLengthException;
+
+/**
+ * Shrinks the SketchBank by keeping only the sketches needed to recognize the others, so
+ * that the bank stops growing with every confirmed sketch:
+ * <ul>
+ * <li>editing (D. Wilson, "Asymptotic properties of nearest neighbor rules using edited
+ * data", 1972) drops the sketches whose nearest neighbours mostly belong to other types,
+ * sketches drawn badly or confirmed with the wrong type;</li>
+ * <li>condensing (P. Hart, "The condensed nearest neighbor rule", 1968) keeps a subset of
+ * the sketches that still recognizes each sketch of the bank as its own type, dropping the
+ * redundant ones;</li>
+ * <li>a capacity per type evicts the least useful sketches of the types that exceed it:
+ * the ones that are seldom the nearest neighbour of a sketch of their type, and often the
+ * nearest neighbour of a sketch of another type.</li>
+ * </ul>
+ * Two sketches are compared as the EXHAUSTIVE mode does, the shortest one stretched to
+ * the length of the other, in the 4 orientations. All the sketches of the bank are compared
+ * once, when the condenser is created, keeping for each sketch only its few nearest sketches
+ * of each type; the sketches of a type are compared again when those nearest ones are not
+ * selected. A condenser made for a single type only compares the sketches of that type
+ * with each other, so their usefulness only counts the sketches of their own type.
+ *
+ * The sketches are removed from the bank as they were when the condenser was created, the
+ * ones added since being kept. Condensing or capping can take long on a big bank: the UI
+ * does it from a background thread, see condenseLater() and capLater().
+ */
+public class BankCondenser
+{
+	//neighbours voting when editing
+	private static final int EDIT_NEIGHBOURS = 3;
+	//nearest sketches of each type kept for each sketch, enough to edit the whole bank
+	private static final int NEIGHBOURS = EDIT_NEIGHBOURS;
+	//sketches recognized to measure the latency
+	private static final int LATENCY_SAMPLES = 50;
+
+	private final List<Object> types;
+	//all the sketches of the bank, and the index of their type
+	private final ArrayList<Dna> words = new ArrayList<Dna>();
+	private final ArrayList<SketchTemplate> templates = new ArrayList<SketchTemplate>();
+	private final int[] typeOf;
+	//the sketches of each type
+	private final int[][] members;
+	//neighbours[i][NEIGHBOURS*t + c]: the nearest sketches of type t to sketch i, the closest
+	//first, -1 past the sketches of the type; nearestScores holds their scores
+	private final int[][] neighbours;
+	private final float[][] nearestScores;
+
+	//condenses the bank and caps the types as sketches are added, one at a time, see capLater()
+	private static ExecutorService background;
+
+	/**
+	 * Told the bank was condensed from the background thread, see condenseLater()
+	 */
+	public interface Listener
+	{
+		void condensed(Report report);
+	}
+
+	/**
+	 * The bank before and after it was shrunk
+	 */
+	public static class Report
+	{
+		private int sizeBefore, sizeAfter;
+		private float accuracyBefore, accuracyAfter;
+		private float latencyBefore, latencyAfter;
+
+		/**
+		 * @return the number of sketches of the bank
+		 */
+		public int getSizeBefore()
+		{ return sizeBefore; }
+
+		public int getSizeAfter()
+		{ return sizeAfter; }
+
+		/**
+		 * @return the part of the sketches of the bank recognized as their type by their nearest
+		 * other sketch, from 0 to 1
+		 */
+		public float getAccuracyBefore()
+		{ return accuracyBefore; }
+
+		public float getAccuracyAfter()
+		{ return accuracyAfter; }
+
+		/**
+		 * @return the time to compare a sketch with the whole bank, in milliseconds
+		 */
+		public float getLatencyBefore()
+		{ return latencyBefore; }
+
+		public float getLatencyAfter()
+		{ return latencyAfter; }
+
+		@Override
+		public String toString()
+		{
+			return "Sketches: "+sizeBefore+" to "+sizeAfter+"\n"
+				+"Leave-one-out accuracy: "+(int)(100*accuracyBefore)+"% to "+(int)(100*accuracyAfter)+"%\n"
+				+"Latency: "+latencyBefore+" ms to "+latencyAfter+" ms";
+		}
+	}
+
+	/**
+	 * Takes a snapshot of the bank and compares all its sketches with each other
+	 */
+	public BankCondenser()
+	{
+		this(SketchBank.getInstance().getSnapshot(), null);
+	}
+
+	/**
+	 * Takes a snapshot of the bank and compares the sketches of a type with each other
+	 * @param type
+	 */
+	public BankCondenser(Object type)
+	{
+		this(SketchBank.getInstance().getSnapshot(), type);
+	}
+
+	/**
+	 * @param bank
+	 * @param type the only type to compare, null for all of them
+	 */
+	private BankCondenser(BankSnapshot bank, Object type)
+	{
+		types = type == null ? bank.getTypes() : Collections.singletonList(type);
+		ArrayList<Integer> typeIndexes = new ArrayList<Integer>();
+		for (int t=0; t!=types.size(); ++t)
+		{
+			List<SketchTemplate> list = bank.getTemplates(types.get(t));
+			if (list == null)
+				continue;
+			for (SketchTemplate template : list)
+			{
+				words.add(template.getDna());
+				templates.add(template);
+				typeIndexes.add(t);
+			}
+		}
+
+		int n = words.size();
+		typeOf = new int[n];
+		int[] sizes = new int[types.size()];
+		for (int i=0; i!=n; ++i)
+		{
+			typeOf[i] = typeIndexes.get(i);
+			sizes[typeOf[i]]++;
+		}
+		members = new int[types.size()][];
+		for (int t=0; t!=types.size(); ++t)
+			members[t] = new int[sizes[t]];
+		int[] filled = new int[types.size()];
+		for (int i=0; i!=n; ++i)
+			members[typeOf[i]][filled[typeOf[i]]++] = i;
+
+		neighbours = new int[n][];
+		nearestScores = new float[n][];
+		for (int i=0; i!=n; ++i)
+		{
+			neighbours[i] = new int[NEIGHBOURS*types.size()];
+			Arrays.fill(neighbours[i], -1);
+			nearestScores[i] = new float[NEIGHBOURS*types.size()];
+		}
+		//the score of two sketches is the same whichever is the query
+		for (int i=0; i!=n; ++i)
+		{
+			StretchedQuery query = new StretchedQuery(words.get(i));
+			for (int j=i+1; j!=n; ++j)
+			{
+				float score = score(query, templates.get(j));
+				insert(neighbours[i], nearestScores[i], NEIGHBOURS*typeOf[j], NEIGHBOURS, j, score);
+				insert(neighbours[j], nearestScores[j], NEIGHBOURS*typeOf[i], NEIGHBOURS, i, score);
+			}
+		}
+	}
+
+	/**
+	 * Inserts a sketch in a list of the nearest sketches, the closest first, the first index
+	 * first among equal scores
+	 * @param nearest the indexes of the sketches of the list, -1 past its end
+	 * @param scores their scores
+	 * @param from the first position of the list
+	 * @param k the length of the list
+	 * @param j the sketch to insert
+	 * @param score its score
+	 */
+	private static void insert(int[] nearest, float[] scores, int from, int k, int j, float score)
+	{
+		int at = k;
+		while (at > 0 && (nearest[from+at-1] < 0 || scores[from+at-1] > score
+				|| (scores[from+at-1] == score && nearest[from+at-1] > j)))
+			at--;
+		if (at == k)
+			return;
+		System.arraycopy(nearest, from+at, nearest, from+at+1, k-at-1);
+		System.arraycopy(scores, from+at, scores, from+at+1, k-at-1);
+		nearest[from+at] = j;
+		scores[from+at] = score;
+	}
+
+	/**
+	 * @return the best score of two sketches, over the 4 orientations
+	 */
+	private static float score(StretchedQuery query, SketchTemplate template)
+	{
+		try
+		{
+			int length = Math.max(query.length(), template.length());
+			if (length == 0)
+				return 0;
+			BitParallelLevenshtein pattern = query.stretchedTo(length);
+			int best = Integer.MAX_VALUE;
+			for (Dna rotation : template.getStretchedRotations(length))
+				best = Math.min(best, pattern.distance(rotation));
+			return 100*(float)best/length;
+		}
+		catch (IllegalLengthException e)
+		{
+			System.err.println("ERROR : can't stretch this dna");
+			e.printStackTrace();
+			return Float.MAX_VALUE;
+		}
+	}
+
+	/**
+	 * Evicts the least useful sketches of a type from a background thread, the sketches of
+	 * the type only being compared with each other, then asks for the bank to be written.
+	 * The types are capped one at a time, in the order they are asked for.
+	 * @param type
+	 * @param capacity the largest number of sketches of the type
+	 * @return a future done once the type is capped
+	 */
+	public static Future<?> capLater(final Object type, final int capacity)
+	{
+		return background().submit(new Runnable() {
+			public void run() {
+				try
+				{
+					new BankCondenser(type).cap(capacity, false);
+					SketchBank.getInstance().dump();
+				}
+				catch (RuntimeException e)
+				{
+					e.printStackTrace();
+					throw e;
+				}
+			}
+		});
+	}
+
+	/**
+	 * Edits then condenses the whole bank from the background thread of capLater(), then
+	 * asks for the bank to be written.
+	 * @param edit true to drop first the sketches whose nearest neighbours have another type
+	 * @param listener told the bank before and after, from the background thread
+	 * @return a future done once the bank is condensed
+	 */
+	public static Future<?> condenseLater(final boolean edit, final Listener listener)
+	{
+		return background().submit(new Runnable() {
+			public void run() {
+				try
+				{
+					Report report = new BankCondenser().condense(edit);
+					SketchBank.getInstance().dump();
+					listener.condensed(report);
+				}
+				catch (RuntimeException e)
+				{
+					e.printStackTrace();
+					throw e;
+				}
+			}
+		});
+	}
+
+	private static synchronized ExecutorService background()
+	{
+		if (background == null)
+		{
+			background = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "Sketch bank condenser");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return background;
+	}
+
+	/**
+	 * @return the number of sketches in the bank
+	 */
+	public int size()
+	{
+		return words.size();
+	}
+
+	/**
+	 * Edits then condenses the bank, and removes from it the sketches not kept.
+	 * @param edit true to drop first the sketches whose nearest neighbours have another type
+	 * @return the bank before and after
+	 */
+	public Report condense(boolean edit)
+	{
+		boolean[] kept = new boolean[words.size()];
+		for (int i=0; i!=kept.length; ++i)
+			kept[i] = true;
+		if (edit)
+			edit(kept);
+		condense(kept);
+		return apply(kept);
+	}
+
+	/**
+	 * Evicts the least useful sketches of each type having more than capacity sketches,
+	 * and removes them from the bank. The sketches added to the bank meanwhile are kept,
+	 * and no more sketches are removed than needed to bring a type back to the capacity.
+	 * Only the sketches whose nearest kept neighbour was evicted are compared again after
+	 * each eviction, the usefulness of the others staying the same.
+	 * @param capacity the largest number of sketches per type
+	 * @param measure true to measure the bank before and after, which compares sketches
+	 * with the whole bank again
+	 * @return the bank before and after, null if it is not measured
+	 */
+	public Report cap(int capacity, boolean measure)
+	{
+		int n = words.size();
+		boolean[] kept = new boolean[n];
+		for (int i=0; i!=n; ++i)
+			kept[i] = true;
+
+		//the nearest kept sketch of each sketch, and the usefulness of each sketch
+		int[] nearest = new int[n];
+		int[] usefulness = new int[n];
+		for (int i=0; i!=n; ++i)
+		{
+			nearest[i] = nearest(i, kept, 1)[0];
+			if (nearest[i] >= 0)
+				usefulness[nearest[i]] += typeOf[nearest[i]] == typeOf[i] ? 1 : -1;
+		}
+
+		//the sketches evicted from each type, the first evicted first
+		ArrayList<ArrayList<Dna>> evicted = new ArrayList<ArrayList<Dna>>();
+		for (int t=0; t!=types.size(); ++t)
+		{
+			evicted.add(new ArrayList<Dna>());
+			for (int count=members[t].length; count > capacity; count--)
+			{
+				int worst = -1;
+				for (int i : members[t])
+					if (kept[i] && (worst < 0 || usefulness[i] < usefulness[worst]))
+						worst = i;
+				kept[worst] = false;
+				evicted.get(t).add(words.get(worst));
+				for (int i=0; i!=n; ++i)
+					if (nearest[i] == worst)
+					{
+						nearest[i] = nearest(i, kept, 1)[0];
+						if (nearest[i] >= 0)
+							usefulness[nearest[i]] += typeOf[nearest[i]] == typeOf[i] ? 1 : -1;
+					}
+			}
+		}
+
+		Report report = measure ? measure(kept) : null;
+		SketchBank bank = SketchBank.getInstance();
+		for (int t=0; t!=types.size(); ++t)
+			if (!evicted.get(t).isEmpty())
+				bank.evict(types.get(t), evicted.get(t), capacity);
+		return report;
+	}
+
+	/**
+	 * Wilson editing: drops the sketches the majority of whose nearest kept neighbours has
+	 * another type. The neighbours are taken before anything is dropped.
+	 */
+	private void edit(boolean[] kept)
+	{
+		int n = words.size();
+		boolean[] drop = new boolean[n];
+		for (int i=0; i!=n; ++i)
+		{
+			int[] neighbours = nearest(i, kept, EDIT_NEIGHBOURS);
+			int same = 0, found = 0;
+			for (int neighbour : neighbours)
+			{
+				if (neighbour < 0)
+					break;
+				found++;
+				if (typeOf[neighbour] == typeOf[i])
+					same++;
+			}
+			drop[i] = found > 0 && 2*same < found;
+		}
+
+		//a type never loses all its sketches
+		for (int t=0; t!=types.size(); ++t)
+		{
+			boolean left = false;
+			for (int i : members[t])
+				left |= !drop[i];
+			if (!left)
+				for (int i : members[t])
+					drop[i] = false;
+		}
+		for (int i=0; i!=n; ++i)
+			if (drop[i])
+				kept[i] = false;
+	}
+
+	/**
+	 * Hart condensing: starting from the first sketch of each type, adds each sketch that the
+	 * sketches chosen so far recognize as another type, until all are recognized.
+	 */
+	private void condense(boolean[] kept)
+	{
+		int n = words.size();
+		boolean[] store = new boolean[n];
+		boolean[] seen = new boolean[types.size()];
+		for (int i=0; i!=n; ++i)
+			if (kept[i] && !seen[typeOf[i]])
+			{
+				store[i] = true;
+				seen[typeOf[i]] = true;
+			}
+
+		boolean changed = true;
+		while (changed)
+		{
+			changed = false;
+			for (int i=0; i!=n; ++i)
+			{
+				if (!kept[i] || store[i])
+					continue;
+				int nearest = nearest(i, store, 1)[0];
+				if (nearest < 0 || typeOf[nearest] != typeOf[i])
+				{
+					store[i] = true;
+					changed = true;
+				}
+			}
+		}
+		System.arraycopy(store, 0, kept, 0, n);
+	}
+
+	/**
+	 * @return the k nearest sketches of i among the ones selected, i excepted, the closest
+	 * first, -1 when there are less than k
+	 */
+	private int[] nearest(int i, boolean[] selected, int k)
+	{
+		int[] nearest = new int[k];
+		Arrays.fill(nearest, -1);
+		float[] scores = new float[k];
+		StretchedQuery query = null;
+		for (int t=0; t!=types.size(); ++t)
+		{
+			//the nearest sketches of the type are enough when k of them are selected, or
+			//when they are all the sketches of the type
+			int from = NEIGHBOURS*t;
+			int found = 0;
+			for (int c=0; c!=NEIGHBOURS && neighbours[i][from+c] >= 0; ++c)
+				if (selected[neighbours[i][from+c]])
+					found++;
+			if (found >= k || neighbours[i][from+NEIGHBOURS-1] < 0)
+			{
+				for (int c=0; c!=NEIGHBOURS && neighbours[i][from+c] >= 0; ++c)
+					if (selected[neighbours[i][from+c]])
+						insert(nearest, scores, 0, k, neighbours[i][from+c], nearestScores[i][from+c]);
+				continue;
+			}
+
+			//otherwise the sketches of the type selected are compared again
+			if (query == null)
+				query = new StretchedQuery(words.get(i));
+			for (int j : members[t])
+				if (j != i && selected[j])
+					insert(nearest, scores, 0, k, j, score(query, templates.get(j)));
+		}
+		return nearest;
+	}
+
+	/**
+	 * @return the part of the sketches of the bank recognized as their type by their nearest
+	 * selected sketch
+	 */
+	private float accuracy(boolean[] selected)
+	{
+		if (words.isEmpty())
+			return 0;
+		int correct = 0;
+		for (int i=0; i!=words.size(); ++i)
+		{
+			int nearest = nearest(i, selected, 1)[0];
+			if (nearest >= 0 && typeOf[nearest] == typeOf[i])
+				correct++;
+		}
+		return correct/(float)words.size();
+	}
+
+	/**
+	 * @return the time to compare a sketch with the selected sketches, in milliseconds
+	 */
+	private float latency(boolean[] selected)
+	{
+		int samples = Math.min(LATENCY_SAMPLES, words.size());
+		if (samples == 0)
+			return 0;
+		long time = System.nanoTime();
+		for (int s=0; s!=samples; ++s)
+		{
+			StretchedQuery query = new StretchedQuery(words.get(s*words.size()/samples));
+			for (int j=0; j!=words.size(); ++j)
+				if (selected[j])
+					score(query, templates.get(j));
+		}
+		return (System.nanoTime() - time)/1000000f/samples;
+	}
+
+	/**
+	 * Removes the sketches not kept from the bank, and measures the bank before and after
+	 */
+	private Report apply(boolean[] kept)
+	{
+		Report report = measure(kept);
+		SketchBank bank = SketchBank.getInstance();
+		for (int t=0; t!=types.size(); ++t)
+		{
+			ArrayList<Dna> removed = new ArrayList<Dna>();
+			for (int i : members[t])
+				if (!kept[i])
+					removed.add(words.get(i));
+			if (!removed.isEmpty())
+				bank.remove(types.get(t), removed);
+		}
+		return report;
+	}
+
+	/**
+	 * @return the bank before and after only the sketches kept are left in it
+	 */
+	private Report measure(boolean[] kept)
+	{
+		boolean[] all = new boolean[words.size()];
+		for (int i=0; i!=all.length; ++i)
+			all[i] = true;
+
+		Report report = new Report();
+		report.sizeBefore = words.size();
+		report.accuracyBefore = accuracy(all);
+		report.latencyBefore = latency(all);
+		report.accuracyAfter = accuracy(kept);
+		report.latencyAfter = latency(kept);
+		for (int i=0; i!=kept.length; ++i)
+			if (kept[i])
+				report.sizeAfter++;
+		return report;
+	}
+}
@@ -0,0 +1,275 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Ugo Sangiorgi and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *  Ugo Sangiorgi <ugo.sangiorgi@gmail.com> - Initial contribution
+ *******************************************************************************/
+package org.eclipse.sketch.chain;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.eclipse.sketch.BankSnapshot;
+import org.eclipse.sketch.Sketch;
+import org.eclipse.sketch.SketchBank;
+import org.eclipse.sketch.SketchTemplate;
+import org.eclipse.sketch.Sketch.Dna;
+
+/**
+ * Recognizes many sketches at once, without going through the SketchManager, the chain
+ * and the UI thread: to classify again a whole diagram or to evaluate the recognizer
+ * offline.
+ *
+ * The bank is read once, when the recognizer is created, and all the sketches are compared
+ * with that snapshot and the variants its templates keep (rotations, stretched words and
+ * profiles). The sketches are split between the threads of the scoring pool of
+ * {@link LevenshteinHandler}; each sketch is scored as the EXHAUSTIVE mode does.
+ */
+public class BatchRecognizer
+{
+	//number of sketches scored by a single task
+	private static final int TASK_SIZE = 8;
+
+	private final List<Object> types;
+	private final ArrayList<List<SketchTemplate>> templates = new ArrayList<List<SketchTemplate>>();
+	private final long generation;
+	//the scores of a snapshot given by the caller are not cached: its version is not one of the bank
+	private final boolean cached;
+
+	/**
+	 * The scores of a sketch, and its types ranked from the closest to the farthest
+	 */
+	public static class Result
+	{
+		private final Dna dna;
+		private final float[] averages;
+		private final HashMap<Object, Integer> scores = new HashMap<Object, Integer>();
+		private final ArrayList<Object> ranking = new ArrayList<Object>();
+		private final MatchStatistics statistics;
+
+		/**
+		 * @param averages the normalized distance to each type, -1 for the types without
+		 * sketches, null if the sketch is too short to be recognized
+		 */
+		Result(Dna dna, List<Object> types, final float[] averages, MatchStatistics statistics)
+		{
+			this.dna = dna;
+			this.averages = averages;
+			this.statistics = statistics;
+			if (averages == null)
+				return;
+
+			ArrayList<Integer> ids = new ArrayList<Integer>();
+			for (int type_i=0; type_i<types.size(); type_i++)
+			{
+				scores.put(types.get(type_i), new Integer(averages[type_i] == -1 ? -1 : (int)averages[type_i]));
+				if (averages[type_i] != -1)
+					ids.add(type_i);
+			}
+			//ranked on the distances before they are rounded, as the chain does
+			Collections.sort(ids, new Comparator<Integer>() {
+				public int compare(Integer a, Integer b) {
+					return Float.compare(averages[a], averages[b]);
+				}
+			});
+			for (Integer type_i : ids)
+				ranking.add(types.get(type_i));
+		}
+
+		public Dna getDna()
+		{ return dna; }
+
+		/**
+		 * @return the normalized distance to each type, -1 for the types without sketches,
+		 * as put under {@link Sketch#ELEMENT_RESULT_KEY} by the chain; empty if the sketch
+		 * is too short to be recognized
+		 */
+		public HashMap<Object, Integer> getScores()
+		{ return scores; }
+
+		/**
+		 * @return the types having sketches, the closest first
+		 */
+		public ArrayList<Object> getRanking()
+		{ return ranking; }
+
+		/**
+		 * @return the closest type, or null if there is none
+		 */
+		public Object getBest()
+		{ return ranking.isEmpty() ? null : ranking.get(0); }
+
+		/**
+		 * @return the comparisons skipped and computed, or null if the result was cached
+		 */
+		public MatchStatistics getStatistics()
+		{ return statistics; }
+	}
+
+	/**
+	 * Takes a snapshot of the bank
+	 */
+	public BatchRecognizer()
+	{
+		this(SketchBank.getInstance().getSnapshot(), true);
+	}
+
+	/**
+	 * Recognizes with a snapshot built apart from the bank, to evaluate the recognizer
+	 * with other sketches than those taught; the scores are not cached
+	 * @param bank
+	 */
+	public BatchRecognizer(BankSnapshot bank)
+	{
+		this(bank, false);
+	}
+
+	private BatchRecognizer(BankSnapshot bank, boolean cached)
+	{
+		//a snapshot never changes, its lists can be kept as they are
+		this.cached = cached;
+		generation = bank.getVersion();
+		types = bank.getTypes();
+		for (Object type : types)
+		{
+			List<SketchTemplate> list = bank.getTemplates(type);
+			templates.add(list == null ? Collections.<SketchTemplate>emptyList() : list);
+		}
+	}
+
+	/**
+	 * Recognizes sketches, and stores their scores in their result as the chain does
+	 * @param sketches
+	 * @return the result of each sketch, in the same order
+	 */
+	public ArrayList<Result> recognizeSketches(Collection<Sketch> sketches)
+	{
+		ArrayList<Dna> dnas = new ArrayList<Dna>();
+		for (Sketch sketch : sketches)
+			dnas.add(sketch.getPackedDna());
+
+		ArrayList<Result> results = recognize(dnas);
+		int i = 0;
+		for (Sketch sketch : sketches)
+		{
+			Result result = results.get(i++);
+			if (result.averages != null)
+			{
+				sketch.getResult().put(Sketch.ELEMENT_RESULT_KEY, new HashMap<Object, Integer>(result.getScores()));
+				sketch.getResult().put(RankedResult.RESULT_KEY, RankedResult.of(types, result.averages, LevenshteinHandler.getRankedTypes()));
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * @param dnas
+	 * @return the result of each DNA, in the same order
+	 */
+	public ArrayList<Result> recognize(Collection<Dna> dnas)
+	{
+		final ArrayList<Dna> list = new ArrayList<Dna>(dnas);
+		final Result[] results = new Result[list.size()];
+
+		int threads = Runtime.getRuntime().availableProcessors();
+		if (threads < 2 || list.size() <= TASK_SIZE)
+		{
+			score(list, 0, list.size(), results);
+			return toList(results);
+		}
+
+		ArrayList<Future<Object>> futures = new ArrayList<Future<Object>>();
+		for (int from=0; from<list.size(); from+=TASK_SIZE)
+		{
+			final int start = from;
+			final int end = Math.min(list.size(), from+TASK_SIZE);
+			futures.add(LevenshteinHandler.getPool().submit(new Callable<Object>() {
+				public Object call() {
+					score(list, start, end, results);
+					return null;
+				}
+			}));
+		}
+
+		try
+		{
+			for (Future<Object> future : futures)
+				future.get();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Batch recognition interrupted", e);
+		}
+		catch (ExecutionException e)
+		{
+			throw new RuntimeException("Batch recognition failed", e.getCause());
+		}
+		return toList(results);
+	}
+
+	private static ArrayList<Result> toList(Result[] results)
+	{
+		ArrayList<Result> list = new ArrayList<Result>(results.length);
+		for (Result result : results)
+			list.add(result);
+		return list;
+	}
+
+	/**
+	 * Scores a range of DNAs, one after the other
+	 */
+	private void score(ArrayList<Dna> dnas, int from, int to, Result[] results)
+	{
+		NearestScores scores = new NearestScores(LevenshteinHandler.getKnn());
+		RecognitionCache cache = cached ? LevenshteinHandler.getCache() : null;
+
+		for (int i=from; i!=to; ++i)
+		{
+			Dna dna = dnas.get(i);
+			if (dna.length() < 3)
+			{
+				results[i] = new Result(dna, types, null, null);
+				continue;
+			}
+
+			float[] known = cache == null ? null : cache.get(dna, LevenshteinHandler.Mode.EXHAUSTIVE, generation);
+			if (known != null)
+			{
+				results[i] = new Result(dna, types, known, null);
+				continue;
+			}
+
+			StretchedQuery query = new StretchedQuery(dna);
+			MatchStatistics statistics = new MatchStatistics();
+			float[] averages = new float[types.size()];
+			for (int type_i=0; type_i<types.size(); type_i++)
+			{
+				List<SketchTemplate> list = templates.get(type_i);
+				if (list.isEmpty())
+				{
+					averages[type_i] = -1;
+					continue;
+				}
+				scores.clear();
+				LevenshteinHandler.exhaustiveScore(list, 0, list.size(), -1, query, scores, statistics);
+				averages[type_i] = scores.average();
+			}
+
+			if (cache != null)
+				cache.put(dna, LevenshteinHandler.Mode.EXHAUSTIVE, averages, generation);
+			results[i] = new Result(dna, types, averages, statistics);
+		}
+	}
+}
@@ -0,0 +1,407 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Ugo Sangiorgi and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *  Ugo Sangiorgi <ugo.sangiorgi@gmail.com> - Initial contribution
+ *******************************************************************************/
+package org.eclipse.sketch.chain;
+
+import org.eclipse.sketch.Sketch.Dna;
+
+/**
+ * Bit-parallel edit distance over the DNA alphabet ('0' to '8', '[' and ']'), based on
+ * G. Myers, "A fast bit-vector algorithm for approximate string matching based on dynamic
+ * programming" (1999), in the block-based formulation of H. Hyyrö, "A bit-vector algorithm
+ * for computing Levenshtein and Damerau edit distances" (2003).
+ *
+ * The pattern is compiled once into one bit mask per DNA symbol, so a query can be compared
+ * against many texts. Patterns of up to 64 symbols fit in a single machine word; longer
+ * patterns are split in blocks of 64 symbols and the horizontal deltas are carried from one
+ * block to the next.
+ *
+ * Symbols are the ones of {@link Dna}. The distances are the same as the ones of
+ * {@link LevenshteinHandler#run(String, String)}.
+ * A compiled pattern reuses its working memory, so it must not be shared between threads.
+ */
+public class BitParallelLevenshtein
+{
+	private static final int WORD = 64;
+
+	//symbol read for the characters of a String that are not part of the DNA alphabet
+	private static final byte FOREIGN = 15;
+
+	private final String pattern;
+	private final int m;
+	private final int blocks;
+	//peq[symbol][block] has a bit set for each position of the pattern holding that symbol
+	private final long[][] peq;
+	//false if the pattern contains characters outside the alphabet
+	private final boolean compiled;
+	//vertical deltas of the blocks and symbols of the text, reused from one text to the other
+	private long[] pv;
+	private long[] mv;
+	private byte[] text = new byte[0];
+
+	/**
+	 * Compiles a pattern so that it can be compared with many texts.
+	 * @param pattern the DNA to compile
+	 */
+	public BitParallelLevenshtein(Dna pattern)
+	{
+		this.pattern = null;
+		m = pattern.length();
+		blocks = Math.max(1, (m + WORD - 1) / WORD);
+		peq = new long[FOREIGN+1][blocks];
+		for (int i=0; i!=m; ++i)
+			peq[pattern.symbolAt(i)][i / WORD] |= 1L << (i % WORD);
+		compiled = true;
+	}
+
+	/**
+	 * Compiles a pattern given in String form. Patterns holding characters that are not
+	 * part of the DNA alphabet are compared with the classic algorithm.
+	 * @param pattern the DNA to compile
+	 */
+	public BitParallelLevenshtein(String pattern)
+	{
+		if (pattern == null)
+			throw new IllegalArgumentException("Strings must not be null");
+
+		this.pattern = pattern;
+		m = pattern.length();
+		blocks = Math.max(1, (m + WORD - 1) / WORD);
+		peq = new long[FOREIGN+1][blocks];
+
+		boolean inAlphabet = true;
+		for (int i=0; i!=m; ++i)
+		{
+			int symbol = Dna.symbolOf(pattern.charAt(i));
+			if (symbol < 0)
+			{
+				inAlphabet = false;
+				break;
+			}
+			peq[symbol][i / WORD] |= 1L << (i % WORD);
+		}
+		compiled = inAlphabet;
+	}
+
+	/**
+	 * @return the length of the compiled pattern
+	 */
+	public int length()
+	{
+		return m;
+	}
+
+	/**
+	 * @return the number of machine words the pattern is split in, the cost of each symbol
+	 * of the text
+	 */
+	int blocks()
+	{
+		return blocks;
+	}
+
+	/**
+	 * Computes the edit distance between the compiled pattern and a text.
+	 * @param text
+	 * @return the Levenshtein distance between the pattern and text
+	 */
+	public int distance(Dna text)
+	{
+		int n = text.length();
+		byte[] symbols = textBuffer(n);
+		text.getSymbols(symbols);
+		return distance(symbols, n);
+	}
+
+	/**
+	 * Computes the edit distance between the compiled pattern and a text given in String form.
+	 * @param text
+	 * @return the Levenshtein distance between the pattern and text
+	 */
+	public int distance(String text)
+	{
+		if (text == null)
+			throw new IllegalArgumentException("Strings must not be null");
+		if (!compiled)
+			return LevenshteinHandler.run(pattern, text);
+
+		int n = text.length();
+		byte[] symbols = textBuffer(n);
+		for (int j=0; j!=n; ++j)
+		{
+			int symbol = Dna.symbolOf(text.charAt(j));
+			symbols[j] = symbol < 0 ? FOREIGN : (byte)symbol;
+		}
+		return distance(symbols, n);
+	}
+
+	/**
+	 * Computes the edit distance between two DNAs, using the shortest one as the pattern.
+	 * @param s
+	 * @param t
+	 * @return the Levenshtein distance between s and t
+	 */
+	public static int distance(Dna s, Dna t)
+	{
+		if (s.length() <= t.length())
+			return new BitParallelLevenshtein(s).distance(t);
+		return new BitParallelLevenshtein(t).distance(s);
+	}
+
+	/**
+	 * Computes the edit distance between two DNAs, using the shortest one as the pattern.
+	 * @param s
+	 * @param t
+	 * @return the Levenshtein distance between s and t
+	 */
+	public static int distance(String s, String t)
+	{
+		if (s == null || t == null)
+			throw new IllegalArgumentException("Strings must not be null");
+
+		if (s.length() <= t.length())
+			return new BitParallelLevenshtein(s).distance(t);
+		return new BitParallelLevenshtein(t).distance(s);
+	}
+
+	/**
+	 * @return a new column of the matrix, to compute the distance between the compiled pattern
+	 * and a text given one symbol at a time
+	 */
+	public Column newColumn()
+	{
+		return new Column();
+	}
+
+	/**
+	 * The last column of the dynamic programming matrix between the compiled pattern and a
+	 * text that grows one symbol at a time, kept as vertical deltas. Each column has its own
+	 * state, so many columns can share the same compiled pattern.
+	 */
+	public class Column
+	{
+		private final long[] pv = new long[blocks];
+		private final long[] mv = new long[blocks];
+		private int score = m;
+
+		private Column()
+		{
+			for (int b=0; b!=blocks; ++b)
+				pv[b] = -1L;
+		}
+
+		/**
+		 * Appends a symbol to the text
+		 * @param symbol a symbol of {@link Dna}
+		 */
+		public void add(int symbol)
+		{
+			if (m == 0)
+			{
+				score++;
+				return;
+			}
+			add(symbol, 1);
+		}
+
+		/**
+		 * @param symbol a symbol of {@link Dna}
+		 * @param h the value added to the first row of the matrix: 1 for a distance, 0 for a
+		 * search where the pattern can start anywhere in the text
+		 */
+		private void add(int symbol, int h)
+		{
+			final long[] eqs = peq[symbol];
+			final int lastBlock = blocks - 1;
+			for (int b=0; b!=blocks; ++b)
+			{
+				long eq = eqs[b];
+				long p = pv[b];
+				long mm = mv[b];
+				long high = b == lastBlock ? 1L << ((m - 1) % WORD) : Long.MIN_VALUE;
+
+				long xv = eq | mm;
+				if (h < 0)
+					eq |= 1L;
+				long xh = (((eq & p) + p) ^ p) | eq;
+				long ph = mm | ~(xh | p);
+				long mh = p & xh;
+
+				int hout = 0;
+				if ((ph & high) != 0)
+					hout = 1;
+				else if ((mh & high) != 0)
+					hout = -1;
+
+				ph <<= 1;
+				mh <<= 1;
+				if (h < 0)
+					mh |= 1L;
+				else if (h > 0)
+					ph |= 1L;
+
+				pv[b] = mh | ~(xv | ph);
+				mv[b] = ph & xv;
+				h = hout;
+			}
+			score += h;
+		}
+
+		/**
+		 * @return the edit distance between the pattern and the symbols added so far
+		 */
+		public int distance()
+		{
+			return score;
+		}
+	}
+
+	private byte[] textBuffer(int n)
+	{
+		if (text.length < n)
+			text = new byte[Math.max(n, text.length*2)];
+		return text;
+	}
+
+	/**
+	 * Approximate matching of the pattern in a text: the pattern may start anywhere in the
+	 * text for free.
+	 * @param text the symbols of the text, one per byte
+	 * @param n the length of the text
+	 * @param ends where to write, for each position j of the text, the smallest distance
+	 * between the pattern and a substring of the text ending at j; at least n long
+	 */
+	void search(byte[] text, int n, int[] ends)
+	{
+		if (m == 0)
+		{
+			for (int j=0; j!=n; ++j)
+				ends[j] = 0;
+			return;
+		}
+
+		Column column = new Column();
+		for (int j=0; j!=n; ++j)
+		{
+			column.add(text[j], 0);
+			ends[j] = column.distance();
+		}
+	}
+
+	/**
+	 * @param text the symbols of the text, one per byte
+	 * @param n the length of the text
+	 */
+	int distance(byte[] text, int n)
+	{
+		if (m == 0)
+			return n;
+		if (n == 0)
+			return m;
+
+		if (blocks == 1)
+			return singleWord(text, n);
+		return multiWord(text, n);
+	}
+
+	private int singleWord(byte[] text, int n)
+	{
+		final long[][] peq = this.peq;
+		final long last = 1L << (m - 1);
+
+		long pv = -1L;
+		long mv = 0L;
+		int score = m;
+
+		for (int j=0; j!=n; ++j)
+		{
+			long eq = peq[text[j]][0];
+
+			long xv = eq | mv;
+			long xh = (((eq & pv) + pv) ^ pv) | eq;
+			long ph = mv | ~(xh | pv);
+			long mh = pv & xh;
+
+			if ((ph & last) != 0)
+				score++;
+			else if ((mh & last) != 0)
+				score--;
+
+			//the first row of the matrix grows by one at each column
+			ph = (ph << 1) | 1L;
+			mh <<= 1;
+
+			pv = mh | ~(xv | ph);
+			mv = ph & xv;
+		}
+		return score;
+	}
+
+	private int multiWord(byte[] text, int n)
+	{
+		final long[][] peq = this.peq;
+		final int lastBlock = blocks - 1;
+		final long lastBit = 1L << ((m - 1) % WORD);
+
+		if (pv == null)
+		{
+			pv = new long[blocks];
+			mv = new long[blocks];
+		}
+		final long[] pv = this.pv;
+		final long[] mv = this.mv;
+		for (int b=0; b!=blocks; ++b)
+		{
+			pv[b] = -1L;
+			mv[b] = 0L;
+		}
+		int score = m;
+
+		for (int j=0; j!=n; ++j)
+		{
+			long[] eqs = peq[text[j]];
+
+			int h = 1; //horizontal delta entering the block, the first row grows by one
+			for (int b=0; b!=blocks; ++b)
+			{
+				long eq = eqs[b];
+				long p = pv[b];
+				long mm = mv[b];
+				long high = b == lastBlock ? lastBit : Long.MIN_VALUE;
+
+				long xv = eq | mm;
+				if (h < 0)
+					eq |= 1L;
+				long xh = (((eq & p) + p) ^ p) | eq;
+				long ph = mm | ~(xh | p);
+				long mh = p & xh;
+
+				int hout = 0;
+				if ((ph & high) != 0)
+					hout = 1;
+				else if ((mh & high) != 0)
+					hout = -1;
+
+				ph <<= 1;
+				mh <<= 1;
+				if (h < 0)
+					mh |= 1L;
+				else if (h > 0)
+					ph |= 1L;
+
+				pv[b] = mh | ~(xv | ph);
+				mv[b] = ph & xv;
+				h = hout;
+			}
+			score += h;
+		}
+		return score;
+	}
+}
@@ -0,0 +1,126 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Ugo Sangiorgi and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *  Ugo Sangiorgi <ugo.sangiorgi@gmail.com> - Initial contribution
+ *******************************************************************************/
+package org.eclipse.sketch.chain;
+
+import org.eclipse.sketch.Sketch.Dna;
+
+/**
+ * Edit distance between a pattern and a closed text, whatever the point the text starts
+ * from: an approximation of the cyclic distance, the smallest distance between the pattern
+ * and a cyclic shift of the text.
+ *
+ * Trying the n shifts of the text costs n distances. Instead, the pattern is searched in the
+ * text written twice (see {@link BitParallelLevenshtein#search}): the substrings of that
+ * doubled text include all the shifts, and the positions where the pattern ends with the
+ * fewest errors tell where the best shifts start. Only a few shifts around those positions
+ * are then compared exactly, as in the bounded shift approximation of the cyclic distance
+ * of M. Maes, "On a cyclic string-to-string correction problem" (1990).
+ *
+ * The result is the distance to an actual shift of the text, so it is an upper bound of the
+ * cyclic distance, and never more than the distance to the text itself. It is the cyclic
+ * distance when the best shift is among those tried, as for the same outline started at
+ * another corner, but a shift missed by the search can leave it a few edits above.
+ *
+ * The pen symbols before and after the stroke of the text (see {@link Dna#isClosed()})
+ * stay where they are, only the stroke is shifted.
+ */
+public class CyclicLevenshtein
+{
+	//number of end positions of the search whose shifts are tried
+	private static final int CANDIDATES = 3;
+	//shifts tried on each side of a candidate
+	private static final int WINDOW = 2;
+
+	private CyclicLevenshtein()
+	{
+	}
+
+	/**
+	 * @param pattern the compiled pattern
+	 * @param text a closed DNA
+	 * @return the smallest edit distance found between the pattern and the shifts of text,
+	 * at least their cyclic distance
+	 */
+	public static int distance(BitParallelLevenshtein pattern, Dna text)
+	{
+		int n = text.length();
+		int m = pattern.length();
+		byte[] symbols = new byte[n];
+		text.getSymbols(symbols);
+		int start = 0, end = n;
+		while (start < end && !Dna.isDirection(symbols[start]))
+			start++;
+		while (end > start && !Dna.isDirection(symbols[end-1]))
+			end--;
+		int stroke = end - start;
+		if (stroke < 2 || m == 0)
+			return pattern.distance(text);
+
+		int best = pattern.distance(symbols, n);
+		if (best == 0)
+			return 0;
+
+		//the text with its stroke written twice
+		byte[] doubled = new byte[n + stroke];
+		System.arraycopy(symbols, 0, doubled, 0, end);
+		System.arraycopy(symbols, start, doubled, end, stroke);
+		System.arraycopy(symbols, end, doubled, end + stroke, n - end);
+		int[] ends = new int[doubled.length];
+		pattern.search(doubled, doubled.length, ends);
+
+		//the shifts of the stroke start at most stroke positions after its start
+		int[] candidates = new int[CANDIDATES];
+		int count = 0;
+		for (int c=0; c!=CANDIDATES; ++c)
+		{
+			int found = -1;
+			for (int j=Math.min(m, doubled.length)-1; j<doubled.length; ++j)
+				if (ends[j] < best && (found < 0 || ends[j] < ends[found]) && !near(j, candidates, count, stroke))
+					found = j;
+			if (found < 0)
+				break;
+			candidates[count++] = found;
+		}
+
+		boolean[] tried = new boolean[stroke];
+		tried[0] = true;
+		byte[] shifted = symbols.clone();
+		for (int c=0; c!=count; ++c)
+		{
+			//the pattern, aligned with a shift, ends about m positions after its start
+			int first = candidates[c] - m + 1 - start;
+			for (int delta=-WINDOW; delta<=WINDOW; ++delta)
+			{
+				int shift = ((first + delta) % stroke + stroke) % stroke;
+				if (tried[shift])
+					continue;
+				tried[shift] = true;
+				System.arraycopy(doubled, start + shift, shifted, start, stroke);
+				best = Math.min(best, pattern.distance(shifted, n));
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * @return true if end leads to the same shifts as one of the candidates found so far
+	 */
+	private static boolean near(int end, int[] candidates, int count, int n)
+	{
+		for (int c=0; c!=count; ++c)
+		{
+			int gap = Math.abs(end - candidates[c]) % n;
+			if (Math.min(gap, n - gap) <= WINDOW)
+				return true;
+		}
+		return false;
+	}
+}
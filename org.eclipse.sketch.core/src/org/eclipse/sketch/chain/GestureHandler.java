@@ -20,7 +20,7 @@ public class GestureHandler extends SketchChainHandler {
 	@Override
 	public  SketchChainHandler perform(Sketch sketch) {
 		
-		if(sketch.getDna().length()<3){
+		if(sketch.getPackedDna().length()<3){
 			EditPart e = manager.getEditor().getDiagramEditPart().getViewer().findObjectAt(sketch.getPoints().get(0));
 			
 			System.out.println("GESTURE CHAIN: it is a gesture");
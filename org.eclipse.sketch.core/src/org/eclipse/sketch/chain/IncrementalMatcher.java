@@ -0,0 +1,261 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Ugo Sangiorgi and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *  Ugo Sangiorgi <ugo.sangiorgi@gmail.com> - Initial contribution
+ *******************************************************************************/
+package org.eclipse.sketch.chain;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.eclipse.sketch.BankSnapshot;
+import org.eclipse.sketch.SketchBank;
+import org.eclipse.sketch.SketchTemplate;
+import org.eclipse.sketch.Sketch.Dna;
+
+/**
+ * Compares a sketch with the whole bank while it is being drawn: the SketchTool gives it
+ * the DNA symbols as soon as they are known, and one column of the edit distance matrix is
+ * updated for each template of the bank, in its 4 orientations. When the pen up is
+ * confirmed, the distances are already there and {@link LevenshteinHandler} in
+ * {@link LevenshteinHandler.Mode#INCREMENTAL} mode only has to rank them.
+ *
+ * The symbols given with {@link #feed(byte[], int)} are added by a background thread, so
+ * the UI thread drawing the sketch never walks the bank; the other methods wait for the
+ * symbols fed so far. The patterns of the templates are compiled once by the templates
+ * (see {@link SketchTemplate#newColumn(int)}), a matcher only allocating the columns, the
+ * first time a symbol is added.
+ *
+ * The words are compared as they are, since stretching would need the final length.
+ * The bank is read from its snapshot when the matcher is created; a matcher made before
+ * the templates changed is ignored by the handler.
+ */
+public class IncrementalMatcher
+{
+	/**
+	 * Key of the matcher fed while drawing, in the result of the sketch
+	 */
+	public static final String MATCHER_RESULT_KEY = "MATCHER_RESULT_KEY_IncrementalMatcher";
+
+	//adds the symbols fed to the matchers, in the order they are fed
+	private static ExecutorService feeder;
+
+	private final BankSnapshot bank;
+	private final List<Object> types;
+	//read from the bank with the columns, see columns()
+	private ArrayList<List<SketchTemplate>> templates;
+	private int[] sizes;
+	//columns[type][4*template + quarter]
+	private BitParallelLevenshtein.Column[][] columns;
+
+	private byte[] symbols = new byte[64];
+	private int length;
+	//done once the symbols fed so far are added
+	private Future<?> fed;
+
+	public IncrementalMatcher()
+	{
+		this(SketchBank.getInstance().getSnapshot());
+	}
+
+	/**
+	 * @param bank the snapshot of the bank the sketch is compared with
+	 */
+	public IncrementalMatcher(BankSnapshot bank)
+	{
+		this.bank = bank;
+		types = bank.getTypes();
+	}
+
+	/**
+	 * Reads the templates of the bank and makes their columns, the first time it is called
+	 */
+	private void columns()
+	{
+		if (columns != null)
+			return;
+		templates = new ArrayList<List<SketchTemplate>>(types.size());
+		sizes = new int[types.size()];
+		columns = new BitParallelLevenshtein.Column[types.size()][];
+
+		for (int type_i=0; type_i!=types.size(); ++type_i)
+		{
+			List<SketchTemplate> list = bank.getTemplates(types.get(type_i));
+			templates.add(list);
+			sizes[type_i] = list == null ? 0 : list.size();
+
+			columns[type_i] = new BitParallelLevenshtein.Column[sizes[type_i]*4];
+			for (int t=0; t!=sizes[type_i]; ++t)
+				for (int i=0; i!=4; ++i)
+					columns[type_i][4*t + i] = list.get(t).newColumn(i);
+		}
+	}
+
+	/**
+	 * Appends symbols to the sketch from a background thread, returning at once
+	 * @param symbols symbols of {@link Dna}, copied
+	 * @param count the number of symbols to append
+	 */
+	public void feed(byte[] symbols, int count)
+	{
+		final byte[] copy = new byte[count];
+		System.arraycopy(symbols, 0, copy, 0, count);
+		synchronized (IncrementalMatcher.class)
+		{
+			if (feeder == null)
+			{
+				feeder = Executors.newSingleThreadExecutor(new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "Sketch incremental matcher");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+			}
+			fed = feeder.submit(new Runnable() {
+				public void run() {
+					for (byte symbol : copy)
+						add(symbol);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Waits for the symbols fed so far to be added
+	 */
+	private void awaitFed()
+	{
+		Future<?> last;
+		synchronized (IncrementalMatcher.class)
+		{
+			last = fed;
+		}
+		if (last == null)
+			return;
+		boolean interrupted = false;
+		try
+		{
+			while (true)
+			{
+				try
+				{
+					last.get();
+					break;
+				}
+				catch (InterruptedException e)
+				{
+					interrupted = true;
+				}
+			}
+		}
+		catch (ExecutionException e)
+		{
+			throw new IllegalStateException("Failed to match the sketch while it was drawn", e.getCause());
+		}
+		finally
+		{
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Appends a symbol to the sketch and updates the distances to every template, from the
+	 * calling thread
+	 * @param symbol a symbol of {@link Dna}
+	 */
+	public synchronized void add(int symbol)
+	{
+		columns();
+		if (length == symbols.length)
+		{
+			byte[] s = new byte[length*2];
+			System.arraycopy(symbols, 0, s, 0, length);
+			symbols = s;
+		}
+		symbols[length++] = (byte)symbol;
+
+		for (BitParallelLevenshtein.Column[] type : columns)
+			for (BitParallelLevenshtein.Column column : type)
+				column.add(symbol);
+	}
+
+	/**
+	 * Appends all the symbols of a DNA, from the calling thread
+	 */
+	public void addAll(Dna dna)
+	{
+		for (int i=0; i!=dna.length(); ++i)
+			add(dna.symbolAt(i));
+	}
+
+	/**
+	 * @return the symbols added so far
+	 */
+	public Dna getDna()
+	{
+		awaitFed();
+		synchronized (this)
+		{
+			return Dna.valueOf(symbols, length);
+		}
+	}
+
+	/**
+	 * @param bank a snapshot of the bank
+	 * @return true if the snapshot holds the types and templates this matcher was made with
+	 */
+	public boolean isCurrent(BankSnapshot bank)
+	{
+		if (this.bank == bank)
+			return true;
+		if (!types.equals(bank.getTypes()))
+			return false;
+		awaitFed();
+		synchronized (this)
+		{
+			columns();
+			//the types a change did not touch share their templates with the previous snapshot
+			for (int type_i=0; type_i!=types.size(); ++type_i)
+			{
+				List<SketchTemplate> list = bank.getTemplates(types.get(type_i));
+				if (list != templates.get(type_i))
+					return false;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Adds the normalized distances between the sketch and the templates of a type
+	 * @param type_i index of the type, in the types of the bank
+	 * @param scores where the KNN best scores are kept
+	 */
+	void score(int type_i, NearestScores scores)
+	{
+		awaitFed();
+		synchronized (this)
+		{
+			columns();
+			List<SketchTemplate> list = templates.get(type_i);
+			BitParallelLevenshtein.Column[] type = columns[type_i];
+			for (int t=0; t!=sizes[type_i]; ++t)
+			{
+				int longest = Math.max(length, list.get(t).length());
+				for (int i=0; i!=4; ++i)
+					scores.add(100*(float)type[4*t + i].distance()/longest);
+			}
+		}
+	}
+}
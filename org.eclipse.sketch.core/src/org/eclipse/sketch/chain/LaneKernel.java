@@ -0,0 +1,102 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Ugo Sangiorgi and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *  Ugo Sangiorgi <ugo.sangiorgi@gmail.com> - Initial contribution
+ *******************************************************************************/
+package org.eclipse.sketch.chain;
+
+import org.eclipse.sketch.Sketch.Dna;
+
+/**
+ * An edit distance kernel running on the vector units of the processor, in lanes of short
+ * integers: it compares a query with {@link #lanes()} texts at once, one lane per text, and
+ * fills the matrix of two words one anti-diagonal at a time. The distances are the same as
+ * the ones of {@link LevenshteinHandler#run(String, String)}.
+ *
+ * The kernel is written with the Vector API of recent JDKs, which this bundle cannot be
+ * built with: it is provided by the fragment org.eclipse.sketch.core.vector, and only
+ * runs on a JDK started with the jdk.incubator.vector module. {@link #create()} finds it
+ * at runtime, and tells when it cannot be used; the LANES mode then scores as EXHAUSTIVE,
+ * with the {@link BitParallelLevenshtein} kernel.
+ *
+ * A kernel reuses its working memory, so it must not be shared between threads.
+ */
+public abstract class LaneKernel
+{
+	//the implementation of the fragment
+	private static final String VECTOR_KERNEL = "org.eclipse.sketch.vector.VectorLaneKernel";
+
+	private static Class<?> kernel;
+	private static boolean searched;
+
+	/**
+	 * @return a new kernel, or null if the fragment is not installed or the JDK lacks the Vector API
+	 */
+	public static synchronized LaneKernel create()
+	{
+		if (!searched)
+		{
+			searched = true;
+			try
+			{
+				//a fragment shares the class loader of its host
+				Class<?> found = Class.forName(VECTOR_KERNEL, true, LaneKernel.class.getClassLoader());
+				found.newInstance();
+				kernel = found;
+			}
+			catch (ClassNotFoundException e)
+			{
+				//not installed
+			}
+			catch (LinkageError e)
+			{
+				System.err.println("The vector kernel needs a JDK 17 or newer started with --add-modules jdk.incubator.vector: "+e);
+			}
+			catch (Exception e)
+			{
+				e.printStackTrace();
+			}
+		}
+		if (kernel == null)
+			return null;
+
+		try
+		{
+			return (LaneKernel)kernel.newInstance();
+		}
+		catch (Exception e)
+		{
+			//it was created once already
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return the number of texts compared at once
+	 */
+	public abstract int lanes();
+
+	/**
+	 * Computes the edit distance between two DNAs, anti-diagonal by anti-diagonal.
+	 * @param s
+	 * @param t
+	 * @return the Levenshtein distance between s and t
+	 */
+	public abstract int distance(Dna s, Dna t);
+
+	/**
+	 * Computes the edit distances between a query and up to {@link #lanes()} texts, in a
+	 * single pass over the longest text.
+	 * @param query
+	 * @param texts the texts
+	 * @param from index of the first text to compare
+	 * @param count number of texts to compare, at most {@link #lanes()}
+	 * @param distances where to write the distance to each text, from index 0
+	 */
+	public abstract void distances(Dna query, Dna[] texts, int from, int count, int[] distances);
+}
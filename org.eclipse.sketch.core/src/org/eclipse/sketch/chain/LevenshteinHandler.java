@@ -12,10 +12,28 @@ package org.eclipse.sketch.chain;
 
 
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
+import org.eclipse.sketch.BankSnapshot;
+import org.eclipse.sketch.DnaProfile;
+import org.eclipse.sketch.MappedBank;
+import org.eclipse.sketch.RunLengthDna;
 import org.eclipse.sketch.Sketch;
+import org.eclipse.sketch.Sketch.Dna;
 import org.eclipse.sketch.SketchBank;
+import org.eclipse.sketch.SketchTemplate;
 import org.eclipse.sketch.exceptions.IllegalLengthException;
+import org.eclipse.sketch.util.BKTree;
+import org.eclipse.sketch.util.DnaClusters;
+import org.eclipse.sketch.util.DnaTrie;
+import org.eclipse.sketch.util.MinHashIndex;
+import org.eclipse.sketch.util.SortablePair;
 
 /**
  * Recognize the sketch based on its string form, based on work from Adrien Coyette, Sascha Schimke, Jean Vanderdonckt, and Claus Vielhauer - http://www.isys.ucl.ac.be/bchi/publications/2007/Schimke-Interact2007.pdf
@@ -24,8 +42,120 @@ import org.eclipse.sketch.exceptions.IllegalLengthException;
  */
 public class LevenshteinHandler extends SketchChainHandler 
 {
+	/**
+	 * How the bank is searched for the sketches closest to a new one
+	 */
+	public enum Mode
+	{
+		/** compares with every sketch of the bank, both stretched to the same length, in the 4 orientations */
+		EXHAUSTIVE,
+		/** asks the edit distance index of each type for its nearest sketches, in the 4 orientations, without stretching */
+		INDEXED,
+		/** uses the distances to every sketch of the bank, in the 4 orientations, without stretching, computed while the sketch was drawn (see {@link IncrementalMatcher}) */
+		INCREMENTAL,
+		/** compares the canonical forms of the sketch and of every sketch of the bank (see {@link Dna#canonical()}), stretched to the same length, once each */
+		CANONICAL,
+		/** as EXHAUSTIVE, but a closed sketch is compared with each closed sketch of the bank whatever the point it was started from (see {@link CyclicLevenshtein}) */
+		CYCLIC,
+		/** as EXHAUSTIVE, the distances being computed on the runs of the words (see {@link RunLengthLevenshtein}) */
+		RUN_LENGTH,
+		/** as EXHAUSTIVE, the query being compared with many orientations of the templates at once by the lane kernel (see {@link LaneKernel}); as EXHAUSTIVE when the kernel cannot be used */
+		LANES,
+		/** as INDEXED, the nearest sketches being found by walking a prefix tree of the sketches of each type (see {@link DnaTrie}), ranked by normalized distance */
+		TRIE,
+		/** as TRIE, but only the few sketches of each type found by its locality sensitive index (see {@link MinHashIndex}) are compared with the query: faster on very big banks, but the nearest sketch may be missed */
+		APPROXIMATE,
+		/** compares first the coarsest level of the pyramid of the sketch and of every sketch of the bank (see {@link SketchTemplate#getCoarse(int)}), then only the closest sketches of each type as EXHAUSTIVE does */
+		COARSE_TO_FINE,
+		/** as TRIE, the nearest sketches being found by comparing the query with the medoids of the clusters of each type first (see {@link DnaClusters}) */
+		CLUSTERED,
+		/** as EXHAUSTIVE, but the sketches of the types read from the binary bank are compared straight from its mapping (see {@link MappedBank}), without making templates of them; only the length difference bounds the distances */
+		MAPPED
+	}
+	
+	/**
+	 * Key of the {@link MatchStatistics} of the exhaustive scoring, in the result of the sketch
+	 */
+	public static final String STATISTICS_RESULT_KEY = "STATISTICS_RESULT_KEY_MatchStatistics";
+	
+	/**
+	 * Key of Boolean.TRUE in the result of a sketch that could not be recognized because the
+	 * bank was still being read from the disk, see {@link SketchBank#getReady()}
+	 */
+	public static final String BANK_LOADING_RESULT_KEY = "BANK_LOADING_RESULT_KEY_Boolean";
+	
 	private SketchChainHandler successor;
 	private static int KNN = 1; //Max number of winners by type; it is the K in 'KNN'
+	//number of closest types kept in the ranked result
+	private static int rankedTypes = 5;
+	//number of sketches of each type compared with each orientation of the query, in APPROXIMATE mode
+	private static final int CANDIDATES = 32;
+	//number of sketches of each type compared at full resolution, in COARSE_TO_FINE mode
+	private static final int REFINED = 8;
+	private static Mode mode = Mode.EXHAUSTIVE;
+	
+	//Number of templates in the bank from which the exhaustive scoring is split between threads
+	private static int parallelThreshold = 2000;
+	//Smallest number of templates scored by a single task
+	private static final int MIN_TASK_SIZE = 128;
+	private static ExecutorService pool;
+	
+	//index of the template of each type that was the closest to the last sketch, compared first
+	//so that the cutoff of the type is tight from the start
+	private static final HashMap<Object, Integer> lastClosest = new HashMap<Object, Integer>();
+	
+	//results of the last DNAs recognized, for the sketches drawn again the same way
+	private static final RecognitionCache cache = new RecognitionCache(256);
+	
+	//milliseconds a sketch waits for the bank to be read from the disk before giving up
+	private static long loadTimeout = 1000;
+	
+	/**
+	 * @return the number of nearest sketches averaged for each type
+	 */
+	static int getKnn()
+	{ return KNN; }
+	
+	/**
+	 * @return the number of closest types kept in the {@link RankedResult} of a sketch
+	 */
+	public static int getRankedTypes()
+	{ return rankedTypes; }
+	
+	public static void setRankedTypes(int n)
+	{ rankedTypes = n; }
+	
+	public static Mode getMode()
+	{ return mode; }
+	
+	public static void setMode(Mode m)
+	{ mode = m; }
+	
+	/**
+	 * @return the cache of the results of this stage, to read its counters or resize it
+	 */
+	public static RecognitionCache getCache()
+	{ return cache; }
+	
+	public static int getParallelThreshold()
+	{ return parallelThreshold; }
+	
+	/**
+	 * @param templates banks holding less templates than this are scored sequentially,
+	 * so that they don't pay for the tasks
+	 */
+	public static void setParallelThreshold(int templates)
+	{ parallelThreshold = templates; }
+	
+	public static long getLoadTimeout()
+	{ return loadTimeout; }
+	
+	/**
+	 * @param milliseconds how long a sketch drawn while the bank is still being read from
+	 * the disk waits for it, before being left unrecognized
+	 */
+	public static void setLoadTimeout(long milliseconds)
+	{ loadTimeout = milliseconds; }
 	
 	/**
 	 *@see SketchChainHandler#setSuccessor(SketchChainHandler)
@@ -36,129 +166,859 @@ public class LevenshteinHandler extends SketchChainHandler
 	
 	public String rotateDna90deg(String in)
 	{
-		StringBuffer out = new StringBuffer(in.length());
-		
-		for (int i=0; i!=in.length();++i)
-		{
-			char c = in.charAt(i);
-			switch(c)
-			{
-				case '1':
-				case '2':
-				case '3':
-				case '4':
-				case '5':
-				case '6':
-				case '7':
-				case '8': 
-					int val = Integer.parseInt(""+c)-1;
-					val = (val+2)%8 + 1;
-					out.append(val);
-				break;
-				default:
-					out.append(c);				
-			}
-		}
-		
-		return out.toString();
+		return new Dna(in).rotate90().toString();
 	}
 
 	@Override
 	public SketchChainHandler perform(Sketch sketch) {
 		System.out.println("LEVENSHTEIN CHAIN: is it a shape?");
-		String dna = sketch.getDna();
+		Dna dna = sketch.getPackedDna();
 		String debug = "";
 		if (dna.length()<3)
 			return this;
 		
+		//the bank is read in the background from the start of the plug-in, it is rarely still loading
+		if (!SketchBank.getInstance().awaitLoaded(loadTimeout, TimeUnit.MILLISECONDS))
+		{
+			sketch.getResult().put(BANK_LOADING_RESULT_KEY, Boolean.TRUE);
+			return this;
+		}
+		
+		//everything is read from the same version of the bank, whatever is taught meanwhile
+		BankSnapshot bank = SketchBank.getInstance().getSnapshot();
+		long generation = bank.getVersion();
+		List<Object> types = bank.getTypes();
+		MatchStatistics statistics = new MatchStatistics();
+		
+		//a cached result was computed with the same snapshot: nothing is compared, the
+		//statistics stay empty
+		float[] averages = cache.get(dna, mode, generation);
+		if (averages == null)
+		{
+			averages = score(bank, sketch, dna, statistics);
+			cache.put(dna, mode, averages, generation);
+		}
+		
 		HashMap<Object, Integer> result_map = new HashMap<Object, Integer>();
+		RankedResult ranked = new RankedResult(types, rankedTypes);
+		for(int type_i=0;type_i<types.size();type_i++)
+		{
+			Object type = types.get(type_i);
+			float average = averages[type_i];
+			if (average != -1)
+			{
+				ranked.add(type_i, average);
+				result_map.put(type, new Integer((int)average));
+			}
+			else
+				result_map.put(type, new Integer(-1));
+			debug += "\tNormalized distance from "+type+":\t"+average+"\n";
+		}
 		
-		for(int type_i=0;type_i<SketchBank.getInstance().getAvailableTypes().size();type_i++)
+		HashMap<String,Object> result = sketch.getResult();
+		result.put(Sketch.ELEMENT_RESULT_KEY, result_map);
+		ranked.rank();
+		result.put(RankedResult.RESULT_KEY, ranked);
+		if (mode==Mode.EXHAUSTIVE || mode==Mode.MAPPED || mode==Mode.RUN_LENGTH || mode==Mode.LANES)
 		{
-			Object type = SketchBank.getInstance().getAvailableTypes().get(type_i);
-			//debug += "\n\t is it a "+type.getDisplayName()+"?";
+			result.put(STATISTICS_RESULT_KEY, statistics);
+			debug += "\t"+statistics+"\n";
+		}
+
+		//System.out.println(debug);
+		return this;
+	}
+	
+	/**
+	 * Compares a DNA with every type of a snapshot of the bank, as the mode says, without
+	 * going through the cache of the chain
+	 * @param bank the snapshot to compare with
+	 * @param dna
+	 * @param statistics where the comparisons skipped and computed are counted
+	 * @return the normalized distance to each type of the snapshot, -1 for the types without sketches
+	 */
+	public float[] score(BankSnapshot bank, Dna dna, MatchStatistics statistics)
+	{
+		return score(bank, new Sketch(), dna, statistics);
+	}
+
+	/**
+	 * Compares a sketch with every type of the bank, as the mode says
+	 * @param bank
+	 * @param sketch
+	 * @param dna the DNA of the sketch
+	 * @param statistics where the comparisons skipped and computed are counted
+	 * @return the normalized distance to each type of the bank, -1 for the types without sketches
+	 */
+	private float[] score(BankSnapshot bank, Sketch sketch, Dna dna, MatchStatistics statistics)
+	{
+		StretchedQuery query = new StretchedQuery(dna);
+		NearestScores scores = new NearestScores(KNN);
+		
+		Dna[] rotations = new Dna[4];
+		rotations[0] = dna;
+		for (int i=1; i!=4; ++i)
+			rotations[i] = rotations[i-1].rotate90();
+		
+		List<Object> types = bank.getTypes();
+		float[] averages = new float[types.size()];
+		NearestScores[] parallelScores = null;
+		IncrementalMatcher matcher = null;
+		if (mode==Mode.EXHAUSTIVE)
+			parallelScores = parallelScores(bank, dna, statistics);
+		else if (mode==Mode.INCREMENTAL)
+			matcher = incrementalMatcher(bank, sketch, dna);
+		StretchedQuery canonical = null;
+		if (mode==Mode.CANONICAL)
+			canonical = new StretchedQuery(dna.canonical());
+		boolean cyclic = mode==Mode.CYCLIC && dna.isClosed();
+		boolean runLength = mode==Mode.RUN_LENGTH;
+		LaneKernel lanes = mode==Mode.LANES ? LaneKernel.create() : null;
+		StretchedQuery coarse = null;
+		if (mode==Mode.COARSE_TO_FINE)
+			coarse = new StretchedQuery(dna.coarsen(SketchTemplate.PYRAMID[SketchTemplate.PYRAMID.length-1]));
+		
+		for(int type_i=0;type_i<types.size();type_i++)
+		{
+			Object type = types.get(type_i);
 			
-			LinkedList<Float> scores = new LinkedList<Float>();
+			//in MAPPED mode the words of the mapped types are not made into templates
+			MappedBank.Words words = mode==Mode.MAPPED ? bank.getWords(type) : null;
+			List<SketchTemplate> templates = words==null ? bank.getTemplates(type) : bank.getAppendedTemplates(type);
+			if((words!=null && words.size()>0) || (templates!=null && templates.size()>0))
+			{
+				float average;
+				if (words!=null)
+				{
+					//the sketches taught since the bank was mapped are templates
+					scores.clear();
+					mappedScore(words, query, scores, statistics);
+					exhaustiveScore(templates, 0, templates.size(), -1, query, scores, statistics);
+					average = scores.average();
+				}
+				else if (mode==Mode.INDEXED)
+					average = indexedScore(bank, type, rotations);
+				else if (mode==Mode.TRIE)
+					average = trieScore(bank, type, rotations);
+				else if (mode==Mode.APPROXIMATE)
+					average = approximateScore(bank, type, rotations);
+				else if (mode==Mode.CLUSTERED)
+					average = clusteredScore(bank, type, rotations);
+				else if (matcher!=null)
+				{
+					scores.clear();
+					matcher.score(type_i, scores);
+					average = scores.average();
+				}
+				else if (canonical!=null)
+				{
+					scores.clear();
+					canonicalScore(templates, canonical, scores);
+					average = scores.average();
+				}
+				else if (cyclic)
+				{
+					scores.clear();
+					cyclicScore(templates, query, scores);
+					average = scores.average();
+				}
+				else if (runLength)
+				{
+					scores.clear();
+					runLengthScore(templates, query, scores, statistics);
+					average = scores.average();
+				}
+				else if (lanes!=null)
+				{
+					scores.clear();
+					laneScore(templates, query, scores, statistics, lanes);
+					average = scores.average();
+				}
+				else if (coarse!=null)
+				{
+					scores.clear();
+					coarseToFineScore(templates, coarse, query, scores, statistics);
+					average = scores.average();
+				}
+				else if (parallelScores!=null)
+					average = parallelScores[type_i].average();
+				else
+				{
+					scores.clear();
+					int closest = exhaustiveScore(templates, 0, templates.size(), getLastClosest(type), query, scores, statistics);
+					setLastClosest(type, closest);
+					average = scores.average();
+				}
+				averages[type_i] = average;
+			}
+			else
+				averages[type_i] = -1;
+		}
+		return averages;
+	}
+	
+	/**
+	 * Compares the query with a range of templates of a type, in the 4 orientations.
+	 * The shortest of the two words is stretched to the length of the other one; the stretched
+	 * and rotated variants come precomputed, so only the distances are computed here.
+	 * 
+	 * Before computing a distance, cheaper lower bounds of it are tried in turn (length
+	 * difference, symbol histograms, then 2-grams, see {@link DnaProfile}): when a bound
+	 * already scores no better than the KNN worst score of the type, the distance could not
+	 * enter the best scores either and is skipped.
+	 * 
+	 * The KNN worst score is shared by the 4 orientations and all the templates of the type,
+	 * and gives the cutoff above which a distance is not needed. When the cutoff is narrow
+	 * enough, the distance is computed by {@link #boundedRun}, which gives up as soon as
+	 * it is exceeded; otherwise the bit-parallel kernel is cheaper.
+	 * @param templates the templates of the type
+	 * @param from index of the first template to compare
+	 * @param to index after the last template to compare
+	 * @param first index of a template to compare before the others, if it is in the range
+	 * @param query the dna of the sketch
+	 * @param scores where the KNN best scores are kept
+	 * @param statistics where the comparisons skipped and computed are counted
+	 * @return the index of the closest template found, or -1 if none was closer than the cutoff
+	 */
+	static int exhaustiveScore(List<SketchTemplate> templates, int from, int to, int first, StretchedQuery query, NearestScores scores, MatchStatistics statistics)
+	{
+		int n = query.length();
+		boolean seeded = first >= from && first < to;
+		int closest = -1;
+		float closestScore = Float.MAX_VALUE;
+		
+		for (int c=seeded ? -1 : 0; c!=to-from; ++c)
+		{
+			int t = c < 0 ? first : from + c;
+			if (c >= 0 && seeded && t == first)
+				continue;
 			
-			ArrayList<String> sketches = SketchBank.getInstance().getSketches(type);
-			if(sketches!=null && sketches.size()>0)
+			SketchTemplate template = templates.get(t);
+			try 
 			{
-				int sum = 0;
-				int sum2 = 0; //comparison var, can be removed in the release
+				int length = Math.max(n, template.length());
+				statistics.candidates += 4;
 				
-				for(int sketch_i=0;sketch_i<sketches.size();sketch_i++)
+				BitParallelLevenshtein pattern = query.stretchedTo(length);
+				Dna[] bankDnas = template.getStretchedRotations(length);
+				if (score(Math.abs(pattern.length() - bankDnas[0].length()), length) >= scores.worst())
 				{
-					String bankDna = sketches.get(sketch_i);
-					
-					for (int i=0; i!=4; ++i)
+					statistics.prunedByLength += 4;
+					continue;
+				}
+				
+				DnaProfile queryProfile = query.profileAt(length);
+				DnaProfile bankProfile = template.getStretchedProfile(length);
+				for (int i=0; i!=4; ++i)
+				{
+					if (score(queryProfile.histogramBound(bankProfile, i), length) >= scores.worst())
+						statistics.prunedByHistogram++;
+					else if (score(queryProfile.gramBound(bankProfile, i), length) >= scores.worst())
+						statistics.prunedByGrams++;
+					else
 					{
-						try 
+						statistics.computed++;
+						int k = cutoff(scores.worst(), length);
+						int distance;
+						if (2*k+1 <= pattern.blocks()+1)
 						{
-							String stretchedDna; 
-							if (bankDna.length() > dna.length())
-								stretchedDna = stretch(dna, bankDna.length());
-							else
-							{
-								stretchedDna = dna;
-								bankDna = stretch(bankDna, dna.length());
-							}
-							
-							debug += (type)+"\n";
-							debug += ("dna : "+stretchedDna)+"\n";
-							debug += ("bank: "+bankDna)+"\n";
-							
-							int distance = run(stretchedDna,bankDna);						
-							float normalized_distance = 100*(float)distance/stretchedDna.length();
-							debug += ("Distance % (stretch)   :"+normalized_distance)+"\n";
-							
-							//This block of code is for comparison, it can be removed in the release 
-								int distance2 = run(dna,sketches.get(sketch_i));						
-								float normalized_distance2 = 100*(float)distance2/Math.max(dna.length(), sketches.get(sketch_i).length()); //can
-								debug += ("Distance % (nostretch) :"+normalized_distance2)+"\n";
-	
-							scores.add(normalized_distance);
-								
-							sum += (int)normalized_distance;
-							sum2 += (int)normalized_distance2;
+							statistics.bounded++;
+							distance = query.boundedDistance(length, bankDnas[i], k);
+							if (distance > k)
+								statistics.abandoned++;
 						}
-						catch (IllegalLengthException e) 
+						else
+							distance = pattern.distance(bankDnas[i]);
+						
+						float score = score(distance, length);
+						scores.add(score);
+						if (score < closestScore)
 						{
-							System.err.println("ERROR : can't stretch this dna");
-							e.printStackTrace();
+							closestScore = score;
+							closest = t;
 						}
-						
-						bankDna = rotateDna90deg(bankDna);
 					}
 				}
+			}
+			catch (IllegalLengthException e) 
+			{
+				System.err.println("ERROR : can't stretch this dna");
+				e.printStackTrace();
+			}
+		}
+		return closest;
+	}
+	
+	/**
+	 * Compares the query with the words of a type read from the mapped bank, in the 4
+	 * orientations, as {@link #exhaustiveScore} does but without templates: each word is
+	 * decoded from the mapping into a buffer, stretched there when it is the shortest of the
+	 * two, and the query is rotated instead of the word, which gives the same 4 distances.
+	 * Only the length difference is tried as a lower bound, the profiles of the words not
+	 * being kept.
+	 * @param words the words of the type
+	 * @param query the dna of the sketch
+	 * @param scores where the KNN best scores are kept
+	 * @param statistics where the comparisons skipped and computed are counted
+	 */
+	private static void mappedScore(MappedBank.Words words, StretchedQuery query, NearestScores scores, MatchStatistics statistics)
+	{
+		int n = query.length();
+		byte[] word = new byte[64];
+		byte[] stretched = new byte[64];
+		
+		for (int t=0; t!=words.size(); ++t)
+		{
+			try
+			{
+				int m = words.length(t);
+				int length = Math.max(n, m);
+				statistics.candidates += 4;
 				
-				Collections.sort(scores);
-				while(scores.size() > KNN)
-					scores.removeLast();
+				BitParallelLevenshtein pattern = query.stretchedTo(length);
+				if (word.length < m)
+					word = new byte[2*m];
+				words.getSymbols(t, word);
+				byte[] text = word;
+				int textLength = m;
+				if (m < length)
+				{
+					int bound = Dna.stretchBound(m, length);
+					if (stretched.length < bound)
+						stretched = new byte[2*bound];
+					textLength = Dna.stretch(word, m, length, stretched);
+					text = stretched;
+				}
+				if (score(Math.abs(pattern.length() - textLength), length) >= scores.worst())
+				{
+					statistics.prunedByLength += 4;
+					continue;
+				}
 				
-				float average=0;
-				for (Float score:scores)
-					average+=score;				
-				average /= scores.size();		
+				for (int i=0; i!=4; ++i)
+				{
+					statistics.computed++;
+					scores.add(score(query.rotatedTo(length, i).distance(text, textLength), length));
+				}
+			}
+			catch (IllegalLengthException e)
+			{
+				System.err.println("ERROR : can't stretch this dna");
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * Compares the canonical form of the query with the canonical form of each template,
+	 * the shortest one stretched to the length of the other: orientation and drawing
+	 * direction were taken out once for all, so one comparison per template is enough.
+	 * @param templates the templates of the type
+	 * @param query the canonical dna of the sketch
+	 * @param scores where the KNN best scores are kept
+	 */
+	private static void canonicalScore(List<SketchTemplate> templates, StretchedQuery query, NearestScores scores)
+	{
+		int n = query.length();
+		for (SketchTemplate template : templates)
+		{
+			try
+			{
+				int length = Math.max(n, template.length());
+				BitParallelLevenshtein pattern = query.stretchedTo(length);
+				scores.add(score(pattern.distance(template.getStretchedCanonical(length)), length));
+			}
+			catch (IllegalLengthException e)
+			{
+				System.err.println("ERROR : can't stretch this dna");
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * Compares a closed query with each template, in the 4 orientations, the shortest one
+	 * stretched to the length of the other. The closed templates are compared from the
+	 * shift that suits the query best, so one template per shape is enough whatever the
+	 * point it was started from; the other templates are compared as they are.
+	 * @param templates the templates of the type
+	 * @param query the closed dna of the sketch
+	 * @param scores where the KNN best scores are kept
+	 */
+	private static void cyclicScore(List<SketchTemplate> templates, StretchedQuery query, NearestScores scores)
+	{
+		int n = query.length();
+		for (SketchTemplate template : templates)
+		{
+			try
+			{
+				int length = Math.max(n, template.length());
+				BitParallelLevenshtein pattern = query.stretchedTo(length);
+				for (Dna rotation : template.getStretchedRotations(length))
+				{
+					int d = template.isClosed() ? CyclicLevenshtein.distance(pattern, rotation) : pattern.distance(rotation);
+					scores.add(score(d, length));
+				}
+			}
+			catch (IllegalLengthException e)
+			{
+				System.err.println("ERROR : can't stretch this dna");
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * Compares the query with each template, in the 4 orientations, the shortest one
+	 * stretched to the length of the other, as the exhaustive scoring does, but on their runs:
+	 * stretching makes the runs longer, not more numerous. The candidates are pruned by
+	 * length, histogram and 2-grams as in {@link #exhaustiveScore}, the templates profiled
+	 * on their runs.
+	 * @param templates the templates of the type
+	 * @param query the dna of the sketch
+	 * @param scores where the KNN best scores are kept
+	 * @param statistics where the candidates computed and pruned are counted
+	 */
+	private static void runLengthScore(List<SketchTemplate> templates, StretchedQuery query, NearestScores scores, MatchStatistics statistics)
+	{
+		int n = query.length();
+		for (SketchTemplate template : templates)
+		{
+			try
+			{
+				int length = Math.max(n, template.length());
+				statistics.candidates += 4;
 				
-				int average2 = sum/sketches.size(); //can be removed in release
-				int average3 = sum2/sketches.size(); //can be removed in release
+				RunLengthDna runs = query.runLengthAt(length);
+				RunLengthDna[] bankRuns = template.getStretchedRunLengths(length);
+				if (score(Math.abs(runs.length() - bankRuns[0].length()), length) >= scores.worst())
+				{
+					statistics.prunedByLength += 4;
+					continue;
+				}
 				
-				result_map.put(type, new Integer((int)average));
-				debug += "\tNormalized distance from "+type+":\t"+average+"\t"+average2+"\t"+average3+"\n";
+				DnaProfile queryProfile = query.profileAt(length);
+				DnaProfile bankProfile = template.getStretchedRunLengthProfile(length);
+				for (int i=0; i!=4; ++i)
+				{
+					if (score(queryProfile.histogramBound(bankProfile, i), length) >= scores.worst())
+						statistics.prunedByHistogram++;
+					else if (score(queryProfile.gramBound(bankProfile, i), length) >= scores.worst())
+						statistics.prunedByGrams++;
+					else
+					{
+						statistics.computed++;
+						scores.add(score(RunLengthLevenshtein.distance(runs, bankRuns[i]), length));
+					}
+				}
 			}
+			catch (IllegalLengthException e)
+			{
+				System.err.println("ERROR : can't stretch this dna");
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * Compares the query with each template, in the 4 orientations, the shortest one
+	 * stretched to the length of the other, as the exhaustive scoring does, pruned by the
+	 * same bounds. The orientations left to compare with the same stretched query are given
+	 * to the kernel together, to fill its lanes: those of all the templates not longer than
+	 * the query, then those of each longer template. An orientation is pruned with the KNN
+	 * worst score known when it is put in a lane, never a better one than its own.
+	 * @param templates the templates of the type
+	 * @param query the dna of the sketch
+	 * @param scores where the KNN best scores are kept
+	 * @param statistics where the candidates computed and pruned are counted
+	 * @param kernel the lane kernel of the recognition
+	 */
+	private static void laneScore(List<SketchTemplate> templates, StretchedQuery query, NearestScores scores, MatchStatistics statistics, LaneKernel kernel)
+	{
+		int n = query.length();
+		Dna[] texts = new Dna[kernel.lanes()];
+		int[] distances = new int[kernel.lanes()];
+		try
+		{
+			int count = 0;
+			for (SketchTemplate template : templates)
+				if (template.length() <= n)
+					count = laneCandidates(kernel, query, n, template, texts, count, distances, scores, statistics);
+			laneDistances(kernel, query.dnaAt(n), texts, count, n, distances, scores);
+
+			for (SketchTemplate template : templates)
+				if (template.length() > n)
+				{
+					int length = template.length();
+					count = laneCandidates(kernel, query, length, template, texts, 0, distances, scores, statistics);
+					laneDistances(kernel, query.dnaAt(length), texts, count, length, distances, scores);
+				}
+		}
+		catch (IllegalLengthException e)
+		{
+			System.err.println("ERROR : can't stretch this dna");
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Puts in the lanes the orientations of a template the bounds could not prune, and
+	 * computes the lanes once they are all filled
+	 * @param count the number of lanes already filled
+	 * @return the number of lanes filled
+	 */
+	private static int laneCandidates(LaneKernel kernel, StretchedQuery query, int length, SketchTemplate template, Dna[] texts, int count, int[] distances, NearestScores scores, MatchStatistics statistics) throws IllegalLengthException
+	{
+		statistics.candidates += 4;
+		Dna pattern = query.dnaAt(length);
+		Dna[] bankDnas = template.getStretchedRotations(length);
+		if (score(Math.abs(pattern.length() - bankDnas[0].length()), length) >= scores.worst())
+		{
+			statistics.prunedByLength += 4;
+			return count;
+		}
+		
+		DnaProfile queryProfile = query.profileAt(length);
+		DnaProfile bankProfile = template.getStretchedProfile(length);
+		for (int i=0; i!=4; ++i)
+		{
+			if (score(queryProfile.histogramBound(bankProfile, i), length) >= scores.worst())
+				statistics.prunedByHistogram++;
+			else if (score(queryProfile.gramBound(bankProfile, i), length) >= scores.worst())
+				statistics.prunedByGrams++;
 			else
-			{ 
-				result_map.put(type, new Integer(-1));
-				debug += "\tNormalized distance from "+type+":\t-1\n";
+			{
+				statistics.computed++;
+				texts[count++] = bankDnas[i];
+				if (count == texts.length)
+				{
+					laneDistances(kernel, pattern, texts, count, length, distances, scores);
+					count = 0;
+				}
 			}
-			
+		}
+		return count;
+	}
+	
+	private static void laneDistances(LaneKernel kernel, Dna pattern, Dna[] texts, int count, int length, int[] distances, NearestScores scores)
+	{
+		if (count == 0)
+			return;
+		kernel.distances(pattern, texts, 0, count, distances);
+		for (int l=0; l!=count; ++l)
+			scores.add(score(distances[l], length));
+	}
+	
+	/**
+	 * Compares the coarsest level of the query with the coarsest level of each template, in
+	 * the 4 orientations, then compares at full resolution, as the exhaustive scoring does,
+	 * only the templates that scored best at the coarse level. Most of the distances are then
+	 * computed on words 4 times shorter, but a template scoring badly at the coarse level
+	 * and well at full resolution is missed.
+	 * @param templates the templates of the type
+	 * @param coarse the coarsest level of the dna of the sketch
+	 * @param query the dna of the sketch
+	 * @param scores where the KNN best scores are kept
+	 * @param statistics where the comparisons at full resolution are counted
+	 */
+	private static void coarseToFineScore(List<SketchTemplate> templates, StretchedQuery coarse, StretchedQuery query, NearestScores scores, MatchStatistics statistics)
+	{
+		int refined = Math.max(REFINED, KNN);
+		if (templates.size() <= refined || coarse.length() == 0)
+		{
+			exhaustiveScore(templates, 0, templates.size(), -1, query, scores, statistics);
+			return;
 		}
 		
-		HashMap<String,Object> result = sketch.getResult();
-		result.put(Sketch.ELEMENT_RESULT_KEY, result_map);
-
-		//System.out.println(debug);
-		return this;
+		int level = SketchTemplate.PYRAMID.length-1;
+		int n = coarse.length();
+		ArrayList<SortablePair<Integer,Float>> ranking = new ArrayList<SortablePair<Integer,Float>>(templates.size());
+		for (int t=0; t!=templates.size(); ++t)
+		{
+			SketchTemplate template = templates.get(t).getCoarse(level);
+			float best = Float.MAX_VALUE;
+			try
+			{
+				int length = Math.max(n, template.length());
+				BitParallelLevenshtein pattern = coarse.stretchedTo(length);
+				for (Dna rotation : template.getStretchedRotations(length))
+					best = Math.min(best, score(pattern.distance(rotation), length));
+			}
+			catch (IllegalLengthException e)
+			{
+				System.err.println("ERROR : can't stretch this dna");
+				e.printStackTrace();
+			}
+			ranking.add(new SortablePair<Integer,Float>(t, best));
+		}
+		Collections.sort(ranking);
+		
+		ArrayList<SketchTemplate> closest = new ArrayList<SketchTemplate>(refined);
+		for (int i=0; i!=refined; ++i)
+			closest.add(templates.get(ranking.get(i).key()));
+		exhaustiveScore(closest, 0, closest.size(), -1, query, scores, statistics);
+	}
+	
+	/**
+	 * @param worst the KNN worst score of a type
+	 * @param length the length of the longest word compared
+	 * @return the largest distance whose score is better than worst
+	 */
+	private static int cutoff(float worst, int length)
+	{
+		if (worst == Float.MAX_VALUE)
+			return Integer.MAX_VALUE / 2;
+		
+		int k = (int)(worst*length/100);
+		while (k >= 0 && score(k, length) >= worst)
+			k--;
+		while (score(k+1, length) < worst)
+			k++;
+		return k;
+	}
+	
+	private static int getLastClosest(Object type)
+	{
+		synchronized (lastClosest)
+		{
+			Integer closest = lastClosest.get(type);
+			return closest == null ? -1 : closest;
+		}
+	}
+	
+	private static void setLastClosest(Object type, int closest)
+	{
+		if (closest < 0)
+			return;
+		synchronized (lastClosest)
+		{
+			lastClosest.put(type, closest);
+		}
+	}
+	
+	/**
+	 * @param distance an edit distance, or a lower bound of it
+	 * @param length the length of the longest word compared
+	 * @return the distance normalized by the length, as kept by {@link NearestScores}
+	 */
+	private static float score(int distance, int length)
+	{
+		return 100*(float)distance/length;
+	}
+	
+	/**
+	 * Scores a (type, range of templates) slice of the bank, with its own copy of the query
+	 * since compiled patterns can't be shared between threads.
+	 */
+	private static class ScoringTask implements Callable<NearestScores>
+	{
+		private final List<SketchTemplate> templates;
+		private final int from, to;
+		private final Dna dna;
+		final MatchStatistics statistics = new MatchStatistics();
+		
+		ScoringTask(List<SketchTemplate> templates, int from, int to, Dna dna)
+		{
+			this.templates = templates;
+			this.from = from;
+			this.to = to;
+			this.dna = dna;
+		}
+		
+		public NearestScores call()
+		{
+			NearestScores scores = new NearestScores(KNN);
+			exhaustiveScore(templates, from, to, -1, new StretchedQuery(dna), scores, statistics);
+			return scores;
+		}
+	}
+	
+	static synchronized ExecutorService getPool()
+	{
+		if (pool == null)
+		{
+			pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "Sketch scoring");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return pool;
+	}
+	
+	/**
+	 * Splits the exhaustive scoring of the bank in (type, range of templates) tasks run on a
+	 * thread pool, each one keeping its own KNN best scores, and merges them by type.
+	 * @param bank the snapshot of the bank being matched
+	 * @param dna the dna of the sketch
+	 * @param statistics where the comparisons of all the tasks are counted
+	 * @return the KNN best scores of each type, or null if the bank is too small to be worth it
+	 */
+	private NearestScores[] parallelScores(BankSnapshot bank, Dna dna, MatchStatistics statistics)
+	{
+		List<Object> types = bank.getTypes();
+		int total = 0;
+		for (Object type : types)
+		{
+			List<SketchTemplate> templates = bank.getTemplates(type);
+			if (templates != null)
+				total += templates.size();
+		}
+		int threads = Runtime.getRuntime().availableProcessors();
+		if (total < parallelThreshold || threads < 2)
+			return null;
+		
+		int taskSize = Math.max(MIN_TASK_SIZE, total / (threads*4));
+		ArrayList<ScoringTask> tasks = new ArrayList<ScoringTask>();
+		ArrayList<Future<NearestScores>> futures = new ArrayList<Future<NearestScores>>();
+		ArrayList<Integer> owners = new ArrayList<Integer>();
+		for (int type_i=0; type_i!=types.size(); ++type_i)
+		{
+			List<SketchTemplate> templates = bank.getTemplates(types.get(type_i));
+			if (templates == null)
+				continue;
+			for (int from=0; from<templates.size(); from+=taskSize)
+			{
+				int to = Math.min(templates.size(), from+taskSize);
+				ScoringTask task = new ScoringTask(templates, from, to, dna);
+				tasks.add(task);
+				futures.add(getPool().submit(task));
+				owners.add(type_i);
+			}
+		}
+		
+		NearestScores[] scores = new NearestScores[types.size()];
+		for (int i=0; i!=scores.length; ++i)
+			scores[i] = new NearestScores(KNN);
+		try
+		{
+			for (int i=0; i!=futures.size(); ++i)
+			{
+				scores[owners.get(i)].addAll(futures.get(i).get());
+				statistics.add(tasks.get(i).statistics);
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		catch (ExecutionException e)
+		{
+			e.printStackTrace();
+			return null;
+		}
+		return scores;
+	}
+	
+	/**
+	 * @param bank the snapshot of the bank being matched
+	 * @param sketch
+	 * @param dna the dna of the sketch
+	 * @return the matcher fed while the sketch was drawn, or a new one fed now if there is none
+	 * or if the bank changed since
+	 */
+	private IncrementalMatcher incrementalMatcher(BankSnapshot bank, Sketch sketch, Dna dna)
+	{
+		IncrementalMatcher matcher = (IncrementalMatcher)sketch.getResult().get(IncrementalMatcher.MATCHER_RESULT_KEY);
+		if (matcher==null || !matcher.isCurrent(bank) || !matcher.getDna().equals(dna))
+		{
+			matcher = new IncrementalMatcher(bank);
+			matcher.addAll(dna);
+		}
+		return matcher;
+	}
+	
+	/**
+	 * Scores a type with the KNN nearest neighbours found by its index. Rotating the query
+	 * instead of the sketches of the bank gives the same 4 comparisons per sketch.
+	 * @param bank the snapshot of the bank being matched
+	 * @param type
+	 * @param rotations the dna of the query, in its 4 orientations
+	 * @return the average normalized distance of the nearest sketches
+	 */
+	private float indexedScore(BankSnapshot bank, Object type, Dna[] rotations)
+	{
+		BKTree<Dna> index = bank.getIndex(type);
+		NearestScores scores = new NearestScores(KNN);
+		
+		for (Dna rotated : rotations)
+		{
+			for (SortablePair<Dna,Integer> neighbour : index.nearest(rotated, KNN))
+			{
+				int length = Math.max(rotated.length(), neighbour.key().length());
+				scores.add(100*(float)neighbour.value()/length);
+			}
+		}
+		return scores.average();
+	}
+	
+	/**
+	 * Scores a type with the KNN best normalized distances found in its prefix tree, in the
+	 * 4 orientations.
+	 * @param bank the snapshot of the bank being matched
+	 * @param type
+	 * @param rotations the dna of the query, in its 4 orientations
+	 * @return the average normalized distance of the nearest sketches
+	 */
+	private float trieScore(BankSnapshot bank, Object type, Dna[] rotations)
+	{
+		DnaTrie trie = bank.getTrie(type);
+		NearestScores scores = new NearestScores(KNN);
+		
+		for (Dna rotated : rotations)
+			for (float score : trie.nearest(rotated, KNN))
+				scores.add(score);
+		return scores.average();
+	}
+	
+	/**
+	 * Scores a type with the KNN best normalized distances found through its clusters, in the
+	 * 4 orientations.
+	 * @param bank the snapshot of the bank being matched
+	 * @param type
+	 * @param rotations the dna of the query, in its 4 orientations
+	 * @return the average normalized distance of the nearest sketches
+	 */
+	private float clusteredScore(BankSnapshot bank, Object type, Dna[] rotations)
+	{
+		DnaClusters clusters = bank.getClusters(type);
+		NearestScores scores = new NearestScores(KNN);
+		
+		for (Dna rotated : rotations)
+			for (float score : clusters.nearest(rotated, KNN))
+				scores.add(score);
+		return scores.average();
+	}
+	
+	/**
+	 * Scores a type with the KNN best normalized distances to the candidates given by its
+	 * locality sensitive index, in the 4 orientations. When the type has no more sketches
+	 * than the candidates wanted, or none of them is similar enough to be a candidate, the
+	 * type is scored exactly, as in TRIE mode.
+	 * @param bank the snapshot of the bank being matched
+	 * @param type
+	 * @param rotations the dna of the query, in its 4 orientations
+	 * @return the average normalized distance of the nearest candidates
+	 */
+	private float approximateScore(BankSnapshot bank, Object type, Dna[] rotations)
+	{
+		MinHashIndex index = bank.getHashIndex(type);
+		if (index.size() <= CANDIDATES)
+			return trieScore(bank, type, rotations);
+		NearestScores scores = new NearestScores(KNN);
+		
+		for (Dna rotated : rotations)
+		{
+			BitParallelLevenshtein pattern = new BitParallelLevenshtein(rotated);
+			for (Dna candidate : index.candidates(rotated, CANDIDATES))
+				scores.add(score(pattern.distance(candidate), Math.max(rotated.length(), candidate.length())));
+		}
+		if (scores.size() == 0)
+			return trieScore(bank, type, rotations);
+		return scores.average();
 	}
 	
 	/**
@@ -178,63 +1038,23 @@ public class LevenshteinHandler extends SketchChainHandler
 	 * current length of the Dna
 	 * @return the new Dna, stretched
 	 */
-	private String stretch(String dna, int length) throws IllegalLengthException 
+	public static String stretch(String dna, int length) throws IllegalLengthException 
 	{
-		//System.out.println("Stretching "+dna);
-		int curlength = dna.length();
-		
-		//Handling lengths that are too big
-			if (curlength > length)
-				throw new IllegalLengthException(length);
-			if (curlength == length)
-				return dna;
-		
-		float step = curlength/(float)(length-curlength);
-		//System.out.println("step = "+step);
-		if (step==0) //happens if we sketch a unique point
-			step = 0.1f;
-		StringBuffer out = new StringBuffer();		
-
-		for (float i=0; i<curlength; i+=step)
-		{
-			if (i+step > curlength)
-				out.append(dna.substring((int)i));
-			else
-			{
-				char c = dna.charAt((int)(i+step-1));
-				if (c=='0') //0 should not be repeated, so handled a different way
-				{
-					if (step >= 1)
-					{
-						c = dna.charAt((int)(i+step-2));
-						out.append(dna.substring((int)i,(int)(i+step-1))).append(c);
-					}
-					out.append('0');
-				}
-				else
-					out.append(dna.substring((int)i,(int)(i+step))).append(c);
-			}
-		}
-		
-		//This is to make sure that the stretching gives the right size
-			while (out.length() < length)
-				out.append(dna.charAt((int)(dna.length()-1)));
-		
-		return out.toString();
+		return new Dna(dna).stretch(length).toString();
 	}
+	
 	/**
 	 * Test function
 	 */
 	public static void main(String args[])
 	{
-		LevenshteinHandler l = new LevenshteinHandler();
 		try 
 		{
 			String a;
-			a = l.stretch("12034056", 20); 
+			a = stretch("12034056", 20); 
 			System.out.println(a+";length:"+a.length());
 			
-			a = l.stretch("12034056078", 20); 
+			a = stretch("12034056078", 20); 
 			System.out.println(a+";length:"+a.length());
 			
 			/*a = l.stretch("3333345555567777899990", 95); 
@@ -252,11 +1072,12 @@ public class LevenshteinHandler extends SketchChainHandler
 	 * 
 	 * @author Chas Emerick http://www.merriampark.com/ldjava.htm  
 	 * @author Michael Gilleland http://www.merriampark.com/ld.htm
+	 * @see BitParallelLevenshtein, the kernel used by the recognition
 	 * @param s
 	 * @param t
 	 * @return
 	 */
-	private int run (String s, String t) {
+	public static int run (String s, String t) {
 		  if (s == null || t == null) {
 		    throw new IllegalArgumentException("Strings must not be null");
 		  }
@@ -323,5 +1144,98 @@ public class LevenshteinHandler extends SketchChainHandler
 		  // actually has the most recent cost counts
 		  return p[n];
 		}
+
+	/**
+	 * Thresholded variant of {@link #run(String, String)}, after E. Ukkonen, "Algorithms for
+	 * approximate string matching" (1985): only the cells of the band |i-j| &lt;= k are computed,
+	 * the others being above k anyway, and the computation stops as soon as a whole row is above
+	 * k, since every alignment goes through that row.
+	 * @param s
+	 * @param t
+	 * @param k the cutoff
+	 * @return the distance between s and t if it is at most k, k+1 otherwise
+	 */
+	public static int run(String s, String t, int k)
+	{
+		if (s == null || t == null)
+			throw new IllegalArgumentException("Strings must not be null");
+
+		if (k < 0)
+			return k+1;
+
+		byte[] a = new byte[s.length()];
+		byte[] b = new byte[t.length()];
+		for (int i=0; i!=a.length; ++i)
+			a[i] = (byte)Dna.symbolOf(s.charAt(i));
+		for (int j=0; j!=b.length; ++j)
+			b[j] = (byte)Dna.symbolOf(t.charAt(j));
+		for (int i=0; i!=a.length; ++i)
+			if (a[i] < 0)
+				return Math.min(run(s, t), k+1);
+		for (int j=0; j!=b.length; ++j)
+			if (b[j] < 0)
+				return Math.min(run(s, t), k+1);
+
+		return boundedRun(a, a.length, b, b.length, k, new int[a.length+1], new int[a.length+1]);
+	}
+
+	/**
+	 * @see #run(String, String, int)
+	 * @param s the symbols of the first word
+	 * @param n the length of s
+	 * @param t the symbols of the second word
+	 * @param m the length of t
+	 * @param k the cutoff, not negative
+	 * @param p working row, at least n+1 long
+	 * @param d working row, at least n+1 long
+	 * @return the distance between s and t if it is at most k, k+1 otherwise
+	 */
+	static int boundedRun(byte[] s, int n, byte[] t, int m, int k, int[] p, int[] d)
+	{
+		final int above = k+1;
+		if (Math.abs(n-m) > k)
+			return above;
+		if (n == 0 || m == 0)
+			return Math.max(n, m);
+
+		for (int i=0; i<=n; i++)
+			p[i] = i <= k ? i : above;
+
+		for (int j=1; j<=m; j++)
+		{
+			int lo = Math.max(1, j-k);
+			int hi = Math.min(n, j+k);
+			int left = lo == 1 ? Math.min(j, above) : above;
+			d[lo-1] = left;
+			int rowMin = left;
+
+			byte t_j = t[j-1];
+			for (int i=lo; i<=hi; i++)
+			{
+				int cost = p[i-1] + (s[i-1]==t_j ? 0 : 1);
+				int v = d[i-1]+1;
+				if (v < cost)
+					cost = v;
+				v = p[i]+1;
+				if (v < cost)
+					cost = v;
+				if (cost > above)
+					cost = above;
+				d[i] = cost;
+				if (cost < rowMin)
+					rowMin = cost;
+			}
+			if (hi < n)
+				d[hi+1] = above;
+
+			if (rowMin > k)
+				return above;
+
+			int[] _d = p;
+			p = d;
+			d = _d;
+		}
+		return p[n];
+	}
 }
  
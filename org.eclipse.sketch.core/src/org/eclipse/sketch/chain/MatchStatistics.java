@@ -0,0 +1,91 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Ugo Sangiorgi and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *  Ugo Sangiorgi <ugo.sangiorgi@gmail.com> - Initial contribution
+ *******************************************************************************/
+package org.eclipse.sketch.chain;
+
+/**
+ * Counts, for a recognized sketch, how many of its comparisons with the bank (one per
+ * template and orientation) were skipped by each lower bound and how many needed the
+ * full edit distance.
+ */
+public class MatchStatistics
+{
+	int candidates;
+	int prunedByLength;
+	int prunedByHistogram;
+	int prunedByGrams;
+	int computed;
+	int bounded;
+	int abandoned;
+
+	/**
+	 * @return the number of (template, orientation) pairs considered
+	 */
+	public int getCandidates()
+	{ return candidates; }
+
+	public int getPrunedByLength()
+	{ return prunedByLength; }
+
+	public int getPrunedByHistogram()
+	{ return prunedByHistogram; }
+
+	public int getPrunedByGrams()
+	{ return prunedByGrams; }
+
+	/**
+	 * @return the number of edit distances actually computed
+	 */
+	public int getComputed()
+	{ return computed; }
+
+	/**
+	 * @return the number of distances computed with a cutoff, see {@link LevenshteinHandler#run(String, String, int)}
+	 */
+	public int getBounded()
+	{ return bounded; }
+
+	/**
+	 * @return the number of distances computed with a cutoff that were given up
+	 */
+	public int getAbandoned()
+	{ return abandoned; }
+
+	public int getPruned()
+	{ return prunedByLength + prunedByHistogram + prunedByGrams; }
+
+	/**
+	 * @return the part of the candidates that were skipped, from 0 to 1
+	 */
+	public float getPruneRate()
+	{
+		return candidates == 0 ? 0 : getPruned()/(float)candidates;
+	}
+
+	void add(MatchStatistics other)
+	{
+		candidates += other.candidates;
+		prunedByLength += other.prunedByLength;
+		prunedByHistogram += other.prunedByHistogram;
+		prunedByGrams += other.prunedByGrams;
+		computed += other.computed;
+		bounded += other.bounded;
+		abandoned += other.abandoned;
+	}
+
+	@Override
+	public String toString()
+	{
+		return candidates+" candidates, "+getPruned()+" pruned ("+(int)(100*getPruneRate())+"%: "
+			+prunedByLength+" by length, "+prunedByHistogram+" by histogram, "
+			+prunedByGrams+" by 2-grams), "+computed+" distances computed ("
+			+bounded+" with a cutoff, "+abandoned+" abandoned)";
+	}
+}
@@ -0,0 +1,87 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Ugo Sangiorgi and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *  Ugo Sangiorgi <ugo.sangiorgi@gmail.com> - Initial contribution
+ *******************************************************************************/
+package org.eclipse.sketch.chain;
+
+/**
+ * The K best (smallest) scores seen so far for a type, kept sorted in a preallocated array.
+ */
+class NearestScores
+{
+	private final float[] scores;
+	private int count;
+
+	NearestScores(int k)
+	{
+		scores = new float[k];
+	}
+
+	void clear()
+	{
+		count = 0;
+	}
+
+	int size()
+	{
+		return count;
+	}
+
+	boolean isFull()
+	{
+		return count == scores.length;
+	}
+
+	/**
+	 * @return the K-th best score, or Float.MAX_VALUE while less than K scores were added
+	 */
+	float worst()
+	{
+		return isFull() ? scores[count-1] : Float.MAX_VALUE;
+	}
+
+	void add(float score)
+	{
+		if (isFull())
+		{
+			if (score >= scores[count-1])
+				return;
+			count--;
+		}
+
+		int i = count;
+		while (i > 0 && scores[i-1] > score)
+		{
+			scores[i] = scores[i-1];
+			i--;
+		}
+		scores[i] = score;
+		count++;
+	}
+
+	/**
+	 * Adds the scores kept by another instance
+	 */
+	void addAll(NearestScores other)
+	{
+		for (int i=0; i!=other.count; ++i)
+			add(other.scores[i]);
+	}
+
+	/**
+	 * @return the average of the K best scores, NaN if there is none
+	 */
+	float average()
+	{
+		float average = 0;
+		for (int i=0; i!=count; ++i)
+			average += scores[i];
+		return average / count;
+	}
+}
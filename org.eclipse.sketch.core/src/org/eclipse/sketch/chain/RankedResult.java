@@ -0,0 +1,223 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Ugo Sangiorgi and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *  Ugo Sangiorgi <ugo.sangiorgi@gmail.com> - Initial contribution
+ *******************************************************************************/
+package org.eclipse.sketch.chain;
+
+import java.util.HashMap;
+import java.util.List;
+
+import org.eclipse.sketch.Sketch;
+
+/**
+ * The closest types to a sketch, the closest first, as put under {@link #RESULT_KEY} in
+ * the result of the sketch next to the map of {@link Sketch#ELEMENT_RESULT_KEY}.
+ *
+ * The types are kept in two parallel arrays, the index of each type in the types of the
+ * bank and its normalized distance, allocated once for the number of types wanted. While
+ * the types are added the arrays hold a max-heap, the farthest type kept at the top, so
+ * that a type only enters if it is closer than that one; {@link #rank()} then sorts them.
+ */
+public class RankedResult
+{
+	/**
+	 * Key of the ranked result, in the result of the sketch
+	 */
+	public static final String RESULT_KEY = "RANKED_RESULT_KEY_RankedResult";
+
+	private final List<Object> types;
+	private final int[] ids;
+	private final float[] distances;
+	private int size;
+	private boolean ranked;
+
+	/**
+	 * @param types the types of the bank, the ids are indexes in this list
+	 * @param capacity the number of closest types kept
+	 */
+	public RankedResult(List<Object> types, int capacity)
+	{
+		this.types = types;
+		ids = new int[capacity];
+		distances = new float[capacity];
+	}
+
+	/**
+	 * @param types the types of the bank
+	 * @param scores the normalized distance to each type, -1 for the types without sketches
+	 * @param capacity the number of closest types kept
+	 * @return the closest types of a result given as a map
+	 */
+	public static RankedResult of(List<Object> types, HashMap<Object, Integer> scores, int capacity)
+	{
+		RankedResult result = new RankedResult(types, capacity);
+		for (int i=0; i!=types.size(); ++i)
+		{
+			Integer distance = scores.get(types.get(i));
+			if (distance != null && distance.intValue() >= 0)
+				result.add(i, distance.intValue());
+		}
+		result.rank();
+		return result;
+	}
+
+	/**
+	 * @param types the types of the bank
+	 * @param averages the normalized distance to each type, -1 for the types without sketches
+	 * @param capacity the number of closest types kept
+	 * @return the closest types
+	 */
+	public static RankedResult of(List<Object> types, float[] averages, int capacity)
+	{
+		RankedResult result = new RankedResult(types, capacity);
+		for (int i=0; i!=types.size(); ++i)
+			if (averages[i] != -1)
+				result.add(i, averages[i]);
+		result.rank();
+		return result;
+	}
+
+	/**
+	 * Forgets all the types, to fill the result again
+	 */
+	public void clear()
+	{
+		size = 0;
+		ranked = false;
+	}
+
+	/**
+	 * Offers a type, kept if it is among the closest ones added so far
+	 * @param id the index of the type in the types of the bank
+	 * @param distance its normalized distance
+	 */
+	public void add(int id, float distance)
+	{
+		if (ranked)
+			throw new IllegalStateException("The result was already ranked");
+		if (size < ids.length)
+		{
+			//sift up from the new leaf
+			int i = size++;
+			while (i > 0)
+			{
+				int parent = (i-1)/2;
+				if (distances[parent] >= distance)
+					break;
+				ids[i] = ids[parent];
+				distances[i] = distances[parent];
+				i = parent;
+			}
+			ids[i] = id;
+			distances[i] = distance;
+		}
+		else if (size > 0 && distance < distances[0])
+			siftDown(0, size, id, distance);
+	}
+
+	/**
+	 * Puts (id, distance) at i and moves it down the heap of the first n entries
+	 */
+	private void siftDown(int i, int n, int id, float distance)
+	{
+		while (true)
+		{
+			int child = 2*i+1;
+			if (child >= n)
+				break;
+			if (child+1 < n && distances[child+1] > distances[child])
+				child++;
+			if (distances[child] <= distance)
+				break;
+			ids[i] = ids[child];
+			distances[i] = distances[child];
+			i = child;
+		}
+		ids[i] = id;
+		distances[i] = distance;
+	}
+
+	/**
+	 * Sorts the types kept, the closest first. No type can be added afterwards.
+	 */
+	public void rank()
+	{
+		if (ranked)
+			return;
+		//heap sort: the farthest type goes to the end of the heap, which shrinks
+		for (int n=size-1; n>0; --n)
+		{
+			int id = ids[n];
+			float distance = distances[n];
+			ids[n] = ids[0];
+			distances[n] = distances[0];
+			siftDown(0, n, id, distance);
+		}
+		ranked = true;
+	}
+
+	/**
+	 * @return the number of types kept, at most the capacity
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * @param rank 0 for the closest type
+	 * @return the index of the type in the types of the bank
+	 */
+	public int getId(int rank)
+	{
+		check(rank);
+		return ids[rank];
+	}
+
+	/**
+	 * @param rank 0 for the closest type
+	 * @return the type
+	 */
+	public Object getType(int rank)
+	{
+		check(rank);
+		return types.get(ids[rank]);
+	}
+
+	/**
+	 * @param rank 0 for the closest type
+	 * @return the normalized distance to the type
+	 */
+	public float getDistance(int rank)
+	{
+		check(rank);
+		return distances[rank];
+	}
+
+	private void check(int rank)
+	{
+		if (!ranked)
+			throw new IllegalStateException("The result is not ranked yet");
+		if (rank < 0 || rank >= size)
+			throw new IndexOutOfBoundsException("Rank: "+rank+", Size: "+size);
+	}
+
+	@Override
+	public String toString()
+	{
+		StringBuilder s = new StringBuilder();
+		for (int i=0; i!=size; ++i)
+		{
+			if (i > 0)
+				s.append(' ');
+			s.append(types.get(ids[i])).append(':').append((int)distances[i]);
+		}
+		return s.toString();
+	}
+}
@@ -0,0 +1,178 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Ugo Sangiorgi and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *  Ugo Sangiorgi <ugo.sangiorgi@gmail.com> - Initial contribution
+ *******************************************************************************/
+package org.eclipse.sketch.chain;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.eclipse.sketch.BankSnapshot;
+import org.eclipse.sketch.Sketch.Dna;
+
+/**
+ * Remembers the results of the last recognized DNAs, so that a sketch drawn again exactly
+ * the same way is not compared with the whole bank again. The least recently used results
+ * are forgotten first.
+ *
+ * The results are only valid for the snapshot of the bank they were computed with, and
+ * are asked for with the version of a snapshot (see {@link BankSnapshot#getVersion()}): the
+ * cache keeps the results of the newest version it was given, and is emptied as soon as it
+ * is given a newer one. A recognizer still reading an older snapshot finds nothing.
+ *
+ * A result is the normalized distance to each type of the snapshot, as a float, so that
+ * the types are ranked the same whether the result is computed or found here.
+ */
+public class RecognitionCache
+{
+	private int capacity;
+	private long version = -1;
+	private long hits, misses;
+
+	private final LinkedHashMap<Key, float[]> results = new LinkedHashMap<Key, float[]>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, float[]> eldest) {
+			return size() > capacity;
+		}
+	};
+
+	/**
+	 * A DNA recognized in a given mode
+	 */
+	private static class Key
+	{
+		private final Dna dna;
+		private final LevenshteinHandler.Mode mode;
+
+		Key(Dna dna, LevenshteinHandler.Mode mode)
+		{
+			this.dna = dna;
+			this.mode = mode;
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (!(o instanceof Key))
+				return false;
+			Key k = (Key)o;
+			return mode == k.mode && dna.equals(k.dna);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return dna.hashCode()*31 + mode.hashCode();
+		}
+	}
+
+	/**
+	 * @param capacity the number of results to remember
+	 */
+	public RecognitionCache(int capacity)
+	{
+		this.capacity = capacity;
+	}
+
+	/**
+	 * @param dna
+	 * @param mode the mode the result was computed with
+	 * @param version the version of the snapshot the result is wanted for
+	 * @return a copy of the normalized distance to each type of the snapshot, -1 for the
+	 * types without sketches, or null if it is not known
+	 */
+	public synchronized float[] get(Dna dna, LevenshteinHandler.Mode mode, long version)
+	{
+		float[] result = checkVersion(version) ? results.get(new Key(dna, mode)) : null;
+		if (result == null)
+		{
+			misses++;
+			return null;
+		}
+		hits++;
+		return result.clone();
+	}
+
+	/**
+	 * @param dna
+	 * @param mode the mode the result was computed with
+	 * @param result the normalized distance to each type of the snapshot, copied
+	 * @param version the version of the snapshot the result was computed with
+	 */
+	public synchronized void put(Dna dna, LevenshteinHandler.Mode mode, float[] result, long version)
+	{
+		if (checkVersion(version) && capacity > 0)
+			results.put(new Key(dna, mode), result.clone());
+	}
+
+	/**
+	 * Empties the cache if the version is newer than the one of its results
+	 * @return true if the results are those of the version
+	 */
+	private boolean checkVersion(long version)
+	{
+		if (version > this.version)
+		{
+			results.clear();
+			this.version = version;
+		}
+		return version == this.version;
+	}
+
+	/**
+	 * Forgets all the results, keeping the counters
+	 */
+	public synchronized void clear()
+	{
+		results.clear();
+	}
+
+	public synchronized int getCapacity()
+	{ return capacity; }
+
+	/**
+	 * @param capacity the number of results to remember, 0 to disable the cache
+	 */
+	public synchronized void setCapacity(int capacity)
+	{
+		this.capacity = capacity;
+		results.clear();
+	}
+
+	public synchronized int size()
+	{ return results.size(); }
+
+	public synchronized long getHits()
+	{ return hits; }
+
+	public synchronized long getMisses()
+	{ return misses; }
+
+	/**
+	 * @return the part of the lookups that found a result, from 0 to 1
+	 */
+	public synchronized float getHitRate()
+	{
+		return hits+misses == 0 ? 0 : hits/(float)(hits+misses);
+	}
+
+	public synchronized void resetCounters()
+	{
+		hits = 0;
+		misses = 0;
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		return results.size()+"/"+capacity+" results, "+hits+" hits, "+misses+" misses";
+	}
+}
@@ -0,0 +1,150 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Ugo Sangiorgi and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *  Ugo Sangiorgi <ugo.sangiorgi@gmail.com> - Initial contribution
+ *******************************************************************************/
+package org.eclipse.sketch.chain;
+
+import org.eclipse.sketch.RunLengthDna;
+
+/**
+ * Edit distance computed directly on run-length encoded DNAs, in the manner of O. Arbell,
+ * G. M. Landau and J. Mitchell, "Edit distance of run-length encoded strings" (2002).
+ *
+ * The dynamic programming matrix is cut in blocks, one per run of each word. Inside a block
+ * all the symbols of a word are the same, so the values on the bottom and right borders of
+ * the block follow from the ones on its top and left borders:
+ * <ul>
+ * <li>if the two runs hold the same symbol, the diagonals cost nothing and the borders are
+ * only shifted;</li>
+ * <li>otherwise every move costs one, and each border value is the minimum over a window
+ * of the opposite border, kept with a monotonic queue.</li>
+ * </ul>
+ * Only the borders are computed, so the cost is proportional to n*M + m*N, M and N being
+ * the number of runs of words of lengths m and n, instead of m*n. The distances are the
+ * same as the ones of {@link LevenshteinHandler#run(String, String)}.
+ */
+public class RunLengthLevenshtein
+{
+	private RunLengthLevenshtein()
+	{
+	}
+
+	/**
+	 * @param s
+	 * @param t
+	 * @return the Levenshtein distance between s and t
+	 */
+	public static int distance(RunLengthDna s, RunLengthDna t)
+	{
+		int m = s.length();
+		int n = t.length();
+		if (m == 0)
+			return n;
+		if (n == 0)
+			return m;
+
+		int maxA = longestRun(s);
+		int maxB = longestRun(t);
+		//the row of the matrix at the end of the last run of s
+		int[] row = new int[n+1];
+		for (int j=0; j<=n; ++j)
+			row[j] = j;
+		int[] left = new int[maxA+1], right = new int[maxA+1];
+		int[] top = new int[maxB+1], bottom = new int[maxB+1];
+		int[] suffix = new int[Math.max(maxA, maxB)+1];
+		int[] queue = new int[suffix.length];
+
+		int first = 0;
+		for (int i=0; i!=s.runs(); ++i)
+		{
+			int x = s.runSymbol(i);
+			int a = s.runLength(i);
+			for (int r=0; r<=a; ++r)
+				left[r] = first + r;
+
+			int column = 0;
+			for (int k=0; k!=t.runs(); ++k)
+			{
+				int b = t.runLength(k);
+				System.arraycopy(row, column, top, 0, b+1);
+				if (x == t.runSymbol(k))
+					sameSymbol(top, b, left, a, bottom, right);
+				else
+					otherSymbol(top, b, left, a, bottom, right, suffix, queue);
+				//the last cell of the bottom is still the first of the next top
+				System.arraycopy(bottom, 0, row, column, b);
+
+				int[] swap = left;
+				left = right;
+				right = swap;
+				column += b;
+			}
+			row[n] = left[a];
+			first += a;
+		}
+		return row[n];
+	}
+
+	private static int longestRun(RunLengthDna dna)
+	{
+		int longest = 0;
+		for (int run=0; run!=dna.runs(); ++run)
+			longest = Math.max(longest, dna.runLength(run));
+		return longest;
+	}
+
+	/**
+	 * Block of a runs of length a and b of the same symbol: the cell (r, c) is reached for
+	 * free along the diagonal from the border.
+	 */
+	private static void sameSymbol(int[] top, int b, int[] left, int a, int[] bottom, int[] right)
+	{
+		for (int j=0; j<=b; ++j)
+			bottom[j] = j >= a ? top[j-a] : left[a-j];
+		for (int r=0; r<=a; ++r)
+			right[r] = r >= b ? left[r-b] : top[b-r];
+	}
+
+	/**
+	 * Block of a runs of length a and b of different symbols: going from a border cell to the
+	 * cell (r, c) costs the largest of the rows and columns crossed. As two neighbouring cells
+	 * differ by one at most, only the border cells within a diagonal band can be the best ones.
+	 */
+	private static void otherSymbol(int[] top, int b, int[] left, int a, int[] bottom, int[] right, int[] suffix, int[] queue)
+	{
+		suffix[a] = left[a];
+		for (int p=a-1; p>=0; --p)
+			suffix[p] = Math.min(left[p], suffix[p+1]);
+		int head = 0, tail = 0;
+		for (int j=0; j<=b; ++j)
+		{
+			while (tail > head && top[queue[tail-1]] >= top[j])
+				tail--;
+			queue[tail++] = j;
+			if (queue[head] < j-a)
+				head++;
+			bottom[j] = Math.min(a + top[queue[head]], j + suffix[Math.max(0, a-j)]);
+		}
+
+		suffix[b] = top[b];
+		for (int p=b-1; p>=0; --p)
+			suffix[p] = Math.min(top[p], suffix[p+1]);
+		head = 0;
+		tail = 0;
+		for (int r=0; r<=a; ++r)
+		{
+			while (tail > head && left[queue[tail-1]] >= left[r])
+				tail--;
+			queue[tail++] = r;
+			if (queue[head] < r-b)
+				head++;
+			right[r] = Math.min(b + left[queue[head]], r + suffix[Math.max(0, b-r)]);
+		}
+	}
+}
@@ -0,0 +1,194 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Ugo Sangiorgi and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *  Ugo Sangiorgi <ugo.sangiorgi@gmail.com> - Initial contribution
+ *******************************************************************************/
+package org.eclipse.sketch.chain;
+
+import org.eclipse.sketch.DnaProfile;
+import org.eclipse.sketch.RunLengthDna;
+import org.eclipse.sketch.Sketch.Dna;
+import org.eclipse.sketch.exceptions.IllegalLengthException;
+
+/**
+ * The DNA of a sketch being recognized, stretched, compiled and profiled once for each
+ * length of the bank words it is compared with.
+ */
+class StretchedQuery
+{
+	private final Dna dna;
+	private BitParallelLevenshtein[] patterns;
+	//the 4 orientations of the stretched patterns, built only when they are asked for
+	private BitParallelLevenshtein[][] rotatedPatterns;
+	private DnaProfile[] profiles;
+	private byte[][] symbols;
+	//built only when they are asked for
+	private Dna[] dnas;
+	private RunLengthDna[] runLengths;
+	//working memory of the thresholded distance
+	private byte[] text = new byte[0];
+	private int[] p = new int[0], d = new int[0];
+
+	StretchedQuery(Dna dna)
+	{
+		this.dna = dna;
+		patterns = new BitParallelLevenshtein[dna.length()*2 + 1];
+		rotatedPatterns = new BitParallelLevenshtein[patterns.length][];
+		profiles = new DnaProfile[patterns.length];
+		symbols = new byte[patterns.length][];
+		dnas = new Dna[patterns.length];
+		runLengths = new RunLengthDna[patterns.length];
+	}
+
+	Dna getDna()
+	{
+		return dna;
+	}
+
+	int length()
+	{
+		return dna.length();
+	}
+
+	/**
+	 * @param length a length not smaller than the query
+	 * @return the query stretched to length, compiled as a pattern
+	 */
+	BitParallelLevenshtein stretchedTo(int length) throws IllegalLengthException
+	{
+		BitParallelLevenshtein pattern = length < patterns.length ? patterns[length] : null;
+		if (pattern == null)
+		{
+			stretch(length);
+			pattern = patterns[length];
+		}
+		return pattern;
+	}
+
+	/**
+	 * @param length a length not smaller than the query
+	 * @param quarter number of 90 degrees rotations, from 0 to 3
+	 * @return the query stretched to length then rotated, compiled as a pattern
+	 */
+	BitParallelLevenshtein rotatedTo(int length, int quarter) throws IllegalLengthException
+	{
+		if (quarter == 0)
+			return stretchedTo(length);
+		Dna stretched = dnaAt(length);
+		BitParallelLevenshtein[] rotated = rotatedPatterns[length];
+		if (rotated == null)
+		{
+			rotated = new BitParallelLevenshtein[4];
+			for (int i=1; i!=4; ++i)
+			{
+				stretched = stretched.rotate90();
+				rotated[i] = new BitParallelLevenshtein(stretched);
+			}
+			rotatedPatterns[length] = rotated;
+		}
+		return rotated[quarter];
+	}
+
+	/**
+	 * @param length a length not smaller than the query
+	 * @return the profile of the query stretched to length
+	 */
+	DnaProfile profileAt(int length) throws IllegalLengthException
+	{
+		DnaProfile profile = length < profiles.length ? profiles[length] : null;
+		if (profile == null)
+		{
+			stretch(length);
+			profile = profiles[length];
+		}
+		return profile;
+	}
+
+	/**
+	 * @param length a length not smaller than the query
+	 * @return the query stretched to length
+	 */
+	Dna dnaAt(int length) throws IllegalLengthException
+	{
+		if (length >= symbols.length || symbols[length] == null)
+			stretch(length);
+		if (dnas[length] == null)
+			dnas[length] = Dna.valueOf(symbols[length], length);
+		return dnas[length];
+	}
+
+	/**
+	 * @param length a length not smaller than the query
+	 * @return the query stretched to length, run-length encoded
+	 */
+	RunLengthDna runLengthAt(int length) throws IllegalLengthException
+	{
+		if (length >= runLengths.length || runLengths[length] == null)
+		{
+			Dna stretched = dnaAt(length);
+			runLengths[length] = new RunLengthDna(stretched);
+		}
+		return runLengths[length];
+	}
+
+	/**
+	 * @param length a length not smaller than the query
+	 * @param text a word of the bank
+	 * @param k the cutoff
+	 * @return the distance between the query stretched to length and text if it is at most k,
+	 * k+1 otherwise
+	 */
+	int boundedDistance(int length, Dna text, int k) throws IllegalLengthException
+	{
+		if (length >= symbols.length || symbols[length] == null)
+			stretch(length);
+		byte[] s = symbols[length];
+
+		int m = text.length();
+		if (this.text.length < m)
+			this.text = new byte[m];
+		text.getSymbols(this.text);
+		if (p.length <= s.length)
+		{
+			p = new int[s.length+1];
+			d = new int[s.length+1];
+		}
+		return LevenshteinHandler.boundedRun(s, s.length, this.text, m, k, p, d);
+	}
+
+	private void stretch(int length) throws IllegalLengthException
+	{
+		if (length >= patterns.length)
+		{
+			BitParallelLevenshtein[] p = new BitParallelLevenshtein[length*2];
+			System.arraycopy(patterns, 0, p, 0, patterns.length);
+			patterns = p;
+			BitParallelLevenshtein[][] q = new BitParallelLevenshtein[length*2][];
+			System.arraycopy(rotatedPatterns, 0, q, 0, rotatedPatterns.length);
+			rotatedPatterns = q;
+			DnaProfile[] d = new DnaProfile[length*2];
+			System.arraycopy(profiles, 0, d, 0, profiles.length);
+			profiles = d;
+			byte[][] s = new byte[length*2][];
+			System.arraycopy(symbols, 0, s, 0, symbols.length);
+			symbols = s;
+			Dna[] n = new Dna[length*2];
+			System.arraycopy(dnas, 0, n, 0, dnas.length);
+			dnas = n;
+			RunLengthDna[] r = new RunLengthDna[length*2];
+			System.arraycopy(runLengths, 0, r, 0, runLengths.length);
+			runLengths = r;
+		}
+
+		Dna stretched = dna.stretch(length);
+		patterns[length] = new BitParallelLevenshtein(stretched);
+		profiles[length] = new DnaProfile(stretched);
+		symbols[length] = new byte[stretched.length()];
+		stretched.getSymbols(symbols[length]);
+	}
+}
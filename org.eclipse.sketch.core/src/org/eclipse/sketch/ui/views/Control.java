@@ -20,6 +20,7 @@ import org.eclipse.gmf.runtime.emf.type.core.IElementType;
 import org.eclipse.jface.dialogs.InputDialog;
 import org.eclipse.sketch.Sketch;
 import org.eclipse.sketch.SketchBank;
+import org.eclipse.sketch.chain.BankCondenser;
 import org.eclipse.sketch.clientobserver.ISketchListener;
 import org.eclipse.swt.layout.GridLayout;
 import org.eclipse.swt.events.MouseEvent;
@@ -71,9 +72,27 @@ public class Control extends Composite implements ISketchListener {
 	protected Button samplescheckBox = null;
 	protected Button interpcheckBox = null;
 	private Button button1 = null;
+	protected Button condenseButton = null;
 	public Control(Composite parent, int style) {
 		super(parent, style);
 		initialize();
+		//the types of the bank are only all known once it is read from the disk
+		if(!SketchBank.getInstance().isLoaded()){
+			//asked for here: the control may be disposed by the time the bank is read
+			final Display display = getDisplay();
+			SketchBank.getInstance().whenLoaded(new Runnable() {
+				public void run() {
+					if(display.isDisposed())
+						return;
+					display.asyncExec(new Runnable() {
+						public void run() {
+							if(!isDisposed())
+								setTypes(SketchBank.getInstance().getAvailableTypes());
+						}
+					});
+				}
+			});
+		}
 	}
 
 	@SuppressWarnings("unused")
@@ -143,6 +162,59 @@ public class Control extends Composite implements ISketchListener {
 				
 			}
 			
+		});
+		/*Label filler17 = */new Label(this, SWT.NONE);
+		condenseButton = new Button(this, SWT.NONE);
+		/*Label filler18 = */new Label(this, SWT.NONE);
+		condenseButton.setText("Condense Database");
+		condenseButton.setToolTipText("Remove the sketches that are not needed to recognize the others");
+		condenseButton.addMouseListener(new MouseListener(){
+
+			@Override
+			public void mouseDoubleClick(MouseEvent e) {
+				// TODO Auto-generated method stub
+				
+			}
+
+			@Override
+			public void mouseDown(MouseEvent e) {
+				
+				 MessageBox messageBox = new MessageBox(getShell(), SWT.ICON_QUESTION
+				            | SWT.YES | SWT.NO);
+				        messageBox.setMessage("Remove the redundant and mislabeled sketches?");
+				        messageBox.setText("Condense Database");
+				        int response = messageBox.open();
+				        if (response == SWT.YES){
+				        	//compares the whole bank: done in the background, the result shown once done
+				        	condenseButton.setEnabled(false);
+				        	final Display display = getDisplay();
+				        	BankCondenser.condenseLater(true, new BankCondenser.Listener() {
+				        		public void condensed(final BankCondenser.Report report) {
+				        			if(display.isDisposed())
+				        				return;
+				        			display.asyncExec(new Runnable() {
+				        				public void run() {
+				        					if(isDisposed())
+				        						return;
+				        					condenseButton.setEnabled(true);
+				        					MessageBox result = new MessageBox(getShell(), SWT.ICON_INFORMATION | SWT.OK);
+				        					result.setMessage(report.toString());
+				        					result.setText("Condense Database");
+				        					result.open();
+				        				}
+				        			});
+				        		}
+				        	});
+				        }
+				          
+			}
+
+			@Override
+			public void mouseUp(MouseEvent e) {
+				// TODO Auto-generated method stub
+				
+			}
+			
 		});
 		
 		this.setLayout(gridLayout);
@@ -169,9 +241,9 @@ public class Control extends Composite implements ISketchListener {
 					if(combo.getSelectionIndex()!=0){				
 						
 						System.out.println("selected is "+types.get(combo.getSelectionIndex()-1));
-						SketchBank.getInstance().add(types.get(combo.getSelectionIndex()-1), sketch.getDna());
+						SketchBank.getInstance().add(types.get(combo.getSelectionIndex()-1), sketch.getPackedDna());
+						enforceCapacity(types.get(combo.getSelectionIndex()-1));
 						SketchBank.getInstance().dump();
-						SketchBank.getInstance().fetch();
 						
 						PlatformUI.getWorkbench().getActiveWorkbenchWindow().getActivePage().getActiveEditor().setFocus();
 						
@@ -185,9 +257,8 @@ public class Control extends Composite implements ISketchListener {
 					String type = input.getValue();
 					
 					SketchBank.getInstance().insert(type);
-					SketchBank.getInstance().add(type, sketch.getDna());
+					SketchBank.getInstance().add(type, sketch.getPackedDna());
 					SketchBank.getInstance().dump();
-					SketchBank.getInstance().fetch();					
 					
 					setTypes(SketchBank.getInstance().getAvailableTypes());
 					disableNewSketch();
@@ -286,6 +357,18 @@ public class Control extends Composite implements ISketchListener {
 		button1.setEnabled(false);
 	}
 	
+	/**
+	 * Evicts the least useful sketches of a type when it holds more than the capacity of the
+	 * bank, from a background thread, comparing only the sketches of that type
+	 * @param type
+	 */
+	protected void enforceCapacity(Object type){
+		
+		int capacity = SketchBank.getCapacity();
+		if(capacity>0 && SketchBank.getInstance().getSketches(type).size()>capacity)
+			BankCondenser.capLater(type, capacity);
+	}
+	
 	@Override
 	public void receiveNewProcessedSketch(Sketch s) {		
 		this.sketch = s;
@@ -297,7 +380,10 @@ public class Control extends Composite implements ISketchListener {
 	public void setTypes(ArrayList<Object> types) {
 		this.types = types;
 		combo.removeAll();
-		combo.add("New sketch! Please select");
+		if(SketchBank.getInstance().isLoaded())
+			combo.add("New sketch! Please select");
+		else
+			combo.add("Loading the sketch bank...");
 		for(int i=0;i<types.size();i++){
 			Object type = types.get(i);
 			if(type instanceof IElementType)
@@ -11,9 +11,9 @@
 package org.eclipse.sketch.ui.views;
 
 
-import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 
 import org.eclipse.core.resources.IWorkspaceRoot;
 import org.eclipse.core.resources.ResourcesPlugin;
@@ -21,6 +21,7 @@ import org.eclipse.nebula.widgets.gallery.DefaultGalleryGroupRenderer;
 import org.eclipse.nebula.widgets.gallery.DefaultGalleryItemRenderer;
 import org.eclipse.nebula.widgets.gallery.Gallery;
 import org.eclipse.nebula.widgets.gallery.GalleryItem;
+import org.eclipse.sketch.BankSnapshot;
 import org.eclipse.sketch.Sketch.Dna;
 import org.eclipse.sketch.SketchBank;
 import org.eclipse.swt.SWT;
@@ -33,6 +34,7 @@ import java.awt.image.*;
 
 import org.eclipse.swt.graphics.*;
 import org.eclipse.swt.widgets.Composite;
+import org.eclipse.swt.widgets.Display;
 import org.eclipse.ui.part.ViewPart;
 
 
@@ -82,11 +84,29 @@ public class SketchesView extends ViewPart {
 		galleryItem.setText("New Item");
 		
 		loadGallery();
+		if (!bank.isLoaded())
+		{
+			//shown again once the bank is read from the disk; the display is asked for here,
+			//the gallery may be disposed by then
+			final Display display = gallery_1.getDisplay();
+			bank.whenLoaded(new Runnable() {
+				public void run() {
+					if (display.isDisposed())
+						return;
+					display.asyncExec(new Runnable() {
+						public void run() {
+							if (!gallery_1.isDisposed())
+								loadGallery();
+						}
+					});
+				}
+			});
+		}
 	}
 	
 	private BufferedImage buildImageFromDna(Dna dna)
 	{
-		int l = dna.toString().length();
+		int l = dna.length();
 		
 		LinkedList<Integer> pathx = new LinkedList<Integer>();		
 		LinkedList<Integer> pathy = new LinkedList<Integer>();	
@@ -100,27 +120,27 @@ public class SketchesView extends ViewPart {
 		
 			for (int i=0; i!=l; ++i)
 			{
-			  char dir = dna.toString().charAt(i);
+			  int dir = dna.symbolAt(i);
 			  switch(dir)
 			  {
-			    case '[':
+			    case Dna.PEN_UP:
 			    	must_draw = false;    
 				  break;
-			    case ']':
+			    case Dna.PEN_DOWN:
 			    	must_draw = true;			    
 			    break;
 			    
-			    case '1':cury++;         break;
-			    case '2':curx++;cury++; break;
-			    case '3':curx++;         break;
-			    case '4':curx++;cury--; break;
-			    case '5':cury--;         break;
-			    case '6':curx--;cury--; break;
-			    case '7':curx--;         break;
-			    case '8':curx--;cury++; break;
+			    case 1:cury++;         break;
+			    case 2:curx++;cury++; break;
+			    case 3:curx++;         break;
+			    case 4:curx++;cury--; break;
+			    case 5:cury--;         break;
+			    case 6:curx--;cury--; break;
+			    case 7:curx--;         break;
+			    case 8:curx--;cury++; break;
 			    default:
 			    	//TODO throw something
-			      System.err.println("ERROR : don't understand this DNA : "+dir);
+			      System.err.println("ERROR : don't understand this DNA : "+Dna.charOf(dir));
 			  }
 			  
 			  if (top    < cury) top = cury;
@@ -207,7 +227,9 @@ public class SketchesView extends ViewPart {
 
 			gallery_1.removeAll();
 			
-			ArrayList<Object> types = bank.getAvailableTypes();
+			//the types and sketches of the same version of the bank
+			BankSnapshot snapshot = bank.getSnapshot();
+			List<Object> types = snapshot.getTypes();
 			
 			for (Object t: types)			
 			{
@@ -216,11 +238,11 @@ public class SketchesView extends ViewPart {
 				group.setText(t.toString());
 				group.setExpanded(false);
 				
-				ArrayList<String> sketches = bank.getSketches(t);
+				List<Dna> sketches = snapshot.getSketches(t);
 				
-				for (String dna: sketches)
+				for (Dna dna: sketches)
 				{					
-					BufferedImage sketch_img = buildImageFromDna(new Dna(dna));
+					BufferedImage sketch_img = buildImageFromDna(dna);
 					
 					GalleryItem item = new GalleryItem(group, SWT.NONE);
 					
@@ -228,6 +250,12 @@ public class SketchesView extends ViewPart {
 					item.setImage(itemImage);
 				}
 			}
+			
+			if (!bank.isLoaded())
+			{
+				GalleryItem loading = new GalleryItem(gallery_1, SWT.NONE);
+				loading.setText("Loading the sketch bank...");
+			}
 
 		}catch(Exception e){
 			e.printStackTrace();
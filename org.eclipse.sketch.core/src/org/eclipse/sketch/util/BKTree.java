@@ -0,0 +1,227 @@
+package org.eclipse.sketch.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+
+/**
+ * Burkhard-Keller tree: a metric-space index answering nearest neighbour queries
+ * under an integer distance (such as the edit distance between two DNAs).
+ *
+ * Every child of a node is stored under its distance to that node, so the triangle
+ * inequality allows whole subtrees to be skipped during a query. Elements can be
+ * added at any time, the tree never needs to be rebuilt.
+ *
+ * A copy shares all the nodes of the tree it is made from: adding an element to either
+ * copies the nodes on its path first, so that neither changes what the other one sees.
+ * A tree being searched can then be copied and added to from another thread.
+ *
+ * @param <T> the indexed elements
+ */
+public class BKTree<T extends Comparable<T>>
+{
+	/**
+	 * Distance used to build and query the tree; it must be a metric.
+	 */
+	public interface Metric<T>
+	{
+		int distance(T a, T b);
+	}
+
+	private static class Node<T>
+	{
+		T element;
+		int[] keys = new int[2];
+		Node<T>[] children = newArray(2);
+		int count;
+		//the tree allowed to change this node in place
+		final Object owner;
+
+		Node(T element, Object owner)
+		{
+			this.element = element;
+			this.owner = owner;
+		}
+
+		/**
+		 * @return a copy of this node, with the same children, to be changed by owner
+		 */
+		Node<T> copy(Object owner)
+		{
+			Node<T> copy = new Node<T>(element, owner);
+			copy.keys = keys.clone();
+			copy.children = children.clone();
+			copy.count = count;
+			return copy;
+		}
+
+		int indexOf(int key)
+		{
+			for (int i=0; i!=count; ++i)
+				if (keys[i]==key)
+					return i;
+			return -1;
+		}
+
+		void put(int key, Node<T> child)
+		{
+			if (count == keys.length)
+			{
+				int[] k = new int[count*2];
+				Node<T>[] c = newArray(count*2);
+				System.arraycopy(keys, 0, k, 0, count);
+				System.arraycopy(children, 0, c, 0, count);
+				keys = k;
+				children = c;
+			}
+			keys[count] = key;
+			children[count] = child;
+			count++;
+		}
+
+		@SuppressWarnings("unchecked")
+		static <T> Node<T>[] newArray(int size)
+		{
+			return (Node<T>[])new Node<?>[size];
+		}
+	}
+
+	private final Metric<T> metric;
+	private Node<T> root;
+	private int size;
+	private int visited;
+	private int computed;
+	//the nodes made by this tree since it was made or copied, changed in place
+	private Object owner = new Object();
+
+	public BKTree(Metric<T> metric)
+	{
+		this.metric = metric;
+	}
+
+	/**
+	 * @return a tree holding the same elements, sharing the nodes of this one
+	 */
+	public BKTree<T> copy()
+	{
+		BKTree<T> copy = new BKTree<T>(metric);
+		copy.root = root;
+		copy.size = size;
+		//the nodes are shared from now on, so this tree copies them as well
+		owner = new Object();
+		return copy;
+	}
+
+	private Node<T> writable(Node<T> node)
+	{
+		return node.owner == owner ? node : node.copy(owner);
+	}
+
+	/**
+	 * Adds an element to the tree. Duplicates are kept, as two equal sketches
+	 * count twice in a KNN vote.
+	 */
+	public void add(T element)
+	{
+		size++;
+		if (root == null)
+		{
+			root = new Node<T>(element, owner);
+			return;
+		}
+
+		root = writable(root);
+		Node<T> node = root;
+		while (true)
+		{
+			int d = metric.distance(element, node.element);
+			computed++;
+			int i = node.indexOf(d);
+			if (i < 0)
+			{
+				node.put(d, new Node<T>(element, owner));
+				return;
+			}
+			node.children[i] = writable(node.children[i]);
+			node = node.children[i];
+		}
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * @return the number of distances computed by {@link #add(Comparable)} since this tree
+	 * was made or copied
+	 */
+	public int getComputed()
+	{
+		return computed;
+	}
+
+	/**
+	 * @return the number of distances computed by the last call to {@link #nearest(Comparable, int)}
+	 */
+	public int getLastVisited()
+	{
+		return visited;
+	}
+
+	/**
+	 * Finds the k elements closest to the query.
+	 * @param query
+	 * @param k the number of neighbours wanted
+	 * @return at most k pairs (element, distance), sorted by increasing distance
+	 */
+	public ArrayList<SortablePair<T,Integer>> nearest(T query, int k)
+	{
+		ArrayList<SortablePair<T,Integer>> result = new ArrayList<SortablePair<T,Integer>>(k+1);
+		visited = 0;
+		if (root == null || k <= 0)
+			return result;
+
+		//nodes still to visit, with a lower bound of their distance to the query
+		ArrayList<Node<T>> stack = new ArrayList<Node<T>>();
+		int[] bounds = new int[16];
+		stack.add(root);
+		bounds[0] = 0;
+		while (!stack.isEmpty())
+		{
+			int top = stack.size()-1;
+			Node<T> node = stack.remove(top);
+			if (result.size() == k && bounds[top] >= result.get(k-1).value())
+				continue;
+
+			int d = metric.distance(query, node.element);
+			visited++;
+
+			if (result.size() < k || d < result.get(k-1).value())
+			{
+				SortablePair<T,Integer> pair = new SortablePair<T,Integer>(node.element, d);
+				int at = Collections.binarySearch(result, pair);
+				result.add(at < 0 ? -at-1 : at, pair);
+				if (result.size() > k)
+					result.remove(k);
+			}
+
+			//every element below a child is at distance key from this node,
+			//so it is at least |key-d| away from the query
+			for (int i=0; i!=node.count; ++i)
+			{
+				int bound = Math.abs(node.keys[i] - d);
+				if (result.size() == k && bound >= result.get(k-1).value())
+					continue;
+				if (stack.size() == bounds.length)
+				{
+					int[] b = new int[bounds.length*2];
+					System.arraycopy(bounds, 0, b, 0, bounds.length);
+					bounds = b;
+				}
+				bounds[stack.size()] = bound;
+				stack.add(node.children[i]);
+			}
+		}
+		return result;
+	}
+}
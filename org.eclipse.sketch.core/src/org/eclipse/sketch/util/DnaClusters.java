@@ -0,0 +1,344 @@
+package org.eclipse.sketch.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+
+import org.eclipse.sketch.Sketch.Dna;
+
+/**
+ * The words of a type grouped around medoids by k-medoids clustering under the edit
+ * distance, for a search in two stages: the query is compared with the medoids first, and
+ * the triangle inequality tells which clusters may still hold a word closer than the best
+ * ones found so far. Only those clusters are opened, and in them only the words whose own
+ * bound is good enough are compared.
+ *
+ * The clusters are built on the first search, about sqrt(n) of them for n words. The words
+ * added afterwards join the cluster of their nearest medoid, until the number of words has
+ * doubled and the clusters are built again.
+ *
+ * A copy shares the clusters of the one it is made from, a cluster being copied before a
+ * word joins it, so that neither changes what the other one sees.
+ *
+ * Scores are normalized distances, 100*d/max(n,m) for words of lengths n and m, as in the
+ * nearest neighbour scoring of LevenshteinHandler.
+ */
+public class DnaClusters
+{
+	//rounds of the k-medoids iteration
+	private static final int ROUNDS = 5;
+
+	private static class Cluster
+	{
+		Dna medoid;
+		ArrayList<Dna> members = new ArrayList<Dna>();
+		//distance of each member to the medoid
+		int[] distances = new int[4];
+		int radius;
+		int longest;
+		//the clusters allowed to change this one in place
+		final Object owner;
+
+		Cluster(Dna medoid, Object owner)
+		{
+			this.medoid = medoid;
+			this.owner = owner;
+		}
+
+		/**
+		 * @return a copy of this cluster, to be changed by owner
+		 */
+		Cluster copy(Object owner)
+		{
+			Cluster copy = new Cluster(medoid, owner);
+			copy.members = new ArrayList<Dna>(members);
+			copy.distances = distances.clone();
+			copy.radius = radius;
+			copy.longest = longest;
+			return copy;
+		}
+
+		void add(Dna dna, int distance)
+		{
+			if (members.size() == distances.length)
+			{
+				int[] d = new int[distances.length*2];
+				System.arraycopy(distances, 0, d, 0, distances.length);
+				distances = d;
+			}
+			distances[members.size()] = distance;
+			members.add(dna);
+			radius = Math.max(radius, distance);
+			longest = Math.max(longest, dna.length());
+		}
+	}
+
+	private final BKTree.Metric<Dna> metric;
+	private final ArrayList<Dna> words = new ArrayList<Dna>();
+	private ArrayList<Cluster> clusters;
+	//number of words when the clusters were built
+	private int built;
+	private int computed;
+	//the clusters made by this one since it was made or copied, changed in place
+	private Object owner = new Object();
+
+	/**
+	 * @param metric the edit distance
+	 */
+	public DnaClusters(BKTree.Metric<Dna> metric)
+	{
+		this.metric = metric;
+	}
+
+	/**
+	 * @return clusters of the same words, sharing the clusters of this one
+	 */
+	public DnaClusters copy()
+	{
+		DnaClusters copy = new DnaClusters(metric);
+		copy.words.addAll(words);
+		if (clusters != null)
+			copy.clusters = new ArrayList<Cluster>(clusters);
+		copy.built = built;
+		//the clusters are shared from now on, so this one copies them as well
+		owner = new Object();
+		return copy;
+	}
+
+	/**
+	 * Adds a word. Duplicates are kept, as two equal sketches count twice in a KNN vote.
+	 */
+	public void add(Dna dna)
+	{
+		words.add(dna);
+		if (clusters == null)
+			return;
+		if (words.size() >= 2*built)
+		{
+			clusters = null;
+			return;
+		}
+
+		int nearest = -1;
+		int distance = Integer.MAX_VALUE;
+		for (int c=0; c!=clusters.size(); ++c)
+		{
+			int d = metric.distance(dna, clusters.get(c).medoid);
+			if (d < distance)
+			{
+				distance = d;
+				nearest = c;
+			}
+		}
+		Cluster cluster = clusters.get(nearest);
+		if (cluster.owner != owner)
+		{
+			cluster = cluster.copy(owner);
+			clusters.set(nearest, cluster);
+		}
+		cluster.add(dna, distance);
+	}
+
+	public int size()
+	{
+		return words.size();
+	}
+
+	/**
+	 * @return the number of clusters, 0 until the first search or {@link #build()}, and
+	 * once the number of words has doubled since
+	 */
+	public int getClusters()
+	{
+		return clusters == null ? 0 : clusters.size();
+	}
+
+	/**
+	 * @return the number of distances computed by the last call to {@link #nearest(Dna, int)}
+	 */
+	public int getLastComputed()
+	{
+		return computed;
+	}
+
+	/**
+	 * Groups the words in about sqrt(n) clusters: the medoids are first spread by taking
+	 * each time the word farthest from the medoids already chosen, then each word joins its
+	 * nearest medoid and each cluster takes as medoid the member closest to all the others,
+	 * until nothing changes.
+	 */
+	public void build()
+	{
+		int n = words.size();
+		built = n;
+		clusters = new ArrayList<Cluster>();
+		if (n == 0)
+			return;
+
+		int k = Math.max(1, (int)Math.round(Math.sqrt(n)));
+		//distance of each word to its nearest medoid, and that medoid
+		int[] nearest = new int[n];
+		int[] assigned = new int[n];
+		ArrayList<Dna> medoids = new ArrayList<Dna>(k);
+		medoids.add(words.get(0));
+		for (int i=0; i!=n; ++i)
+			nearest[i] = metric.distance(words.get(i), medoids.get(0));
+		while (medoids.size() < k)
+		{
+			int farthest = 0;
+			for (int i=1; i!=n; ++i)
+				if (nearest[i] > nearest[farthest])
+					farthest = i;
+			if (nearest[farthest] == 0)
+				break;
+			Dna medoid = words.get(farthest);
+			int m = medoids.size();
+			medoids.add(medoid);
+			for (int i=0; i!=n; ++i)
+			{
+				int d = metric.distance(words.get(i), medoid);
+				if (d < nearest[i])
+				{
+					nearest[i] = d;
+					assigned[i] = m;
+				}
+			}
+		}
+
+		for (int round=0; round!=ROUNDS; ++round)
+		{
+			boolean changed = false;
+			for (int m=0; m!=medoids.size(); ++m)
+			{
+				ArrayList<Dna> members = new ArrayList<Dna>();
+				for (int i=0; i!=n; ++i)
+					if (assigned[i] == m)
+						members.add(words.get(i));
+
+				Dna best = medoids.get(m);
+				long bestSum = Long.MAX_VALUE;
+				for (Dna candidate : members)
+				{
+					long sum = 0;
+					for (Dna member : members)
+					{
+						sum += metric.distance(candidate, member);
+						if (sum >= bestSum)
+							break;
+					}
+					if (sum < bestSum)
+					{
+						bestSum = sum;
+						best = candidate;
+					}
+				}
+				if (best != medoids.get(m))
+				{
+					medoids.set(m, best);
+					changed = true;
+				}
+			}
+			if (!changed)
+				break;
+
+			for (int i=0; i!=n; ++i)
+			{
+				nearest[i] = Integer.MAX_VALUE;
+				for (int m=0; m!=medoids.size(); ++m)
+				{
+					int d = metric.distance(words.get(i), medoids.get(m));
+					if (d < nearest[i])
+					{
+						nearest[i] = d;
+						assigned[i] = m;
+					}
+				}
+			}
+		}
+
+		for (Dna medoid : medoids)
+			clusters.add(new Cluster(medoid, owner));
+		for (int i=0; i!=n; ++i)
+			clusters.get(assigned[i]).add(words.get(i), nearest[i]);
+	}
+
+	/**
+	 * Finds the k best normalized distances between the query and the words.
+	 * @param query
+	 * @param k the number of neighbours wanted
+	 * @return at most k scores, sorted by increasing distance
+	 */
+	public float[] nearest(Dna query, int k)
+	{
+		if (clusters == null)
+			build();
+		computed = 0;
+		int n = query.length();
+
+		float[] best = new float[k];
+		int found = 0;
+		if (k <= 0)
+			return best;
+
+		//the clusters, the most promising first, under the bound of their members
+		int[] toMedoid = new int[clusters.size()];
+		ArrayList<SortablePair<Integer,Float>> order = new ArrayList<SortablePair<Integer,Float>>(clusters.size());
+		for (int c=0; c!=clusters.size(); ++c)
+		{
+			Cluster cluster = clusters.get(c);
+			toMedoid[c] = metric.distance(query, cluster.medoid);
+			computed++;
+			int bound = Math.max(0, toMedoid[c] - cluster.radius);
+			order.add(new SortablePair<Integer,Float>(c, score(bound, n, cluster.longest)));
+		}
+		Collections.sort(order);
+
+		for (SortablePair<Integer,Float> entry : order)
+		{
+			if (found == k && entry.value() >= best[k-1])
+				break;
+			Cluster cluster = clusters.get(entry.key());
+			int d = toMedoid[entry.key()];
+			for (int i=0; i!=cluster.members.size(); ++i)
+			{
+				Dna member = cluster.members.get(i);
+				int distance;
+				if (member == cluster.medoid)
+					distance = d;
+				else
+				{
+					//|d(q,m) - d(m,x)| <= d(q,x)
+					int bound = Math.abs(d - cluster.distances[i]);
+					if (found == k && score(bound, n, member.length()) >= best[k-1])
+						continue;
+					distance = metric.distance(query, member);
+					computed++;
+				}
+
+				float score = score(distance, n, member.length());
+				if (found == k && score >= best[k-1])
+					continue;
+				int at = found < k ? found++ : k-1;
+				while (at > 0 && best[at-1] > score)
+				{
+					best[at] = best[at-1];
+					at--;
+				}
+				best[at] = score;
+			}
+		}
+
+		if (found < k)
+		{
+			float[] f = new float[found];
+			System.arraycopy(best, 0, f, 0, found);
+			return f;
+		}
+		return best;
+	}
+
+	private static float score(int d, int n, int length)
+	{
+		int longest = Math.max(n, length);
+		return longest == 0 ? 0 : 100*(float)d/longest;
+	}
+}
@@ -0,0 +1,257 @@
+package org.eclipse.sketch.util;
+
+import java.util.ArrayList;
+
+import org.eclipse.sketch.Sketch.Dna;
+
+/**
+ * Prefix tree of DNAs, searched with the dynamic programming rows of the edit distance.
+ *
+ * The words of a type often start the same way, so walking the tree computes the rows of
+ * a shared prefix once for all the words below it, each child only adding its own row to
+ * the stack. The smallest value of a row is a lower bound of the distance between the query
+ * and every word below: a subtree whose bound cannot enter the best scores is skipped.
+ *
+ * Scores are normalized distances, 100*d/max(n,m) for words of lengths n and m, as in the
+ * nearest neighbour scoring of LevenshteinHandler.
+ *
+ * As in {@link BKTree}, a copy shares the nodes of the tree it is made from, the nodes on
+ * the path of a word added to either being copied first.
+ */
+public class DnaTrie
+{
+	private static class Node
+	{
+		final byte symbol;
+		Node[] children = new Node[2];
+		int count;
+		//number of words ending here
+		int words;
+		//length of the longest word below
+		int longest;
+		//the tree allowed to change this node in place
+		final Object owner;
+
+		Node(int symbol, Object owner)
+		{
+			this.symbol = (byte)symbol;
+			this.owner = owner;
+		}
+
+		/**
+		 * @return a copy of this node, with the same children, to be changed by owner
+		 */
+		Node copy(Object owner)
+		{
+			Node copy = new Node(symbol, owner);
+			copy.children = children.clone();
+			copy.count = count;
+			copy.words = words;
+			copy.longest = longest;
+			return copy;
+		}
+
+		int indexOf(int symbol)
+		{
+			for (int i=0; i!=count; ++i)
+				if (children[i].symbol==symbol)
+					return i;
+			return -1;
+		}
+
+		Node put(int symbol)
+		{
+			if (count == children.length)
+			{
+				Node[] c = new Node[count*2];
+				System.arraycopy(children, 0, c, 0, count);
+				children = c;
+			}
+			Node child = new Node(symbol, owner);
+			children[count++] = child;
+			return child;
+		}
+	}
+
+	//the nodes made by this tree since it was made or copied, changed in place
+	private Object owner = new Object();
+	private Node root = new Node(-1, owner);
+	private int size;
+	private int nodes = 1;
+	private int visited;
+
+	/**
+	 * @return a tree holding the same words, sharing the nodes of this one
+	 */
+	public DnaTrie copy()
+	{
+		DnaTrie copy = new DnaTrie();
+		copy.root = root;
+		copy.size = size;
+		copy.nodes = nodes;
+		//the nodes are shared from now on, so this tree copies them as well
+		owner = new Object();
+		return copy;
+	}
+
+	private Node writable(Node node)
+	{
+		return node.owner == owner ? node : node.copy(owner);
+	}
+
+	/**
+	 * Adds a word to the tree. Duplicates are kept, as two equal sketches count twice in a
+	 * KNN vote.
+	 */
+	public void add(Dna dna)
+	{
+		size++;
+		int length = dna.length();
+		root = writable(root);
+		Node node = root;
+		node.longest = Math.max(node.longest, length);
+		for (int i=0; i!=length; ++i)
+		{
+			int c = node.indexOf(dna.symbolAt(i));
+			Node child;
+			if (c < 0)
+			{
+				child = node.put(dna.symbolAt(i));
+				nodes++;
+			}
+			else
+			{
+				child = writable(node.children[c]);
+				node.children[c] = child;
+			}
+			node = child;
+			node.longest = Math.max(node.longest, length);
+		}
+		node.words++;
+	}
+
+	/**
+	 * @return the number of words
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * @return the number of nodes, the number of rows computed when nothing is skipped
+	 */
+	public int getNodes()
+	{
+		return nodes;
+	}
+
+	/**
+	 * @return the number of rows computed by the last call to {@link #nearest(Dna, int)}
+	 */
+	public int getLastVisited()
+	{
+		return visited;
+	}
+
+	/**
+	 * Finds the k best normalized distances between the query and the words.
+	 * @param query
+	 * @param k the number of neighbours wanted
+	 * @return at most k scores, sorted by increasing distance
+	 */
+	public float[] nearest(Dna query, int k)
+	{
+		visited = 0;
+		int n = query.length();
+		byte[] q = new byte[n];
+		query.getSymbols(q);
+
+		if (k <= 0 || size == 0)
+			return new float[0];
+		float[] best = new float[k];
+		int found = 0;
+
+		//rows[i] is the row of the node at depth i being visited
+		int[][] rows = new int[root.longest+1][n+1];
+		for (int j=0; j<=n; ++j)
+			rows[0][j] = j;
+
+		ArrayList<Node> stack = new ArrayList<Node>();
+		int[] depths = new int[16];
+		stack.add(root);
+		while (!stack.isEmpty())
+		{
+			int top = stack.size()-1;
+			Node node = stack.remove(top);
+			int depth = depths[top];
+			if (node != root)
+			{
+				int[] row = rows[depth];
+				int[] parent = rows[depth-1];
+				int symbol = node.symbol;
+				row[0] = depth;
+				int min = depth;
+				for (int j=1; j<=n; ++j)
+				{
+					int v = parent[j-1] + (q[j-1] == symbol ? 0 : 1);
+					if (parent[j] + 1 < v)
+						v = parent[j] + 1;
+					if (row[j-1] + 1 < v)
+						v = row[j-1] + 1;
+					row[j] = v;
+					if (v < min)
+						min = v;
+				}
+				visited++;
+
+				//every word below is at least min edits away, and at most node.longest long
+				if (found == k && score(min, n, node.longest) >= best[k-1])
+					continue;
+			}
+
+			if (node.words > 0)
+			{
+				float score = score(rows[depth][n], n, depth);
+				for (int w=0; w!=node.words; ++w)
+				{
+					if (found == k && score >= best[k-1])
+						break;
+					int at = found < k ? found++ : k-1;
+					while (at > 0 && best[at-1] > score)
+					{
+						best[at] = best[at-1];
+						at--;
+					}
+					best[at] = score;
+				}
+			}
+
+			for (int i=0; i!=node.count; ++i)
+			{
+				if (stack.size() == depths.length)
+				{
+					int[] d = new int[depths.length*2];
+					System.arraycopy(depths, 0, d, 0, depths.length);
+					depths = d;
+				}
+				stack.add(node.children[i]);
+				depths[stack.size()-1] = depth+1;
+			}
+		}
+
+		if (found < k)
+		{
+			float[] f = new float[found];
+			System.arraycopy(best, 0, f, 0, found);
+			return f;
+		}
+		return best;
+	}
+
+	private static float score(int d, int n, int length)
+	{
+		int longest = Math.max(n, length);
+		return longest == 0 ? 0 : 100*(float)d/longest;
+	}
+}
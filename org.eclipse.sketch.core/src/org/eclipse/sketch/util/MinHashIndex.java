@@ -0,0 +1,250 @@
+package org.eclipse.sketch.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.eclipse.sketch.Sketch.Dna;
+
+/**
+ * Locality sensitive index of DNAs, for banks too big to be scanned at each sketch.
+ *
+ * Each word is summarized by a MinHash signature of its q-grams: for each of the hash
+ * functions, the smallest hash of its q-grams. Two words agree on a value of their
+ * signatures with a probability equal to the Jaccard similarity of their q-grams, which
+ * a small edit distance keeps high. The q-grams are counted as a multiset (the k-th
+ * occurrence of a gram is an element of its own), otherwise all the sketches of a shape,
+ * whatever the length of their strokes, would have the same few grams. The signature is cut in bands, and the words are stored
+ * in one table per band under the values of that band: the words sharing at least one band
+ * with a query are its candidates, to be compared exactly.
+ *
+ * The search is approximate: a close word may share no band with the query and be missed.
+ *
+ * A copy shares the tables of the index it is made from, which neither changes afterwards,
+ * and keeps the words added to it in tables of its own. Once those hold more than an eighth
+ * of the shared words, the next copy merges them.
+ */
+public class MinHashIndex
+{
+	/** length of the grams */
+	public static final int Q = 3;
+	/** number of tables */
+	public static final int BANDS = 16;
+	/** number of signature values per band */
+	public static final int ROWS = 4;
+
+	private static final int HASHES = BANDS*ROWS;
+	private static final long PRIME = (1L << 31) - 1;
+	//grams of Q symbols, then the words shorter than Q, whole
+	private static final int GRAMS = pow(Dna.SYMBOLS, Q) + pow(Dna.SYMBOLS, Q);
+	//the hash functions h(x) = (a*x + b) mod PRIME
+	private static final long[] A = new long[HASHES];
+	private static final long[] B = new long[HASHES];
+	static
+	{
+		Random random = new Random(0x5ce7c4L);
+		for (int h=0; h!=HASHES; ++h)
+		{
+			A[h] = 1 + random.nextInt(Integer.MAX_VALUE - 1);
+			B[h] = random.nextInt(Integer.MAX_VALUE);
+		}
+	}
+
+	//the tables shared with other copies, never changed, null if there are none
+	private ArrayList<HashMap<Long, ArrayList<Dna>>> shared;
+	private int sharedSize;
+	//the words added since the shared tables
+	private final ArrayList<HashMap<Long, ArrayList<Dna>>> tables = newTables();
+	private int size;
+
+	private static ArrayList<HashMap<Long, ArrayList<Dna>>> newTables()
+	{
+		ArrayList<HashMap<Long, ArrayList<Dna>>> tables = new ArrayList<HashMap<Long, ArrayList<Dna>>>(BANDS);
+		for (int b=0; b!=BANDS; ++b)
+			tables.add(new HashMap<Long, ArrayList<Dna>>());
+		return tables;
+	}
+
+	/**
+	 * Adds the buckets of some tables to others, the buckets of the tables changed being
+	 * copied rather than added to
+	 */
+	private static void addTables(ArrayList<HashMap<Long, ArrayList<Dna>>> to, ArrayList<HashMap<Long, ArrayList<Dna>>> from)
+	{
+		for (int b=0; b!=BANDS; ++b)
+		{
+			HashMap<Long, ArrayList<Dna>> table = to.get(b);
+			for (Map.Entry<Long, ArrayList<Dna>> bucket : from.get(b).entrySet())
+			{
+				ArrayList<Dna> list = table.get(bucket.getKey());
+				if (list == null)
+					list = new ArrayList<Dna>(bucket.getValue());
+				else
+				{
+					list = new ArrayList<Dna>(list);
+					list.addAll(bucket.getValue());
+				}
+				table.put(bucket.getKey(), list);
+			}
+		}
+	}
+
+	/**
+	 * @return an index holding the same words, sharing the tables of this one
+	 */
+	public MinHashIndex copy()
+	{
+		MinHashIndex copy = new MinHashIndex();
+		copy.size = size;
+		if (shared != null && 8*(size - sharedSize) <= sharedSize)
+		{
+			copy.shared = shared;
+			copy.sharedSize = sharedSize;
+			addTables(copy.tables, tables);
+		}
+		else
+		{
+			//the words added since are too many to be copied each time: merged once
+			copy.shared = newTables();
+			copy.sharedSize = size;
+			if (shared != null)
+				addTables(copy.shared, shared);
+			addTables(copy.shared, tables);
+		}
+		return copy;
+	}
+
+	private static int pow(int base, int exponent)
+	{
+		int p = 1;
+		for (int i=0; i!=exponent; ++i)
+			p *= base;
+		return p;
+	}
+
+	/**
+	 * @param dna
+	 * @return the MinHash signature of the q-grams of dna
+	 */
+	public static int[] signature(Dna dna)
+	{
+		int[] signature = new int[HASHES];
+		for (int h=0; h!=HASHES; ++h)
+			signature[h] = Integer.MAX_VALUE;
+
+		int n = dna.length();
+		if (n < Q)
+		{
+			int gram = 0;
+			for (int i=0; i!=n; ++i)
+				gram = gram*Dna.SYMBOLS + dna.symbolAt(i);
+			hash(pow(Dna.SYMBOLS, Q) + gram, signature);
+			return signature;
+		}
+
+		int[] occurrences = new int[GRAMS];
+		int gram = 0;
+		int high = pow(Dna.SYMBOLS, Q-1);
+		for (int i=0; i!=n; ++i)
+		{
+			gram = (gram % high)*Dna.SYMBOLS + dna.symbolAt(i);
+			if (i >= Q-1)
+				hash(gram + (long)GRAMS*occurrences[gram]++, signature);
+		}
+		return signature;
+	}
+
+	private static void hash(long element, int[] signature)
+	{
+		for (int h=0; h!=HASHES; ++h)
+		{
+			int value = (int)((A[h]*element + B[h]) % PRIME);
+			if (value < signature[h])
+				signature[h] = value;
+		}
+	}
+
+	private static Long band(int[] signature, int b)
+	{
+		long key = b;
+		for (int r=0; r!=ROWS; ++r)
+			key = key*PRIME + signature[b*ROWS + r];
+		return Long.valueOf(key);
+	}
+
+	/**
+	 * Adds a word to the index. Duplicates are kept, as two equal sketches count twice in a
+	 * KNN vote.
+	 */
+	public void add(Dna dna)
+	{
+		size++;
+		int[] signature = signature(dna);
+		for (int b=0; b!=BANDS; ++b)
+		{
+			HashMap<Long, ArrayList<Dna>> table = tables.get(b);
+			Long key = band(signature, b);
+			ArrayList<Dna> bucket = table.get(key);
+			if (bucket == null)
+			{
+				bucket = new ArrayList<Dna>(2);
+				table.put(key, bucket);
+			}
+			bucket.add(dna);
+		}
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * @param query
+	 * @param max the largest number of candidates wanted
+	 * @return the words sharing at least one band with the query, those sharing the most
+	 * bands first, at most max of them
+	 */
+	public ArrayList<Dna> candidates(Dna query, int max)
+	{
+		int[] signature = signature(query);
+		final IdentityHashMap<Dna, int[]> bands = new IdentityHashMap<Dna, int[]>();
+		for (int b=0; b!=BANDS; ++b)
+		{
+			Long key = band(signature, b);
+			count(tables.get(b).get(key), bands);
+			if (shared != null)
+				count(shared.get(b).get(key), bands);
+		}
+
+		ArrayList<Dna> candidates = new ArrayList<Dna>(bands.keySet());
+		if (candidates.size() > max)
+		{
+			Collections.sort(candidates, new Comparator<Dna>() {
+				public int compare(Dna a, Dna b) {
+					return bands.get(b)[0] - bands.get(a)[0];
+				}
+			});
+			candidates.subList(max, candidates.size()).clear();
+		}
+		return candidates;
+	}
+
+	private static void count(ArrayList<Dna> bucket, IdentityHashMap<Dna, int[]> bands)
+	{
+		if (bucket == null)
+			return;
+		for (Dna dna : bucket)
+		{
+			int[] count = bands.get(dna);
+			if (count == null)
+				bands.put(dna, new int[] {1});
+			else
+				count[0]++;
+		}
+	}
+}
@@ -18,8 +18,6 @@ import java.awt.Dimension;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.PrintWriter;
-import java.util.HashMap;
-import java.util.Iterator;
 
 import org.apache.batik.dom.GenericDOMImplementation;
 import org.apache.batik.dom.svg.SVGDOMImplementation;
@@ -45,6 +43,8 @@ import org.eclipse.gmf.runtime.emf.type.core.IHintedType;
 import org.eclipse.gmf.runtime.notation.Node;
 import org.eclipse.gmf.runtime.notation.impl.DiagramImpl;
 import org.eclipse.sketch.Sketch;
+import org.eclipse.sketch.chain.LevenshteinHandler;
+import org.eclipse.sketch.chain.RankedResult;
 import org.eclipse.sketch.clientobserver.ISketchListener;
 import org.eclipse.sketch.examples.shapes.Diagram;
 import org.eclipse.sketch.examples.shapes.ShapesFactory;
@@ -222,34 +222,23 @@ public class MyShapesSketchClient implements ISketchListener{
 	
 	private void setMeta(Unknown unknown_element, Sketch s){
 		//shows what this element is, nicely, with percentages			
-		if(s.getResult().get(Sketch.ELEMENT_RESULT_KEY)!=null){
-			HashMap<Object,Integer> resultmap = (HashMap<Object, Integer>) s.getResult().get(Sketch.ELEMENT_RESULT_KEY);
+		RankedResult ranked = (RankedResult) s.getResult().get(RankedResult.RESULT_KEY);
+		if(ranked!=null){
 			
-			String meta = "distances: ";
+			String best_guess_element = ranked.size()>0 ? String.valueOf(ranked.getType(0)) : "?";
+			String meta = "distances: "+ranked;
 			
-			String best_guess_element = "?";
-			int best_guess_distance = 999;
-			
-			
-			Iterator it = resultmap.keySet().iterator();
-			while(it.hasNext()){
-				String type = (String) it.next(); 
-				
-				int distance = resultmap.get(type);
-				
-				if(distance >=0 && distance < best_guess_distance){
-					best_guess_distance = distance;
-					best_guess_element = type;
-				}
-				
-				meta += type+":"+distance+" ";
-				
-			}
 			unknown_element.eSet(ShapesPackage.UNKNOWN__ELEMENT,best_guess_element);
 			unknown_element.eSet(ShapesPackage.UNKNOWN__META,meta);
 			System.out.println(unknown_element.getDna());
 			unknown_element.eSet(ShapesPackage.UNKNOWN__DNA, s.getDna());
 		}
+		else if(s.getResult().get(LevenshteinHandler.BANK_LOADING_RESULT_KEY)!=null){
+			//drawn before the bank was read from the disk
+			unknown_element.eSet(ShapesPackage.UNKNOWN__ELEMENT,"?");
+			unknown_element.eSet(ShapesPackage.UNKNOWN__META,"sketch bank loading");
+			unknown_element.eSet(ShapesPackage.UNKNOWN__DNA, s.getDna());
+		}
 		
 	}
 
@@ -0,0 +1,138 @@
+/**
+ * Copyright (c) 2010 Ugo Sangiorgi and others.
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Contributors:
+ *  Ugo Sangiorgi <ugo.sangiorgi@gmail.com> - Initial contribution
+ *
+ *
+ * $Id$
+ */
+package org.eclipse.sketch.examples.shapes.tests;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import junit.textui.TestRunner;
+
+import org.eclipse.sketch.Sketch.Dna;
+import org.eclipse.sketch.chain.BitParallelLevenshtein;
+import org.eclipse.sketch.chain.LevenshteinHandler;
+import org.eclipse.sketch.util.BKTree;
+import org.eclipse.sketch.util.SortablePair;
+
+/**
+ * Checks that the k nearest neighbours found by {@link BKTree} are those of a linear scan.
+ */
+public class BKTreeTest extends TestCase {
+
+	private static final String[] SHAPES = {
+		"33333333555555557777777711111111",
+		"4333332345555555557777777777811111111",
+		"2222222266666666444444448888",
+		"35353535777777771111" };
+
+	private static final BKTree.Metric<Dna> EDIT_DISTANCE = new BKTree.Metric<Dna>() {
+		public int distance(Dna a, Dna b) {
+			return BitParallelLevenshtein.distance(a, b);
+		}
+	};
+
+	public static void main(String[] args) {
+		TestRunner.run(BKTreeTest.class);
+	}
+
+	public BKTreeTest(String name) {
+		super(name);
+	}
+
+	/**
+	 * Builds a DNA a few random edits away from one of the SHAPES, so that the words form
+	 * clusters as in a real bank
+	 */
+	static Dna randomDna(Random random) {
+		StringBuilder s = new StringBuilder(SHAPES[random.nextInt(SHAPES.length)]);
+		int edits = random.nextInt(8);
+		for (int e = 0; e < edits; e++) {
+			int at = random.nextInt(s.length());
+			char c = (char)('1' + random.nextInt(8));
+			switch (random.nextInt(3)) {
+			case 0:
+				s.setCharAt(at, c);
+				break;
+			case 1:
+				s.insert(at, c);
+				break;
+			default:
+				if (s.length() > 4)
+					s.deleteCharAt(at);
+			}
+		}
+		return new Dna(s.toString());
+	}
+
+	private static void assertNearest(ArrayList<Dna> words, BKTree<Dna> tree, Dna query, int k) {
+		ArrayList<Integer> expected = new ArrayList<Integer>();
+		for (Dna word : words)
+			expected.add(LevenshteinHandler.run(query.toString(), word.toString()));
+		Collections.sort(expected);
+
+		ArrayList<SortablePair<Dna, Integer>> found = tree.nearest(query, k);
+		assertEquals(query.toString(), Math.min(k, words.size()), found.size());
+		for (int i = 0; i < found.size(); i++) {
+			assertEquals(query.toString(), expected.get(i), found.get(i).value());
+			assertEquals(query.toString(), EDIT_DISTANCE.distance(query, found.get(i).key()), found.get(i).value().intValue());
+		}
+	}
+
+	public void testNearest() {
+		Random random = new Random(1);
+		ArrayList<Dna> words = new ArrayList<Dna>();
+		BKTree<Dna> tree = new BKTree<Dna>(EDIT_DISTANCE);
+		for (int i = 0; i < 1000; i++) {
+			Dna word = randomDna(random);
+			words.add(word);
+			tree.add(word);
+		}
+		assertEquals(words.size(), tree.size());
+		for (int q = 0; q < 200; q++)
+			assertNearest(words, tree, randomDna(random), 1 + random.nextInt(5));
+	}
+
+	public void testAddWhileQuerying() {
+		Random random = new Random(2);
+		ArrayList<Dna> words = new ArrayList<Dna>();
+		BKTree<Dna> tree = new BKTree<Dna>(EDIT_DISTANCE);
+		for (int i = 0; i < 300; i++) {
+			Dna word = randomDna(random);
+			words.add(word);
+			tree.add(word);
+			assertNearest(words, tree, randomDna(random), 3);
+		}
+	}
+
+	public void testDuplicates() {
+		BKTree<Dna> tree = new BKTree<Dna>(EDIT_DISTANCE);
+		Dna square = new Dna(SHAPES[0]);
+		tree.add(square);
+		tree.add(square);
+		tree.add(new Dna(SHAPES[1]));
+		ArrayList<SortablePair<Dna, Integer>> found = tree.nearest(square, 2);
+		assertEquals(2, found.size());
+		assertEquals(0, found.get(0).value().intValue());
+		assertEquals(0, found.get(1).value().intValue());
+	}
+
+	public void testEmpty() {
+		BKTree<Dna> tree = new BKTree<Dna>(EDIT_DISTANCE);
+		assertEquals(0, tree.nearest(new Dna(SHAPES[0]), 3).size());
+		tree.add(new Dna(SHAPES[0]));
+		assertEquals(0, tree.nearest(new Dna(SHAPES[0]), 0).size());
+	}
+
+}
@@ -0,0 +1,191 @@
+/**
+ * Copyright (c) 2010 Ugo Sangiorgi and others.
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Contributors:
+ *  Ugo Sangiorgi <ugo.sangiorgi@gmail.com> - Initial contribution
+ *
+ *
+ * $Id$
+ */
+package org.eclipse.sketch.examples.shapes.tests;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import junit.textui.TestRunner;
+
+import org.eclipse.sketch.BankJournal;
+import org.eclipse.sketch.Sketch.Dna;
+
+/**
+ * Checks that the {@link BankJournal} replays the records appended to it, and only the
+ * complete ones when the last one was cut by a crash.
+ */
+public class BankJournalTest extends TestCase {
+
+	//types with the characters escaped in the records
+	private static final String[] TYPES = { "Square", "Circle", "tab\there", "new\nline", "back\\slash", "élément", "" };
+
+	private File file;
+
+	public static void main(String[] args) {
+		TestRunner.run(BankJournalTest.class);
+	}
+
+	public BankJournalTest(String name) {
+		super(name);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		file = File.createTempFile("sketches", ".journal");
+		file.delete();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		file.delete();
+	}
+
+	/**
+	 * Writes the records it receives back, to be compared with the ones appended
+	 */
+	private static class Recorder implements BankJournal.Replay {
+		final ArrayList<String> records = new ArrayList<String>();
+
+		public void insert(String type) {
+			records.add(BankJournal.insertRecord(type));
+		}
+
+		public void add(String type, Dna dna) {
+			records.add(BankJournal.addRecord(type, dna));
+		}
+	}
+
+	private static String randomRecord(Random random) {
+		String type = TYPES[random.nextInt(TYPES.length)];
+		if (random.nextInt(5) == 0)
+			return BankJournal.insertRecord(type);
+		return BankJournal.addRecord(type, DnaTest.randomDna(random, random.nextInt(30)));
+	}
+
+	private static ArrayList<String> replay(File file) {
+		Recorder recorder = new Recorder();
+		new BankJournal(file).replay(recorder, true);
+		return recorder.records;
+	}
+
+	private static void appendBytes(File file, byte[] bytes, int length) throws IOException {
+		FileOutputStream out = new FileOutputStream(file, true);
+		try {
+			out.write(bytes, 0, length);
+		} finally {
+			out.close();
+		}
+	}
+
+	public void testReplay() {
+		Random random = new Random(1);
+		BankJournal journal = new BankJournal(file);
+		ArrayList<String> written = new ArrayList<String>();
+		for (int b = 0; b < 50; b++) {
+			StringBuilder batch = new StringBuilder();
+			int count = 1 + random.nextInt(5);
+			for (int r = 0; r < count; r++) {
+				String record = randomRecord(random);
+				written.add(record);
+				batch.append(record);
+			}
+			journal.append(batch.toString(), count);
+		}
+		assertEquals(written.size(), journal.getRecords());
+		assertEquals(written, replay(file));
+
+		journal.truncate();
+		assertEquals(0, journal.getRecords());
+		assertEquals(0, replay(file).size());
+	}
+
+	public void testTornLastRecord() throws IOException {
+		Random random = new Random(2);
+		for (int t = 0; t < 200; t++) {
+			file.delete();
+			BankJournal journal = new BankJournal(file);
+			ArrayList<String> complete = new ArrayList<String>();
+			int count = random.nextInt(5);
+			StringBuilder batch = new StringBuilder();
+			for (int r = 0; r < count; r++) {
+				String record = randomRecord(random);
+				complete.add(record);
+				batch.append(record);
+			}
+			if (count > 0)
+				journal.append(batch.toString(), count);
+			long length = file.length();
+
+			//the last batch is cut by a crash, anywhere
+			ArrayList<String> last = new ArrayList<String>();
+			StringBuilder torn = new StringBuilder();
+			for (int r = 1 + random.nextInt(3); r > 0; r--) {
+				String record = randomRecord(random);
+				last.add(record);
+				torn.append(record);
+			}
+			byte[] bytes = torn.toString().getBytes("UTF-8");
+			int cut = random.nextInt(bytes.length);
+			appendBytes(file, bytes, cut);
+			int end = 0;
+			for (String record : last) {
+				end += record.getBytes("UTF-8").length;
+				if (end > cut)
+					break;
+				complete.add(record);
+				length += record.getBytes("UTF-8").length;
+			}
+
+			//read again after the crash: the cut record is dropped, and removed
+			journal = new BankJournal(file);
+			Recorder recorder = new Recorder();
+			journal.replay(recorder, true);
+			assertEquals(complete, recorder.records);
+			assertEquals(complete.size(), journal.getRecords());
+			assertEquals("torn at " + cut, length, file.length());
+
+			//the records appended next are not glued to the cut one
+			String next = randomRecord(random);
+			journal.append(next, 1);
+			complete.add(next);
+			assertEquals(complete, replay(file));
+		}
+	}
+
+	public void testRecordsAppendedByAnother() {
+		BankJournal journal = new BankJournal(file);
+		BankJournal other = new BankJournal(file);
+		Dna square = new Dna("33335555777711111");
+		journal.append(BankJournal.insertRecord("Square"), 1);
+		other.replay(new Recorder(), true);
+		journal.append(BankJournal.addRecord("Square", square), 1);
+
+		//only the records since the last replay are read again
+		Recorder recorder = new Recorder();
+		other.replay(recorder, false);
+		assertEquals(1, recorder.records.size());
+		assertEquals(BankJournal.addRecord("Square", square), recorder.records.get(0));
+		assertEquals(2, other.getRecords());
+	}
+
+	public void testMissingJournal() {
+		assertEquals(0, replay(file).size());
+		assertFalse(file.exists());
+	}
+
+}
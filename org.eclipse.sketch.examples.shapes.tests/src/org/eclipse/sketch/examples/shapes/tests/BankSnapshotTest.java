@@ -0,0 +1,202 @@
+/**
+ * Copyright (c) 2010 Ugo Sangiorgi and others.
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Contributors:
+ *  Ugo Sangiorgi <ugo.sangiorgi@gmail.com> - Initial contribution
+ *
+ *
+ * $Id$
+ */
+package org.eclipse.sketch.examples.shapes.tests;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import junit.textui.TestRunner;
+
+import org.eclipse.sketch.BankSnapshot;
+import org.eclipse.sketch.Sketch.Dna;
+import org.eclipse.sketch.chain.BitParallelLevenshtein;
+import org.eclipse.sketch.util.BKTree;
+import org.eclipse.sketch.util.DnaClusters;
+import org.eclipse.sketch.util.DnaTrie;
+import org.eclipse.sketch.util.MinHashIndex;
+import org.eclipse.sketch.util.SortablePair;
+
+/**
+ * Checks that the search structures of a type are carried over to the next snapshot when
+ * sketches are taught, without changing those of the previous snapshot, and that a type
+ * cleared while the bank is read stays cleared.
+ */
+public class BankSnapshotTest extends TestCase {
+
+	private static final BKTree.Metric<Dna> EDIT_DISTANCE = new BKTree.Metric<Dna>() {
+		public int distance(Dna a, Dna b) {
+			return BitParallelLevenshtein.distance(a, b);
+		}
+	};
+
+	private static final String[] TYPES = { "Square", "Circle" };
+
+	public static void main(String[] args) {
+		TestRunner.run(BankSnapshotTest.class);
+	}
+
+	public BankSnapshotTest(String name) {
+		super(name);
+	}
+
+	private static BankSnapshot teach(BankSnapshot snapshot, String type, List<Dna> sketches) {
+		BankSnapshot.Builder builder = new BankSnapshot.Builder(snapshot);
+		builder.declare(type);
+		for (Dna dna : sketches)
+			builder.add(type, dna);
+		return builder.build();
+	}
+
+	private static int[] distances(BKTree<Dna> tree, Dna query, int k) {
+		ArrayList<SortablePair<Dna,Integer>> nearest = tree.nearest(query, k);
+		int[] distances = new int[nearest.size()];
+		for (int i = 0; i < distances.length; i++)
+			distances[i] = nearest.get(i).value();
+		return distances;
+	}
+
+	private static ArrayList<String> candidates(MinHashIndex hashes, Dna query) {
+		ArrayList<String> candidates = new ArrayList<String>();
+		for (Dna dna : hashes.candidates(query, Integer.MAX_VALUE))
+			candidates.add(dna.toString());
+		Collections.sort(candidates);
+		return candidates;
+	}
+
+	/**
+	 * Checks the structures of a type against structures built from its sketches
+	 */
+	private static void assertSearched(BankSnapshot snapshot, String type, Dna query) {
+		List<Dna> sketches = snapshot.getSketches(type);
+		BKTree<Dna> tree = new BKTree<Dna>(EDIT_DISTANCE);
+		DnaTrie trie = new DnaTrie();
+		MinHashIndex hashes = new MinHashIndex();
+		DnaClusters clusters = new DnaClusters(EDIT_DISTANCE);
+		for (Dna dna : sketches) {
+			tree.add(dna);
+			trie.add(dna);
+			hashes.add(dna);
+			clusters.add(dna);
+		}
+		clusters.build();
+
+		assertEquals(sketches.size(), snapshot.getIndex(type).size());
+		assertEquals(sketches.size(), snapshot.getTrie(type).size());
+		assertEquals(sketches.size(), snapshot.getHashIndex(type).size());
+		assertEquals(sketches.size(), snapshot.getClusters(type).size());
+		assertTrue(Arrays.equals(distances(tree, query, 5), distances(snapshot.getIndex(type), query, 5)));
+		assertTrue(Arrays.equals(trie.nearest(query, 5), snapshot.getTrie(type).nearest(query, 5)));
+		assertEquals(candidates(hashes, query), candidates(snapshot.getHashIndex(type), query));
+		assertTrue(Arrays.equals(clusters.nearest(query, 5), snapshot.getClusters(type).nearest(query, 5)));
+	}
+
+	public void testStructuresCarriedOver() {
+		Random random = new Random(1);
+		ArrayList<Dna> sketches = new ArrayList<Dna>();
+		for (int i = 0; i < 500; i++)
+			sketches.add(DnaTest.randomDna(random, 10 + random.nextInt(30)));
+		BankSnapshot first = teach(BankSnapshot.empty(), "Square", sketches);
+		Dna query = DnaTest.randomDna(random, 25);
+		BKTree<Dna> index = first.getIndex("Square");
+		DnaTrie trie = first.getTrie("Square");
+		MinHashIndex hashes = first.getHashIndex("Square");
+		DnaClusters clusters = first.getClusters("Square");
+		int[] before = distances(index, query, 5);
+		float[] scores = trie.nearest(query, 5);
+
+		Dna taught = DnaTest.randomDna(random, 25);
+		BankSnapshot second = teach(first, "Square", Collections.singletonList(taught));
+		BKTree<Dna> next = second.getIndex("Square");
+		assertNotSame(index, next);
+		assertEquals(501, next.size());
+		//only the path to the new sketch is walked, the tree is not built again
+		assertTrue(next.getComputed() < 50);
+		assertEquals(501, second.getTrie("Square").size());
+		assertEquals(501, second.getHashIndex("Square").size());
+		assertEquals(501, second.getClusters("Square").size());
+		assertEquals(0, second.getClusters("Square").nearest(taught, 1)[0], 0);
+
+		//the previous snapshot is left as it was
+		assertSame(index, first.getIndex("Square"));
+		assertSame(trie, first.getTrie("Square"));
+		assertSame(hashes, first.getHashIndex("Square"));
+		assertSame(clusters, first.getClusters("Square"));
+		assertEquals(500, index.size());
+		assertEquals(500, trie.size());
+		assertEquals(500, hashes.size());
+		assertEquals(500, clusters.size());
+		assertTrue(Arrays.equals(before, distances(index, query, 5)));
+		assertTrue(Arrays.equals(scores, trie.nearest(query, 5)));
+		assertSearched(first, "Square", taught);
+		assertSearched(second, "Square", taught);
+	}
+
+	public void testRandomSnapshots() {
+		Random random = new Random(2);
+		ArrayList<BankSnapshot> snapshots = new ArrayList<BankSnapshot>();
+		BankSnapshot snapshot = BankSnapshot.empty();
+		for (int s = 0; s < 40; s++) {
+			String type = TYPES[random.nextInt(TYPES.length)];
+			ArrayList<Dna> taught = new ArrayList<Dna>();
+			for (int i = 1 + random.nextInt(20); i > 0; i--)
+				taught.add(DnaTest.randomDna(random, 5 + random.nextInt(30)));
+			if (random.nextInt(10) == 0) {
+				BankSnapshot.Builder builder = new BankSnapshot.Builder(snapshot);
+				builder.clear(type);
+				snapshot = builder.build();
+			}
+			snapshot = teach(snapshot, type, taught);
+			snapshots.add(snapshot);
+
+			//searched now and then, so that some snapshots have structures to carry over
+			Dna query = DnaTest.randomDna(random, 5 + random.nextInt(30));
+			if (random.nextBoolean())
+				assertSearched(snapshot, type, query);
+			BankSnapshot old = snapshots.get(random.nextInt(snapshots.size()));
+			for (String t : TYPES)
+				if (old.getSketches(t) != null)
+					assertSearched(old, t, query);
+		}
+	}
+
+	public void testClearedTypeStaysCleared() {
+		BankSnapshot.Builder stored = new BankSnapshot.Builder(BankSnapshot.empty());
+		stored.declare("Square");
+		stored.add("Square", new Dna("33335555777711111"));
+		stored.declare("Circle");
+		stored.add("Circle", new Dna("3456781234567812"));
+
+		//cleared, and taught again, while the bank stored was read
+		Dna taught = new Dna("3333355557777111");
+		BankSnapshot.Builder builder = new BankSnapshot.Builder(BankSnapshot.empty());
+		builder.clear("Square");
+		BankSnapshot cleared = builder.build();
+		builder = new BankSnapshot.Builder(cleared);
+		builder.add("Square", taught);
+		builder.merge(stored.build());
+		BankSnapshot merged = builder.build();
+		assertEquals(Collections.singletonList(taught), merged.getSketches("Square"));
+		assertEquals(1, merged.getSketches("Circle").size());
+
+		//only the bank stored is left alone
+		builder = new BankSnapshot.Builder(merged);
+		builder.merge(stored.build());
+		assertEquals(2, builder.build().getSketches("Square").size());
+	}
+
+}
@@ -0,0 +1,310 @@
+/**
+ * Copyright (c) 2010 Ugo Sangiorgi and others.
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Contributors:
+ *  Ugo Sangiorgi <ugo.sangiorgi@gmail.com> - Initial contribution
+ *
+ *
+ * $Id$
+ */
+package org.eclipse.sketch.examples.shapes.tests;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import junit.textui.TestRunner;
+
+import org.eclipse.sketch.BankJournal;
+import org.eclipse.sketch.BankSnapshot;
+import org.eclipse.sketch.BankWriter;
+import org.eclipse.sketch.MappedBank;
+import org.eclipse.sketch.Sketch.Dna;
+
+/**
+ * Checks that the {@link BankWriter} gathers the changes made within its window into a
+ * single write of the journal, and that a snapshot replaces the records queued before it.
+ */
+public class BankWriterTest extends TestCase {
+
+	//long enough for the changes of a test to be made within the window
+	private static final long LONG_WINDOW = 60000;
+
+	private File directory;
+	private File journalFile;
+	private File xml;
+	private File binary;
+
+	public static void main(String[] args) {
+		TestRunner.run(BankWriterTest.class);
+	}
+
+	public BankWriterTest(String name) {
+		super(name);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		directory = File.createTempFile("sketches", "");
+		directory.delete();
+		directory.mkdir();
+		journalFile = new File(directory, "sketches.xml.journal");
+		xml = new File(directory, "sketches.xml");
+		binary = new File(directory, "sketches.xml.bank");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		for (File file : directory.listFiles())
+			file.delete();
+		directory.delete();
+	}
+
+	/**
+	 * Counts the batches written to the journal, and the times it is emptied
+	 */
+	private static class CountingJournal extends BankJournal {
+		int batches, truncated;
+
+		CountingJournal(File file) {
+			super(file);
+		}
+
+		@Override
+		public synchronized void append(String batch, int count) {
+			batches++;
+			super.append(batch, count);
+		}
+
+		@Override
+		public synchronized void truncate() {
+			truncated++;
+			super.truncate();
+		}
+	}
+
+	private static ArrayList<String> replay(File file) {
+		final ArrayList<String> records = new ArrayList<String>();
+		new BankJournal(file).replay(new BankJournal.Replay() {
+			public void insert(String type) {
+				records.add(BankJournal.insertRecord(type));
+			}
+
+			public void add(String type, Dna dna) {
+				records.add(BankJournal.addRecord(type, dna));
+			}
+		}, true);
+		return records;
+	}
+
+	public void testRecordsAreCoalesced() throws Exception {
+		final CountingJournal journal = new CountingJournal(journalFile);
+		final BankWriter writer = new BankWriter(journal, xml, binary);
+		writer.setWindow(LONG_WINDOW);
+
+		//appended from several threads, as the UI and the import do
+		final ArrayList<String> records = new ArrayList<String>();
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			final Random random = new Random(t);
+			final String type = "Type" + t;
+			threads[t] = new Thread() {
+				public void run() {
+					for (int r = 0; r < 25; r++) {
+						String record = BankJournal.addRecord(type, DnaTest.randomDna(random, 1 + random.nextInt(30)));
+						synchronized (records) {
+							records.add(record);
+						}
+						writer.append(record);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+		writer.flush().get();
+
+		assertEquals(1, journal.batches);
+		assertEquals(records.size(), journal.getRecords());
+		ArrayList<String> replayed = replay(journalFile);
+		Collections.sort(records);
+		Collections.sort(replayed);
+		assertEquals(records, replayed);
+
+		//nothing left for the write scheduled by the first record
+		writer.flush().get();
+		assertEquals(1, journal.batches);
+		writer.append(BankJournal.insertRecord("Type0"));
+		writer.flush().get();
+		assertEquals(2, journal.batches);
+		assertEquals(records.size() + 1, journal.getRecords());
+	}
+
+	public void testWrittenWithinTheWindow() throws Exception {
+		CountingJournal journal = new CountingJournal(journalFile);
+		BankWriter writer = new BankWriter(journal, xml, binary);
+		writer.setWindow(50);
+		for (int r = 0; r < 10; r++)
+			writer.append(BankJournal.insertRecord("Type" + r));
+		for (int wait = 0; wait < 100 && journal.getRecords() < 10; wait++)
+			Thread.sleep(50);
+		assertEquals(10, journal.getRecords());
+		assertEquals(1, journal.batches);
+	}
+
+	public void testChangesWaitForOpen() throws Exception {
+		BankWriter writer = new BankWriter();
+		writer.setWindow(LONG_WINDOW);
+		String record = BankJournal.insertRecord("Square");
+		writer.append(record);
+		writer.flush().get();
+		assertFalse(journalFile.exists());
+
+		//written once the writer knows where, within the window
+		CountingJournal journal = new CountingJournal(journalFile);
+		writer.setWindow(50);
+		writer.open(journal, xml, binary);
+		for (int wait = 0; wait < 100 && journal.getRecords() < 1; wait++)
+			Thread.sleep(50);
+		assertEquals(1, journal.batches);
+		assertEquals(Collections.singletonList(record), replay(journalFile));
+	}
+
+	public void testFailedSnapshotKeepsRecords() throws Exception {
+		CountingJournal journal = new CountingJournal(journalFile);
+		BankWriter writer = new BankWriter(journal, xml, binary);
+		writer.setWindow(LONG_WINDOW);
+		//the binary bank cannot be replaced, as a mapped one on some systems
+		binary.mkdir();
+		File blocking = new File(binary, "mapped");
+		blocking.createNewFile();
+
+		BankSnapshot.Builder builder = new BankSnapshot.Builder(BankSnapshot.empty());
+		builder.declare("Square");
+		builder.add("Square", new Dna("33335555777711111"));
+		BankSnapshot first = builder.build();
+		String before = BankJournal.addRecord("Square", new Dna("33335555777711111"));
+		String after = BankJournal.addRecord("Circle", new Dna("3456781234567812"));
+		writer.append(before);
+		writer.snapshot(first);
+		writer.append(after);
+		writer.flush().get();
+
+		//nothing is lost: the journal holds all the records, the snapshot waits
+		assertEquals(0, journal.truncated);
+		assertEquals(Arrays.asList(before, after), replay(journalFile));
+		assertFalse(new File(xml.getPath() + ".tmp").exists());
+		assertFalse(new File(binary.getPath() + ".tmp").exists());
+		String next = BankJournal.insertRecord("Triangle");
+		writer.append(next);
+		writer.flush().get();
+		assertEquals(0, journal.truncated);
+		assertEquals(Arrays.asList(before, after, next), replay(journalFile));
+
+		//written once it can be, the records made after it kept in the journal
+		blocking.delete();
+		binary.delete();
+		String last = BankJournal.insertRecord("Circle");
+		writer.append(last);
+		writer.flush().get();
+		assertEquals(1, journal.truncated);
+		assertEquals(Arrays.asList(after, next, last), replay(journalFile));
+		MappedBank bank = MappedBank.open(binary);
+		assertEquals(first.getTypes(), new ArrayList<Object>(bank.getTypes()));
+		assertEquals(1, bank.getWords(0).size());
+		assertTrue(xml.exists());
+	}
+
+	public void testSnapshotReplacesRecords() throws Exception {
+		CountingJournal journal = new CountingJournal(journalFile);
+		BankWriter writer = new BankWriter(journal, xml, binary);
+		writer.setWindow(LONG_WINDOW);
+
+		BankSnapshot.Builder builder = new BankSnapshot.Builder(BankSnapshot.empty());
+		builder.declare("Square");
+		builder.add("Square", new Dna("33335555777711111"));
+		BankSnapshot first = builder.build();
+		builder = new BankSnapshot.Builder(first);
+		builder.declare("Triangle");
+		builder.add("Triangle", new Dna("222266664444"));
+		builder.add("Square", new Dna("3333355557777111"));
+		BankSnapshot second = builder.build();
+
+		writer.append(BankJournal.insertRecord("Square"));
+		writer.append(BankJournal.addRecord("Square", new Dna("33335555777711111")));
+		writer.snapshot(first);
+		writer.append(BankJournal.insertRecord("Triangle"));
+		writer.snapshot(second);
+		String after = BankJournal.addRecord("Circle", new Dna("3456781234567812"));
+		writer.append(after);
+		writer.flush().get();
+
+		//only the last snapshot is written, then the records made after it
+		assertEquals(1, journal.truncated);
+		assertEquals(1, journal.batches);
+		assertEquals(Collections.singletonList(after), replay(journalFile));
+		assertTrue(xml.exists());
+		MappedBank bank = MappedBank.open(binary);
+		assertEquals(second.getTypes(), new ArrayList<Object>(bank.getTypes()));
+		for (int t = 0; t < bank.getTypes().size(); t++) {
+			MappedBank.Words words = bank.getWords(t);
+			assertEquals(second.getSketches(bank.getTypes().get(t)).size(), words.size());
+			for (int i = 0; i < words.size(); i++)
+				assertEquals(second.getSketches(bank.getTypes().get(t)).get(i), words.getDna(i));
+		}
+		assertFalse(new File(binary.getPath() + ".tmp").exists());
+	}
+
+	public void testRepeatedWordsWritten() throws Exception {
+		BankWriter writer = new BankWriter(new BankJournal(journalFile), xml, binary);
+		BankSnapshot.Builder builder = new BankSnapshot.Builder(BankSnapshot.empty());
+		builder.declare("Square");
+		builder.declare("Diamond");
+		Dna square = new Dna("33335555777711111");
+		builder.add("Square", square);
+		builder.add("Square", square);
+		builder.add("Square", new Dna("3333355557777111"));
+		builder.add("Diamond", square);
+		BankSnapshot snapshot = builder.build();
+		writer.snapshot(snapshot);
+		writer.flush().get();
+
+		//every word is in the XML bank, a repeated one followed by its number
+		Properties properties = new Properties();
+		InputStream in = new FileInputStream(xml);
+		try {
+			properties.loadFromXML(in);
+		} finally {
+			in.close();
+		}
+		assertEquals(4, properties.size());
+		ArrayList<String> squares = new ArrayList<String>();
+		ArrayList<String> diamonds = new ArrayList<String>();
+		for (Object key : properties.keySet()) {
+			String word = (String)key;
+			int repeat = word.indexOf('#');
+			if (repeat >= 0)
+				word = word.substring(0, repeat);
+			if ("Square".equals(properties.get(key)))
+				squares.add(word);
+			else
+				diamonds.add(word);
+		}
+		Collections.sort(squares);
+		assertEquals(Arrays.asList("3333355557777111", square.toString(), square.toString()), squares);
+		assertEquals(Collections.singletonList(square.toString()), diamonds);
+		assertEquals(3, MappedBank.open(binary).getWords(0).size());
+	}
+
+}
@@ -0,0 +1,138 @@
+/**
+ * Copyright (c) 2010 Ugo Sangiorgi and others.
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Contributors:
+ *  Ugo Sangiorgi <ugo.sangiorgi@gmail.com> - Initial contribution
+ *
+ *
+ * $Id$
+ */
+package org.eclipse.sketch.examples.shapes.tests;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import junit.textui.TestRunner;
+
+import org.eclipse.sketch.BankSnapshot;
+import org.eclipse.sketch.Sketch.Dna;
+import org.eclipse.sketch.chain.BatchRecognizer;
+import org.eclipse.sketch.chain.LevenshteinHandler;
+import org.eclipse.sketch.chain.MatchStatistics;
+
+/**
+ * Checks that the {@link BatchRecognizer} gives the scores of the EXHAUSTIVE mode of the
+ * chain, for the same snapshot of the bank.
+ */
+public class BatchRecognizerTest extends TestCase {
+
+	private static final String[] TYPES = { "Square", "Circle", "Triangle", "Empty" };
+
+	private LevenshteinHandler.Mode mode;
+
+	public static void main(String[] args) {
+		TestRunner.run(BatchRecognizerTest.class);
+	}
+
+	public BatchRecognizerTest(String name) {
+		super(name);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		mode = LevenshteinHandler.getMode();
+		LevenshteinHandler.setMode(LevenshteinHandler.Mode.EXHAUSTIVE);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		LevenshteinHandler.setMode(mode);
+	}
+
+	private static BankSnapshot randomSnapshot(Random random) {
+		BankSnapshot.Builder builder = new BankSnapshot.Builder(BankSnapshot.empty());
+		for (String type : TYPES) {
+			builder.declare(type);
+			//the last type is left without sketches
+			if (!type.equals("Empty"))
+				for (int i = 1 + random.nextInt(40); i > 0; i--)
+					builder.add(type, DnaTest.randomDna(random, 3 + random.nextInt(40)));
+		}
+		return builder.build();
+	}
+
+	private static void assertSameResults(BankSnapshot bank, List<Dna> dnas) {
+		ArrayList<BatchRecognizer.Result> results = new BatchRecognizer(bank).recognize(dnas);
+		assertEquals(dnas.size(), results.size());
+		List<Object> types = bank.getTypes();
+		for (int i = 0; i < dnas.size(); i++) {
+			BatchRecognizer.Result result = results.get(i);
+			Dna dna = dnas.get(i);
+			assertSame(dna, result.getDna());
+			if (dna.length() < 3) {
+				assertTrue(result.getScores().isEmpty());
+				assertNull(result.getBest());
+				continue;
+			}
+
+			//the map the chain puts in the result of the sketch
+			float[] averages = new LevenshteinHandler().score(bank, dna, new MatchStatistics());
+			HashMap<Object, Integer> expected = new HashMap<Object, Integer>();
+			HashSet<Object> ranked = new HashSet<Object>();
+			for (int t = 0; t < types.size(); t++) {
+				expected.put(types.get(t), Integer.valueOf(averages[t] == -1 ? -1 : (int)averages[t]));
+				if (averages[t] != -1)
+					ranked.add(types.get(t));
+			}
+			assertEquals(dna.toString(), expected, result.getScores());
+
+			//every type having sketches, ranked on the distances before they are rounded
+			assertEquals(ranked, new HashSet<Object>(result.getRanking()));
+			assertEquals(ranked.size(), result.getRanking().size());
+			for (int r = 1; r < result.getRanking().size(); r++)
+				assertTrue(averages[types.indexOf(result.getRanking().get(r-1))] <= averages[types.indexOf(result.getRanking().get(r))]);
+			assertEquals(4 * (bank.getSketches("Square").size() + bank.getSketches("Circle").size()
+					+ bank.getSketches("Triangle").size()), result.getStatistics().getCandidates());
+		}
+	}
+
+	public void testSameAsChain() {
+		Random random = new Random(1);
+		for (int n = 0; n < 10; n++) {
+			BankSnapshot bank = randomSnapshot(random);
+			ArrayList<Dna> dnas = new ArrayList<Dna>();
+			for (int i = random.nextInt(6); i > 0; i--)
+				dnas.add(DnaTest.randomDna(random, random.nextInt(40)));
+			assertSameResults(bank, dnas);
+		}
+	}
+
+	public void testManySketches() {
+		//enough sketches to be split between the threads of the pool
+		Random random = new Random(2);
+		BankSnapshot bank = randomSnapshot(random);
+		ArrayList<Dna> dnas = new ArrayList<Dna>();
+		for (int i = 0; i < 100; i++)
+			dnas.add(DnaTest.randomDna(random, random.nextInt(40)));
+		//the same sketch twice
+		dnas.add(dnas.get(0));
+		assertSameResults(bank, dnas);
+	}
+
+	public void testEmptyBank() {
+		ArrayList<Dna> dnas = new ArrayList<Dna>();
+		dnas.add(new Dna("33335555777711111"));
+		BatchRecognizer.Result result = new BatchRecognizer(BankSnapshot.empty()).recognize(dnas).get(0);
+		assertTrue(result.getScores().isEmpty());
+		assertNull(result.getBest());
+	}
+
+}
@@ -0,0 +1,76 @@
+/**
+ * Copyright (c) 2010 Ugo Sangiorgi and others.
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Contributors:
+ *  Ugo Sangiorgi <ugo.sangiorgi@gmail.com> - Initial contribution
+ *
+ *
+ * $Id$
+ */
+package org.eclipse.sketch.examples.shapes.tests;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+import junit.textui.TestRunner;
+
+import org.eclipse.sketch.chain.BitParallelLevenshtein;
+import org.eclipse.sketch.chain.LevenshteinHandler;
+
+/**
+ * Checks that the bit-parallel kernel gives the same distances as {@link LevenshteinHandler#run(String, String)}.
+ */
+public class BitParallelLevenshteinTest extends TestCase {
+
+	public static void main(String[] args) {
+		TestRunner.run(BitParallelLevenshteinTest.class);
+	}
+
+	public BitParallelLevenshteinTest(String name) {
+		super(name);
+	}
+
+	private static String randomDna(Random random, int length) {
+		return DnaTest.randomSymbols(random, length, DnaTest.ALPHABET, 8);
+	}
+
+	private static void assertSameDistance(String s, String t) {
+		int expected = LevenshteinHandler.run(s, t);
+		assertEquals(s + " / " + t, expected, BitParallelLevenshtein.distance(s, t));
+		assertEquals(s + " / " + t, expected, new BitParallelLevenshtein(s).distance(t));
+		assertEquals(t + " / " + s, expected, new BitParallelLevenshtein(t).distance(s));
+	}
+
+	public void testSingleWord() {
+		Random random = new Random(1);
+		for (int i = 0; i < 2000; i++)
+			assertSameDistance(randomDna(random, random.nextInt(65)), randomDna(random, random.nextInt(65)));
+	}
+
+	public void testMultiWord() {
+		Random random = new Random(2);
+		for (int i = 0; i < 500; i++)
+			assertSameDistance(randomDna(random, 1 + random.nextInt(300)), randomDna(random, 1 + random.nextInt(300)));
+	}
+
+	public void testBlockBoundaries() {
+		Random random = new Random(3);
+		int[] lengths = { 63, 64, 65, 127, 128, 129, 192 };
+		for (int i = 0; i < lengths.length; i++)
+			for (int j = 0; j < lengths.length; j++)
+				assertSameDistance(randomDna(random, lengths[i]), randomDna(random, lengths[j]));
+	}
+
+	public void testEmptyAndForeignSymbols() {
+		assertSameDistance("", "");
+		assertSameDistance("", "33335555");
+		assertSameDistance("33335555", "");
+		assertSameDistance("33x35555", "3333a555");
+		assertSameDistance("33333333555555557777777711111111", "4333332345555555557777777777811111111");
+	}
+
+}
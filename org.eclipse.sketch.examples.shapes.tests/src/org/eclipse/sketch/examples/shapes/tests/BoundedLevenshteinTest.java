@@ -0,0 +1,79 @@
+/**
+ * Copyright (c) 2010 Ugo Sangiorgi and others.
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Contributors:
+ *  Ugo Sangiorgi <ugo.sangiorgi@gmail.com> - Initial contribution
+ *
+ *
+ * $Id$
+ */
+package org.eclipse.sketch.examples.shapes.tests;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+import junit.textui.TestRunner;
+
+import org.eclipse.sketch.chain.LevenshteinHandler;
+
+/**
+ * Checks that the thresholded distance {@link LevenshteinHandler#run(String, String, int)}
+ * gives the distance when it is within the cutoff, and the cutoff plus one otherwise.
+ */
+public class BoundedLevenshteinTest extends TestCase {
+
+	public static void main(String[] args) {
+		TestRunner.run(BoundedLevenshteinTest.class);
+	}
+
+	public BoundedLevenshteinTest(String name) {
+		super(name);
+	}
+
+	private static String randomDna(Random random, int length) {
+		return DnaTest.randomSymbols(random, length, DnaTest.ALPHABET, 8);
+	}
+
+	private static void assertBounded(String s, String t, int k) {
+		int expected = Math.min(LevenshteinHandler.run(s, t), k + 1);
+		assertEquals(s + " / " + t + " k=" + k, expected, LevenshteinHandler.run(s, t, k));
+		assertEquals(t + " / " + s + " k=" + k, expected, LevenshteinHandler.run(t, s, k));
+	}
+
+	public void testRandomCutoffs() {
+		Random random = new Random(1);
+		for (int i = 0; i < 3000; i++) {
+			String s = randomDna(random, random.nextInt(60));
+			String t = randomDna(random, random.nextInt(60));
+			assertBounded(s, t, random.nextInt(Math.max(s.length(), t.length()) + 2));
+		}
+	}
+
+	public void testCutoffAroundDistance() {
+		Random random = new Random(2);
+		for (int i = 0; i < 500; i++) {
+			String s = randomDna(random, 1 + random.nextInt(60));
+			String t = randomDna(random, 1 + random.nextInt(60));
+			int d = LevenshteinHandler.run(s, t);
+			for (int k = Math.max(0, d - 2); k <= d + 2; k++)
+				assertBounded(s, t, k);
+		}
+	}
+
+	public void testEdgeCases() {
+		assertBounded("", "", 0);
+		assertBounded("", "3333", 2);
+		assertBounded("", "3333", 4);
+		assertBounded("3333", "", 3);
+		assertBounded("33335555", "33335555", 0);
+		assertEquals(0, LevenshteinHandler.run("3333", "5555", -1));
+		//symbols that are not in a DNA go through the full distance
+		assertBounded("33x35555", "3333a555", 1);
+		assertBounded("33x35555", "3333a555", 5);
+	}
+
+}
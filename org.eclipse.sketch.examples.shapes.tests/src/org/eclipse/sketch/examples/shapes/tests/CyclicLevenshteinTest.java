@@ -0,0 +1,142 @@
+/**
+ * Copyright (c) 2010 Ugo Sangiorgi and others.
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Contributors:
+ *  Ugo Sangiorgi <ugo.sangiorgi@gmail.com> - Initial contribution
+ *
+ *
+ * $Id$
+ */
+package org.eclipse.sketch.examples.shapes.tests;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+import junit.textui.TestRunner;
+
+import org.eclipse.sketch.Sketch.Dna;
+import org.eclipse.sketch.chain.BitParallelLevenshtein;
+import org.eclipse.sketch.chain.CyclicLevenshtein;
+import org.eclipse.sketch.chain.LevenshteinHandler;
+import org.eclipse.sketch.exceptions.IllegalLengthException;
+
+/**
+ * Compares {@link CyclicLevenshtein} with the cyclic distance computed by trying every
+ * shift of the stroke.
+ */
+public class CyclicLevenshteinTest extends TestCase {
+
+	//closed outlines: square, diamond, triangle, rectangle and octagon, a symbol per unit of side
+	private static final String[] OUTLINES = { "3571", "2468", "3368", "335771", "23456781" };
+
+	public static void main(String[] args) {
+		TestRunner.run(CyclicLevenshteinTest.class);
+	}
+
+	public CyclicLevenshteinTest(String name) {
+		super(name);
+	}
+
+	/**
+	 * @return the smallest distance between s and a shift of the stroke of t, the pen
+	 * symbols around it staying in place
+	 */
+	private static int cyclicDistance(String s, String t) {
+		int start = 0, end = t.length();
+		while (start < end && !Dna.isDirection(Dna.symbolOf(t.charAt(start))))
+			start++;
+		while (end > start && !Dna.isDirection(Dna.symbolOf(t.charAt(end - 1))))
+			end--;
+		String stroke = t.substring(start, end);
+		int best = Integer.MAX_VALUE;
+		for (int shift = 0; shift < Math.max(1, stroke.length()); shift++) {
+			String shifted = t.substring(0, start) + stroke.substring(shift) + stroke.substring(0, shift) + t.substring(end);
+			best = Math.min(best, LevenshteinHandler.run(s, shifted));
+		}
+		return best;
+	}
+
+	/**
+	 * Builds an outline drawn from a random corner, each side a run of random length, with
+	 * a few random edits, and the pen symbols the SketchTool may put around it
+	 */
+	private static String closedShape(Random random, String outline) {
+		StringBuilder s = new StringBuilder();
+		int side = 3 + random.nextInt(8);
+		for (int i = 0; i < outline.length(); i++)
+			for (int j = 0; j < side; j++)
+				s.append(outline.charAt(i));
+		int shift = random.nextInt(s.length());
+		s = new StringBuilder(s.substring(shift) + s.substring(0, shift));
+		int edits = random.nextInt(4);
+		for (int e = 0; e < edits; e++) {
+			int at = random.nextInt(s.length());
+			char c = (char)('1' + random.nextInt(8));
+			if (random.nextBoolean())
+				s.setCharAt(at, c);
+			else
+				s.insert(at, c);
+		}
+		if (random.nextBoolean())
+			s.append('[');
+		if (random.nextInt(4) == 0)
+			s.insert(0, ']');
+		return s.toString();
+	}
+
+	private static String randomDna(Random random, int length) {
+		return DnaTest.randomSymbols(random, length, DnaTest.DIRECTIONS, 6);
+	}
+
+	/**
+	 * @return the distance found, after checking that it is between the cyclic distance and
+	 * the distance to the text as it is
+	 */
+	private static int assertBounded(String s, String t) {
+		int found = CyclicLevenshtein.distance(new BitParallelLevenshtein(s), new Dna(t));
+		int cyclic = cyclicDistance(s, t);
+		assertTrue(s + " / " + t + ": " + found + " < " + cyclic, found >= cyclic);
+		assertTrue(s + " / " + t + ": " + found + " > " + LevenshteinHandler.run(s, t), found <= LevenshteinHandler.run(s, t));
+		return found - cyclic;
+	}
+
+	public void testRandomWordsAreUpperBounds() {
+		Random random = new Random(1);
+		for (int i = 0; i < 1000; i++)
+			assertBounded(randomDna(random, 1 + random.nextInt(40)), randomDna(random, random.nextInt(40)));
+	}
+
+	public void testClosedShapes() {
+		Random random = new Random(2);
+		int exact = 0, count = 2000;
+		for (int i = 0; i < count; i++) {
+			String outline = OUTLINES[random.nextInt(OUTLINES.length)];
+			//stretched to the same length, as the recognizer compares them
+			Dna s = new Dna(closedShape(random, outline));
+			Dna t = new Dna(closedShape(random, outline));
+			int length = Math.max(s.length(), t.length());
+			try {
+				s = s.stretch(length);
+				t = t.stretch(length);
+			} catch (IllegalLengthException e) {
+				fail(e.getMessage());
+			}
+			if (assertBounded(s.toString(), t.toString()) == 0)
+				exact++;
+		}
+		//the same outline started elsewhere is nearly always aligned on its best shift
+		assertTrue(exact + " exact of " + count, exact >= count * 95 / 100);
+	}
+
+	public void testStartingCorner() {
+		String square = "3333555577771111[";
+		String other = "5555777711113333[";
+		assertEquals(0, CyclicLevenshtein.distance(new BitParallelLevenshtein(square), new Dna(other)));
+		assertEquals(0, CyclicLevenshtein.distance(new BitParallelLevenshtein("]" + square), new Dna("]" + other)));
+	}
+
+}
@@ -0,0 +1,146 @@
+/**
+ * Copyright (c) 2010 Ugo Sangiorgi and others.
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Contributors:
+ *  Ugo Sangiorgi <ugo.sangiorgi@gmail.com> - Initial contribution
+ *
+ *
+ * $Id$
+ */
+package org.eclipse.sketch.examples.shapes.tests;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import junit.textui.TestRunner;
+
+import org.eclipse.sketch.Sketch.Dna;
+import org.eclipse.sketch.chain.BitParallelLevenshtein;
+import org.eclipse.sketch.chain.LevenshteinHandler;
+import org.eclipse.sketch.util.BKTree;
+import org.eclipse.sketch.util.DnaClusters;
+
+/**
+ * Checks that the scores found through {@link DnaClusters} are the k best normalized
+ * distances of a linear scan, before and after the clusters are built.
+ */
+public class DnaClustersTest extends TestCase {
+
+	private static final BKTree.Metric<Dna> EDIT_DISTANCE = new BKTree.Metric<Dna>() {
+		public int distance(Dna a, Dna b) {
+			return BitParallelLevenshtein.distance(a, b);
+		}
+	};
+
+	public static void main(String[] args) {
+		TestRunner.run(DnaClustersTest.class);
+	}
+
+	public DnaClustersTest(String name) {
+		super(name);
+	}
+
+	private static float score(Dna query, Dna word) {
+		int longest = Math.max(query.length(), word.length());
+		int d = LevenshteinHandler.run(query.toString(), word.toString());
+		return longest == 0 ? 0 : 100*(float)d/longest;
+	}
+
+	private static void assertNearest(ArrayList<Dna> words, DnaClusters clusters, Dna query, int k) {
+		float[] expected = new float[words.size()];
+		for (int i = 0; i < expected.length; i++)
+			expected[i] = score(query, words.get(i));
+		Arrays.sort(expected);
+
+		float[] found = clusters.nearest(query, k);
+		assertEquals(query.toString(), Math.min(k, words.size()), found.length);
+		for (int i = 0; i < found.length; i++)
+			assertEquals(query + " #" + i, expected[i], found[i], 0.001f);
+	}
+
+	public void testClusteredWords() {
+		Random random = new Random(1);
+		ArrayList<Dna> words = new ArrayList<Dna>();
+		DnaClusters clusters = new DnaClusters(EDIT_DISTANCE);
+		for (int i = 0; i < 1000; i++) {
+			Dna word = BKTreeTest.randomDna(random);
+			words.add(word);
+			clusters.add(word);
+		}
+		assertEquals(0, clusters.getClusters());
+		int computed = 0;
+		for (int q = 0; q < 200; q++) {
+			assertNearest(words, clusters, BKTreeTest.randomDna(random), 1 + random.nextInt(5));
+			computed += clusters.getLastComputed();
+		}
+		assertEquals(words.size(), clusters.size());
+		assertTrue(clusters.getClusters() > 0);
+		//the bounds spare most of the distances of a linear scan
+		assertTrue(computed + " distances", computed < 200 * words.size() / 2);
+	}
+
+	public void testWordsAddedAfterBuilding() {
+		Random random = new Random(2);
+		ArrayList<Dna> words = new ArrayList<Dna>();
+		DnaClusters clusters = new DnaClusters(EDIT_DISTANCE);
+		for (int i = 0; i < 50; i++) {
+			Dna word = BKTreeTest.randomDna(random);
+			words.add(word);
+			clusters.add(word);
+		}
+		clusters.build();
+		int built = clusters.getClusters();
+		//the words join the clusters until their number has doubled, then they are built again
+		for (int i = 0; i < 150; i++) {
+			Dna word = i % 3 == 0 ? DnaTest.randomDna(random, random.nextInt(40)) : BKTreeTest.randomDna(random);
+			words.add(word);
+			clusters.add(word);
+			if (words.size() < 100)
+				assertEquals(built, clusters.getClusters());
+			assertNearest(words, clusters, BKTreeTest.randomDna(random), 1 + random.nextInt(5));
+		}
+		assertTrue(clusters.getClusters() > built);
+	}
+
+	public void testRandomWords() {
+		Random random = new Random(3);
+		for (int t = 0; t < 50; t++) {
+			ArrayList<Dna> words = new ArrayList<Dna>();
+			DnaClusters clusters = new DnaClusters(EDIT_DISTANCE);
+			int size = random.nextInt(60);
+			for (int i = 0; i < size; i++) {
+				Dna word = DnaTest.randomDna(random, random.nextInt(40));
+				words.add(word);
+				clusters.add(word);
+			}
+			for (int q = 0; q < 10; q++)
+				assertNearest(words, clusters, DnaTest.randomDna(random, random.nextInt(40)), 1 + random.nextInt(5));
+		}
+	}
+
+	public void testDuplicates() {
+		DnaClusters clusters = new DnaClusters(EDIT_DISTANCE);
+		Dna square = new Dna("33333333555555557777777711111111");
+		for (int i = 0; i < 10; i++)
+			clusters.add(new Dna(square.toString()));
+		clusters.add(new Dna("2222222266666666444444448888"));
+		float[] found = clusters.nearest(square, 3);
+		assertEquals(3, found.length);
+		for (float score : found)
+			assertEquals(0, score, 0);
+	}
+
+	public void testEmpty() {
+		DnaClusters clusters = new DnaClusters(EDIT_DISTANCE);
+		assertEquals(0, clusters.nearest(new Dna("33335555"), 3).length);
+		clusters.add(new Dna("33335555"));
+		assertEquals(0, clusters.nearest(new Dna("33335555"), 0).length);
+	}
+
+}
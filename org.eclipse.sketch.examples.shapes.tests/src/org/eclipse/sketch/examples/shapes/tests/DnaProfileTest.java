@@ -0,0 +1,94 @@
+/**
+ * Copyright (c) 2010 Ugo Sangiorgi and others.
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Contributors:
+ *  Ugo Sangiorgi <ugo.sangiorgi@gmail.com> - Initial contribution
+ *
+ *
+ * $Id$
+ */
+package org.eclipse.sketch.examples.shapes.tests;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+import junit.textui.TestRunner;
+
+import org.eclipse.sketch.DnaProfile;
+import org.eclipse.sketch.Sketch.Dna;
+import org.eclipse.sketch.chain.LevenshteinHandler;
+
+/**
+ * Checks that the bounds of {@link DnaProfile} never exceed the edit distance
+ * ({@link LevenshteinHandler#run(String, String)}) in any of the 4 orientations.
+ */
+public class DnaProfileTest extends TestCase {
+
+	public static void main(String[] args) {
+		TestRunner.run(DnaProfileTest.class);
+	}
+
+	public DnaProfileTest(String name) {
+		super(name);
+	}
+
+	private static Dna rotate(Dna dna, int quarters) {
+		for (int q = 0; q < quarters; q++)
+			dna = dna.rotate90();
+		return dna;
+	}
+
+	private static void assertBounds(Dna s, Dna t) {
+		DnaProfile ps = new DnaProfile(s);
+		DnaProfile pt = new DnaProfile(t);
+		for (int quarters = 0; quarters < 4; quarters++) {
+			Dna rotated = rotate(t, quarters);
+			int distance = LevenshteinHandler.run(s.toString(), rotated.toString());
+			String message = s + " / " + rotated;
+			assertTrue(message, ps.histogramBound(pt, quarters) <= distance);
+			assertTrue(message, ps.gramBound(pt, quarters) <= distance);
+
+			//rotating the counts is rotating the word
+			DnaProfile pr = new DnaProfile(rotated);
+			assertEquals(message, ps.histogramBound(pr, 0), ps.histogramBound(pt, quarters));
+			assertEquals(message, ps.gramBound(pr, 0), ps.gramBound(pt, quarters));
+		}
+	}
+
+	public void testRandomWords() {
+		Random random = new Random(1);
+		for (int i = 0; i < 3000; i++)
+			assertBounds(DnaTest.randomDna(random, random.nextInt(50)), DnaTest.randomDna(random, random.nextInt(50)));
+	}
+
+	public void testCloseWords() {
+		//a few edits apart, where the bounds are the closest to the distance
+		Random random = new Random(2);
+		for (int i = 0; i < 3000; i++) {
+			String s = DnaTest.randomDna(random, 1 + random.nextInt(50)).toString();
+			StringBuilder t = new StringBuilder(s);
+			for (int e = random.nextInt(4); e > 0 && t.length() > 0; e--) {
+				int at = random.nextInt(t.length());
+				char c = DnaTest.ALPHABET.charAt(random.nextInt(DnaTest.ALPHABET.length()));
+				switch (random.nextInt(3)) {
+				case 0: t.insert(at, c); break;
+				case 1: t.deleteCharAt(at); break;
+				default: t.setCharAt(at, c);
+				}
+			}
+			assertBounds(new Dna(s), rotate(new Dna(t.toString()), random.nextInt(4)));
+		}
+	}
+
+	public void testEmpty() {
+		assertBounds(new Dna(""), new Dna(""));
+		assertBounds(new Dna(""), new Dna("33335555"));
+		assertBounds(new Dna("33335555"), new Dna(""));
+		assertBounds(new Dna("3"), new Dna("5"));
+	}
+
+}
@@ -0,0 +1,132 @@
+/**
+ * Copyright (c) 2010 Ugo Sangiorgi and others.
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Contributors:
+ *  Ugo Sangiorgi <ugo.sangiorgi@gmail.com> - Initial contribution
+ *
+ *
+ * $Id$
+ */
+package org.eclipse.sketch.examples.shapes.tests;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+import junit.textui.TestRunner;
+
+import org.eclipse.sketch.Sketch.Dna;
+
+/**
+ * Checks the transformations of a {@link Dna} that the matching modes rely on.
+ */
+public class DnaTest extends TestCase {
+
+	//the symbols of a DNA: the 8 directions, the pen moves
+	static final String ALPHABET = "012345678[]";
+	//the symbols of a closed stroke
+	static final String DIRECTIONS = "12345678";
+
+	public static void main(String[] args) {
+		TestRunner.run(DnaTest.class);
+	}
+
+	public DnaTest(String name) {
+		super(name);
+	}
+
+	/**
+	 * Builds a DNA made of runs of the same direction, with a few pen moves, as the ones
+	 * produced by the SketchTool
+	 */
+	static Dna randomDna(Random random, int length) {
+		return new Dna(randomSymbols(random, length, ALPHABET, 8));
+	}
+
+	/**
+	 * @param alphabet the symbols to draw from
+	 * @param longestRun the longest run of the same symbol
+	 * @return a word of runs of symbols of the alphabet, of the given length
+	 */
+	static String randomSymbols(Random random, int length, String alphabet, int longestRun) {
+		StringBuilder s = new StringBuilder(length);
+		while (s.length() < length) {
+			char c = alphabet.charAt(random.nextInt(alphabet.length()));
+			int run = 1 + random.nextInt(longestRun);
+			for (int i = 0; i < run && s.length() < length; i++)
+				s.append(c);
+		}
+		return s.toString();
+	}
+
+	public void testCanonicalIsInvariant() {
+		Random random = new Random(1);
+		for (int i = 0; i < 1000; i++) {
+			Dna dna = randomDna(random, random.nextInt(50));
+			Dna canonical = dna.canonical();
+			assertEquals(dna.toString(), canonical, canonical.canonical());
+			Dna rotated = dna;
+			Dna reversed = dna.reverse();
+			for (int r = 0; r < 4; r++) {
+				assertEquals(dna.toString(), canonical, rotated.canonical());
+				assertEquals(dna.toString(), canonical, reversed.canonical());
+				rotated = rotated.rotate90();
+				reversed = reversed.rotate90();
+			}
+			assertEquals(dna, rotated);
+			assertEquals(dna, dna.reverse().reverse());
+		}
+	}
+
+	public void testClosedWithPenSymbols() {
+		//a square as the SketchTool writes it: the pen goes down, draws, then goes up
+		byte[] square = { Dna.PEN_DOWN, 1, 1, 3, 3, 5, 5, 7, 7, Dna.PEN_UP };
+		assertTrue(Dna.valueOf(square, square.length).isClosed());
+		assertTrue(new Dna("33335555777711111[").isClosed());
+		assertTrue(new Dna("]]3333555577771111[[").isClosed());
+		assertTrue(new Dna("3333555577771111").isClosed());
+		//two strokes
+		assertFalse(new Dna("33335555[]777711111[").isClosed());
+		assertFalse(new Dna("333355550777711111").isClosed());
+		//an open stroke
+		assertFalse(new Dna("]33335555[").isClosed());
+		assertFalse(new Dna("[]").isClosed());
+		assertFalse(new Dna("").isClosed());
+	}
+
+	public void testCanonicalOfASquare() {
+		//the same square, turned by 90 degrees and drawn the other way round
+		Dna square = new Dna("33335555777711111");
+		Dna other = new Dna("77777555533331111");
+		assertEquals(square.canonical(), other.canonical());
+		assertFalse(square.canonical().equals(new Dna("3333555577771111").canonical()));
+	}
+
+	public void testCoarsenCommutesWithRotation() {
+		Random random = new Random(2);
+		for (int i = 0; i < 1000; i++) {
+			Dna dna = randomDna(random, random.nextInt(60));
+			for (int factor = 1; factor <= 5; factor++) {
+				Dna rotated = dna;
+				for (int r = 0; r < 4; r++) {
+					assertEquals(dna + " factor " + factor, rotated.coarsen(factor).rotate90(), rotated.rotate90().coarsen(factor));
+					rotated = rotated.rotate90();
+				}
+			}
+		}
+	}
+
+	public void testCoarsenOfASquare() {
+		assertEquals(new Dna("3333"), new Dna("3333").coarsen(1));
+		//a side of 4 fine cells is 2 coarse cells, whatever the orientation
+		assertEquals(new Dna("33557711"), new Dna("3333555577771111").coarsen(2));
+		assertEquals(new Dna("55771133"), new Dna("5555777711113333").coarsen(2));
+		//going back and forth across a border does not move the coarse drawing
+		assertEquals(new Dna(""), new Dna("37373737").coarsen(2));
+		assertEquals(new Dna("[]"), new Dna("[]").coarsen(4));
+	}
+
+}
@@ -0,0 +1,108 @@
+/**
+ * Copyright (c) 2010 Ugo Sangiorgi and others.
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Contributors:
+ *  Ugo Sangiorgi <ugo.sangiorgi@gmail.com> - Initial contribution
+ *
+ *
+ * $Id$
+ */
+package org.eclipse.sketch.examples.shapes.tests;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import junit.textui.TestRunner;
+
+import org.eclipse.sketch.Sketch.Dna;
+import org.eclipse.sketch.chain.LevenshteinHandler;
+import org.eclipse.sketch.util.DnaTrie;
+
+/**
+ * Checks that the scores found by {@link DnaTrie} are the k best normalized distances of a
+ * linear scan.
+ */
+public class DnaTrieTest extends TestCase {
+
+	public static void main(String[] args) {
+		TestRunner.run(DnaTrieTest.class);
+	}
+
+	public DnaTrieTest(String name) {
+		super(name);
+	}
+
+	private static float score(Dna query, Dna word) {
+		int longest = Math.max(query.length(), word.length());
+		int d = LevenshteinHandler.run(query.toString(), word.toString());
+		return longest == 0 ? 0 : 100*(float)d/longest;
+	}
+
+	private static void assertNearest(ArrayList<Dna> words, DnaTrie trie, Dna query, int k) {
+		float[] expected = new float[words.size()];
+		for (int i = 0; i < expected.length; i++)
+			expected[i] = score(query, words.get(i));
+		Arrays.sort(expected);
+
+		float[] found = trie.nearest(query, k);
+		assertEquals(query.toString(), Math.min(k, words.size()), found.length);
+		for (int i = 0; i < found.length; i++)
+			assertEquals(query + " #" + i, expected[i], found[i], 0.001f);
+	}
+
+	public void testClusteredWords() {
+		Random random = new Random(1);
+		ArrayList<Dna> words = new ArrayList<Dna>();
+		DnaTrie trie = new DnaTrie();
+		for (int i = 0; i < 1000; i++) {
+			Dna word = BKTreeTest.randomDna(random);
+			words.add(word);
+			trie.add(word);
+		}
+		assertEquals(words.size(), trie.size());
+		for (int q = 0; q < 200; q++) {
+			assertNearest(words, trie, BKTreeTest.randomDna(random), 1 + random.nextInt(5));
+			assertTrue(trie.getLastVisited() <= trie.getNodes());
+		}
+	}
+
+	public void testRandomWords() {
+		Random random = new Random(2);
+		ArrayList<Dna> words = new ArrayList<Dna>();
+		DnaTrie trie = new DnaTrie();
+		for (int i = 0; i < 300; i++) {
+			Dna word = DnaTest.randomDna(random, random.nextInt(40));
+			words.add(word);
+			trie.add(word);
+			assertNearest(words, trie, DnaTest.randomDna(random, random.nextInt(40)), 1 + random.nextInt(5));
+		}
+	}
+
+	public void testPrefixesAndDuplicates() {
+		DnaTrie trie = new DnaTrie();
+		ArrayList<Dna> words = new ArrayList<Dna>();
+		String[] prefixes = { "", "3", "3333", "33335555", "33335555", "333355557777", "3333555577771111" };
+		for (String s : prefixes) {
+			words.add(new Dna(s));
+			trie.add(new Dna(s));
+		}
+		for (String s : prefixes)
+			for (int k = 1; k <= words.size() + 1; k++)
+				assertNearest(words, trie, new Dna(s), k);
+		assertNearest(words, trie, new Dna("7777"), 3);
+	}
+
+	public void testEmpty() {
+		DnaTrie trie = new DnaTrie();
+		assertEquals(0, trie.nearest(new Dna("33335555"), 3).length);
+		trie.add(new Dna("33335555"));
+		assertEquals(0, trie.nearest(new Dna("33335555"), 0).length);
+	}
+
+}
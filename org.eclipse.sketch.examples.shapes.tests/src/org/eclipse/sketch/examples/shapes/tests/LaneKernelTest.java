@@ -0,0 +1,97 @@
+/**
+ * Copyright (c) 2010 Ugo Sangiorgi and others.
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Contributors:
+ *  Ugo Sangiorgi <ugo.sangiorgi@gmail.com> - Initial contribution
+ *
+ *
+ * $Id$
+ */
+package org.eclipse.sketch.examples.shapes.tests;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+import junit.textui.TestRunner;
+
+import org.eclipse.sketch.Sketch.Dna;
+import org.eclipse.sketch.chain.LaneKernel;
+import org.eclipse.sketch.chain.LevenshteinHandler;
+
+/**
+ * Checks that the lane kernel, when the vector fragment can be used, gives the same
+ * distances as {@link LevenshteinHandler#run(String, String)}. Without it there is no
+ * kernel, and nothing to check.
+ */
+public class LaneKernelTest extends TestCase {
+
+	private LaneKernel kernel;
+
+	public static void main(String[] args) {
+		TestRunner.run(LaneKernelTest.class);
+	}
+
+	public LaneKernelTest(String name) {
+		super(name);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		kernel = LaneKernel.create();
+		if (kernel == null)
+			System.out.println("No lane kernel, nothing to check");
+	}
+
+	private static int run(Dna s, Dna t) {
+		return LevenshteinHandler.run(s.toString(), t.toString());
+	}
+
+	public void testDistance() {
+		if (kernel == null)
+			return;
+		Random random = new Random(1);
+		for (int i = 0; i < 3000; i++) {
+			Dna s = DnaTest.randomDna(random, random.nextInt(80));
+			Dna t = DnaTest.randomDna(random, random.nextInt(80));
+			assertEquals(s + " / " + t, run(s, t), kernel.distance(s, t));
+		}
+	}
+
+	public void testDistances() {
+		if (kernel == null)
+			return;
+		Random random = new Random(2);
+		int[] distances = new int[kernel.lanes()];
+		for (int n = 0; n < 500; n++) {
+			Dna query = DnaTest.randomDna(random, random.nextInt(60));
+			Dna[] texts = new Dna[2 * kernel.lanes()];
+			for (int i = 0; i < texts.length; i++)
+				texts[i] = DnaTest.randomDna(random, random.nextInt(60));
+			//any number of lanes, from any text
+			int from = random.nextInt(kernel.lanes());
+			int count = random.nextInt(kernel.lanes() + 1);
+			kernel.distances(query, texts, from, count, distances);
+			for (int l = 0; l < count; l++)
+				assertEquals(query + " / " + texts[from + l], run(query, texts[from + l]), distances[l]);
+		}
+	}
+
+	public void testTooManyTexts() {
+		if (kernel == null)
+			return;
+		Dna[] texts = new Dna[kernel.lanes() + 1];
+		for (int i = 0; i < texts.length; i++)
+			texts[i] = new Dna("33335555");
+		try {
+			kernel.distances(new Dna("3333"), texts, 0, texts.length, new int[texts.length]);
+			fail("more texts than lanes");
+		} catch (IllegalArgumentException e) {
+			//expected
+		}
+	}
+
+}
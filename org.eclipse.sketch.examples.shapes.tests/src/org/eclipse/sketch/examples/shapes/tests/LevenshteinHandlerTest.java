@@ -0,0 +1,172 @@
+/**
+ * Copyright (c) 2010 Ugo Sangiorgi and others.
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Contributors:
+ *  Ugo Sangiorgi <ugo.sangiorgi@gmail.com> - Initial contribution
+ *
+ *
+ * $Id$
+ */
+package org.eclipse.sketch.examples.shapes.tests;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import junit.textui.TestRunner;
+
+import org.eclipse.sketch.BankSnapshot;
+import org.eclipse.sketch.Sketch.Dna;
+import org.eclipse.sketch.chain.LevenshteinHandler;
+import org.eclipse.sketch.chain.MatchStatistics;
+import org.eclipse.sketch.exceptions.IllegalLengthException;
+
+/**
+ * Checks that the exhaustive comparison, pruned by the lower bounds of the profiles, scores
+ * as every distance computed would, and that the modes meant to give the same scores as
+ * the exhaustive comparison do, on a snapshot of random words.
+ */
+public class LevenshteinHandlerTest extends TestCase {
+
+	private static final String[] TYPES = { "Square", "Circle", "Triangle", "Arrow" };
+
+	private LevenshteinHandler.Mode mode;
+	private int parallelThreshold;
+
+	public static void main(String[] args) {
+		TestRunner.run(LevenshteinHandlerTest.class);
+	}
+
+	public LevenshteinHandlerTest(String name) {
+		super(name);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		mode = LevenshteinHandler.getMode();
+		parallelThreshold = LevenshteinHandler.getParallelThreshold();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		LevenshteinHandler.setMode(mode);
+		LevenshteinHandler.setParallelThreshold(parallelThreshold);
+	}
+
+	/**
+	 * @param length the length of every word, or 0 for words of random lengths
+	 */
+	private static BankSnapshot randomSnapshot(Random random, int length) {
+		BankSnapshot.Builder builder = new BankSnapshot.Builder(BankSnapshot.empty());
+		for (String type : TYPES) {
+			builder.declare(type);
+			for (int i = 1 + random.nextInt(30); i > 0; i--)
+				builder.add(type, DnaTest.randomDna(random, length > 0 ? length : 3 + random.nextInt(40)));
+		}
+		return builder.build();
+	}
+
+	private static float[] score(LevenshteinHandler.Mode mode, BankSnapshot bank, Dna dna, MatchStatistics statistics) {
+		LevenshteinHandler.setMode(mode);
+		return new LevenshteinHandler().score(bank, dna, statistics);
+	}
+
+	private static void assertSameScores(LevenshteinHandler.Mode mode, BankSnapshot bank, Dna dna) {
+		float[] expected = score(LevenshteinHandler.Mode.EXHAUSTIVE, bank, dna, new MatchStatistics());
+		MatchStatistics statistics = new MatchStatistics();
+		float[] scores = score(mode, bank, dna, statistics);
+		assertTrue(dna + ": " + Arrays.toString(expected) + " / " + Arrays.toString(scores), Arrays.equals(expected, scores));
+		assertEquals(statistics.getCandidates(), statistics.getPrunedByLength() + statistics.getPrunedByHistogram()
+				+ statistics.getPrunedByGrams() + statistics.getComputed());
+	}
+
+	/**
+	 * @return the score of the nearest sketch of each type, every distance computed, the
+	 * shortest word stretched to the length of the other
+	 */
+	private static float[] scoreEveryDistance(BankSnapshot bank, Dna dna) throws IllegalLengthException {
+		List<Object> types = bank.getTypes();
+		float[] scores = new float[types.size()];
+		for (int t = 0; t < scores.length; t++) {
+			scores[t] = Float.MAX_VALUE;
+			for (Dna sketch : bank.getSketches(types.get(t))) {
+				int length = Math.max(dna.length(), sketch.length());
+				String query = dna.stretch(length).toString();
+				Dna rotated = sketch.stretch(length);
+				for (int quarters = 0; quarters < 4; quarters++) {
+					scores[t] = Math.min(scores[t], 100 * (float)LevenshteinHandler.run(query, rotated.toString()) / length);
+					rotated = rotated.rotate90();
+				}
+			}
+		}
+		return scores;
+	}
+
+	private void assertExhaustive(Random random) throws IllegalLengthException {
+		int pruned = 0;
+		for (int n = 0; n < 10; n++) {
+			BankSnapshot bank = randomSnapshot(random, 0);
+			for (int q = 0; q < 10; q++) {
+				Dna dna = DnaTest.randomDna(random, 3 + random.nextInt(40));
+				MatchStatistics statistics = new MatchStatistics();
+				float[] scores = score(LevenshteinHandler.Mode.EXHAUSTIVE, bank, dna, statistics);
+				float[] expected = scoreEveryDistance(bank, dna);
+				assertTrue(dna + ": " + Arrays.toString(expected) + " / " + Arrays.toString(scores), Arrays.equals(expected, scores));
+				pruned += statistics.getCandidates() - statistics.getComputed();
+			}
+		}
+		assertTrue(pruned > 0);
+	}
+
+	public void testExhaustive() throws IllegalLengthException {
+		assertExhaustive(new Random(4));
+	}
+
+	public void testParallelExhaustive() throws IllegalLengthException {
+		LevenshteinHandler.setParallelThreshold(0);
+		assertExhaustive(new Random(5));
+	}
+
+	public void testLanes() {
+		//with the lane kernel if it can be used, as EXHAUSTIVE otherwise
+		Random random = new Random(6);
+		for (int n = 0; n < 10; n++) {
+			BankSnapshot bank = randomSnapshot(random, 0);
+			for (int q = 0; q < 10; q++)
+				assertSameScores(LevenshteinHandler.Mode.LANES, bank, DnaTest.randomDna(random, 3 + random.nextInt(40)));
+		}
+	}
+
+	public void testRunLengthUnstretched() {
+		Random random = new Random(1);
+		for (int n = 0; n < 20; n++) {
+			int length = 3 + random.nextInt(40);
+			BankSnapshot bank = randomSnapshot(random, length);
+			for (int q = 0; q < 10; q++)
+				assertSameScores(LevenshteinHandler.Mode.RUN_LENGTH, bank, DnaTest.randomDna(random, length));
+		}
+	}
+
+	public void testRunLengthStretched() {
+		Random random = new Random(2);
+		for (int n = 0; n < 20; n++) {
+			BankSnapshot bank = randomSnapshot(random, 0);
+			for (int q = 0; q < 10; q++)
+				assertSameScores(LevenshteinHandler.Mode.RUN_LENGTH, bank, DnaTest.randomDna(random, 3 + random.nextInt(40)));
+		}
+	}
+
+	public void testRunLengthPrunes() {
+		Random random = new Random(3);
+		BankSnapshot bank = randomSnapshot(random, 0);
+		MatchStatistics statistics = new MatchStatistics();
+		score(LevenshteinHandler.Mode.RUN_LENGTH, bank, bank.getSketches("Square").get(0), statistics);
+		assertTrue(statistics.getComputed() < statistics.getCandidates());
+	}
+
+}
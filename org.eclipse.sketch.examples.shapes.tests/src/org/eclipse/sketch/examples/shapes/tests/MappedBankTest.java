@@ -0,0 +1,278 @@
+/**
+ * Copyright (c) 2010 Ugo Sangiorgi and others.
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Contributors:
+ *  Ugo Sangiorgi <ugo.sangiorgi@gmail.com> - Initial contribution
+ *
+ *
+ * $Id$
+ */
+package org.eclipse.sketch.examples.shapes.tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import junit.textui.TestRunner;
+
+import org.eclipse.sketch.BankSnapshot;
+import org.eclipse.sketch.MappedBank;
+import org.eclipse.sketch.SketchTemplate;
+import org.eclipse.sketch.Sketch.Dna;
+
+/**
+ * Checks that a {@link MappedBank} reads back the snapshot it was written from, and that
+ * a truncated or corrupted file is refused when it is opened rather than when its words
+ * are read.
+ */
+public class MappedBankTest extends TestCase {
+
+	private static final String[] TYPES = { "Square", "Circle", "Triangle", "élément", "" };
+
+	private File file;
+
+	public static void main(String[] args) {
+		TestRunner.run(MappedBankTest.class);
+	}
+
+	public MappedBankTest(String name) {
+		super(name);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		file = File.createTempFile("sketches", ".bank");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		file.delete();
+	}
+
+	private static BankSnapshot randomSnapshot(Random random) {
+		BankSnapshot.Builder builder = new BankSnapshot.Builder(BankSnapshot.empty());
+		for (String type : TYPES) {
+			builder.declare(type);
+			for (int i = random.nextInt(20); i > 0; i--)
+				builder.add(type, DnaTest.randomDna(random, random.nextInt(40)));
+		}
+		return builder.build();
+	}
+
+	private static void assertSameBank(BankSnapshot expected, MappedBank bank) {
+		assertEquals(expected.getTypes(), new ArrayList<Object>(bank.getTypes()));
+		for (int t = 0; t < bank.getTypes().size(); t++) {
+			MappedBank.Words words = bank.getWords(t);
+			ArrayList<Dna> sketches = new ArrayList<Dna>(expected.getSketches(bank.getTypes().get(t)));
+			assertEquals(sketches.size(), words.size());
+			for (int i = 0; i < words.size(); i++) {
+				assertEquals(sketches.get(i).length(), words.length(i));
+				assertEquals(sketches.get(i), words.getDna(i));
+			}
+		}
+	}
+
+	private static byte[] read(File file) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			byte[] bytes = new byte[(int)in.length()];
+			in.readFully(bytes);
+			return bytes;
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void write(File file, byte[] bytes, int length) throws IOException {
+		RandomAccessFile out = new RandomAccessFile(file, "rw");
+		try {
+			out.setLength(0);
+			out.write(bytes, 0, length);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @return the position of the table of the words, right after the header
+	 */
+	private static int table(byte[] bytes) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		buffer.getInt();
+		for (int t = buffer.getInt(); t > 0; t--) {
+			int name = buffer.getInt();
+			buffer.position(buffer.position() + name);
+			buffer.getInt();
+			buffer.getInt();
+		}
+		buffer.getInt();
+		return buffer.position();
+	}
+
+	private void assertRefused(byte[] bytes, int length) throws IOException {
+		write(file, bytes, length);
+		try {
+			MappedBank.open(file);
+			fail("opened a corrupted bank of " + length + " bytes");
+		} catch (IOException e) {
+			//expected
+		}
+	}
+
+	public void testRoundTrip() throws IOException {
+		Random random = new Random(1);
+		for (int n = 0; n < 20; n++) {
+			BankSnapshot snapshot = randomSnapshot(random);
+			MappedBank.write(snapshot, file);
+			MappedBank bank = MappedBank.open(file);
+			assertSameBank(snapshot, bank);
+
+			//the words mapped are copied as they are
+			BankSnapshot.Builder builder = new BankSnapshot.Builder(BankSnapshot.empty());
+			for (int t = 0; t < bank.getTypes().size(); t++)
+				builder.map(bank.getTypes().get(t), bank.getWords(t));
+			File copy = File.createTempFile("sketches", ".bank");
+			try {
+				MappedBank.write(builder.build(), copy);
+				assertSameBank(snapshot, MappedBank.open(copy));
+			} finally {
+				copy.delete();
+			}
+		}
+	}
+
+	public void testAppendedToMappedWords() throws IOException {
+		Random random = new Random(4);
+		BankSnapshot.Builder builder = new BankSnapshot.Builder(BankSnapshot.empty());
+		builder.declare("Square");
+		for (int i = 0; i < 50; i++)
+			builder.add("Square", DnaTest.randomDna(random, 5 + random.nextInt(30)));
+		BankSnapshot snapshot = builder.build();
+		MappedBank.write(snapshot, file);
+		MappedBank bank = MappedBank.open(file);
+		builder = new BankSnapshot.Builder(BankSnapshot.empty());
+		builder.map("Square", bank.getWords(0));
+		BankSnapshot mapped = builder.build();
+		List<SketchTemplate> templates = mapped.getTemplates("Square");
+
+		//taught: the words stay in the mapping, their templates are kept
+		Dna taught = DnaTest.randomDna(random, 20);
+		builder = new BankSnapshot.Builder(mapped);
+		builder.add("Square", taught);
+		assertEquals(51, builder.size("Square"));
+		BankSnapshot next = builder.build();
+		assertSame(bank.getWords(0), next.getWords("Square"));
+		assertEquals(Collections.singletonList(taught), next.getAppended("Square"));
+		assertEquals(51, next.getSketches("Square").size());
+		assertEquals(taught, next.getSketches("Square").get(50));
+		assertEquals(snapshot.getSketches("Square"), next.getSketches("Square").subList(0, 50));
+		assertSame(templates.get(0), next.getTemplates("Square").get(0));
+		assertEquals(50, mapped.getSketches("Square").size());
+
+		//written, the words mapped then those taught
+		File copy = File.createTempFile("sketches", ".bank");
+		try {
+			MappedBank.write(next, copy);
+			assertSameBank(next, MappedBank.open(copy));
+		} finally {
+			copy.delete();
+		}
+
+		//taught before the bank was read: added after the words of the bank
+		builder = new BankSnapshot.Builder(BankSnapshot.empty());
+		builder.declare("Square");
+		builder.add("Square", taught);
+		builder.merge(mapped);
+		BankSnapshot merged = builder.build();
+		assertSame(bank.getWords(0), merged.getWords("Square"));
+		assertEquals(Collections.singletonList(taught), merged.getAppended("Square"));
+		assertEquals(next.getSketches("Square"), merged.getSketches("Square"));
+	}
+
+	public void testTruncated() throws IOException {
+		Random random = new Random(2);
+		BankSnapshot snapshot = randomSnapshot(random);
+		MappedBank.write(snapshot, file);
+		byte[] bytes = read(file);
+		for (int length = 0; length < bytes.length; length++)
+			assertRefused(bytes, length);
+		write(file, bytes, bytes.length);
+		assertSameBank(snapshot, MappedBank.open(file));
+	}
+
+	public void testCorruptedTable() throws IOException {
+		BankSnapshot.Builder builder = new BankSnapshot.Builder(BankSnapshot.empty());
+		builder.declare("Square");
+		builder.add("Square", new Dna("33335555777711111"));
+		builder.add("Square", new Dna("3333355557777111"));
+		builder.add("Square", new Dna("335577113355771"));
+		MappedBank.write(builder.build(), file);
+		byte[] bytes = read(file);
+		int table = table(bytes);
+
+		//a word before the table, or overlapping the previous one
+		ByteBuffer buffer = ByteBuffer.wrap(bytes.clone());
+		buffer.putInt(table, table);
+		assertRefused(buffer.array(), bytes.length);
+		buffer = ByteBuffer.wrap(bytes.clone());
+		buffer.putInt(table + 8, buffer.getInt(table));
+		assertRefused(buffer.array(), bytes.length);
+
+		//a negative length, in the middle of the table
+		buffer = ByteBuffer.wrap(bytes.clone());
+		buffer.putInt(table + 8 + 4, -1);
+		assertRefused(buffer.array(), bytes.length);
+
+		//a word ending past the file, not only the last one
+		buffer = ByteBuffer.wrap(bytes.clone());
+		buffer.putInt(table + 4, 1000);
+		assertRefused(buffer.array(), bytes.length);
+		buffer = ByteBuffer.wrap(bytes.clone());
+		buffer.putInt(table, Integer.MAX_VALUE);
+		assertRefused(buffer.array(), bytes.length);
+
+		//more words than the file can hold, the type and the total agreeing
+		buffer = ByteBuffer.wrap(bytes.clone());
+		buffer.putInt(table - 8, Integer.MAX_VALUE / 8);
+		buffer.putInt(table - 4, Integer.MAX_VALUE / 8);
+		assertRefused(buffer.array(), bytes.length);
+	}
+
+	public void testRandomCorruption() throws IOException {
+		Random random = new Random(3);
+		BankSnapshot snapshot = randomSnapshot(random);
+		MappedBank.write(snapshot, file);
+		byte[] bytes = read(file);
+		int table = table(bytes);
+		int end = table + 8 * ByteBuffer.wrap(bytes).getInt(table - 4);
+		for (int n = 0; n < 500; n++) {
+			//a bit changed in the header or in the table
+			byte[] corrupted = bytes.clone();
+			corrupted[random.nextInt(end)] ^= 1 << random.nextInt(8);
+			write(file, corrupted, corrupted.length);
+			MappedBank bank;
+			try {
+				bank = MappedBank.open(file);
+			} catch (IOException e) {
+				continue;
+			}
+			//opened: every word can be read
+			for (int t = 0; t < bank.getTypes().size(); t++) {
+				MappedBank.Words words = bank.getWords(t);
+				for (int i = 0; i < words.size(); i++)
+					words.getDna(i);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,176 @@
+/**
+ * Copyright (c) 2010 Ugo Sangiorgi and others.
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Contributors:
+ *  Ugo Sangiorgi <ugo.sangiorgi@gmail.com> - Initial contribution
+ *
+ *
+ * $Id$
+ */
+package org.eclipse.sketch.examples.shapes.tests;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import junit.textui.TestRunner;
+
+import org.eclipse.sketch.chain.RankedResult;
+
+/**
+ * Checks that a {@link RankedResult} keeps the closest types offered, up to its capacity,
+ * and ranks them as sorting all of them would.
+ */
+public class RankedResultTest extends TestCase {
+
+	public static void main(String[] args) {
+		TestRunner.run(RankedResultTest.class);
+	}
+
+	public RankedResultTest(String name) {
+		super(name);
+	}
+
+	private static List<Object> types(int n) {
+		ArrayList<Object> types = new ArrayList<Object>();
+		for (int i = 0; i < n; i++)
+			types.add("Type" + i);
+		return types;
+	}
+
+	/**
+	 * Checks the result against the distances offered, sorted
+	 */
+	private static void assertRanked(float[] distances, int capacity, RankedResult result) {
+		float[] sorted = distances.clone();
+		Arrays.sort(sorted);
+		assertEquals(Math.min(capacity, distances.length), result.size());
+		boolean[] seen = new boolean[distances.length];
+		for (int rank = 0; rank < result.size(); rank++) {
+			//ties can be kept in any order, but only with their own distance
+			assertEquals(sorted[rank], result.getDistance(rank), 0);
+			assertEquals(distances[result.getId(rank)], result.getDistance(rank), 0);
+			assertEquals("Type" + result.getId(rank), result.getType(rank));
+			assertFalse(seen[result.getId(rank)]);
+			seen[result.getId(rank)] = true;
+		}
+	}
+
+	public void testRandomDistances() {
+		Random random = new Random(1);
+		for (int n = 0; n < 2000; n++) {
+			float[] distances = new float[random.nextInt(30)];
+			//few distinct distances, so that there are ties
+			int distinct = 1 + random.nextInt(10);
+			for (int i = 0; i < distances.length; i++)
+				distances[i] = random.nextInt(distinct) * 12.5f;
+			int capacity = random.nextInt(distances.length + 3);
+			RankedResult result = new RankedResult(types(distances.length), capacity);
+			for (int i = 0; i < distances.length; i++)
+				result.add(i, distances[i]);
+			result.rank();
+			assertRanked(distances, capacity, result);
+		}
+	}
+
+	public void testCapacityEviction() {
+		RankedResult result = new RankedResult(types(6), 3);
+		result.add(0, 50);
+		result.add(1, 40);
+		result.add(2, 30);
+		//full: a farther or as far type does not enter, a closer one evicts the farthest
+		result.add(3, 60);
+		result.add(4, 50);
+		result.add(5, 10);
+		result.rank();
+		assertEquals(3, result.size());
+		assertEquals(5, result.getId(0));
+		assertEquals(2, result.getId(1));
+		assertEquals(1, result.getId(2));
+		assertEquals(40, result.getDistance(2), 0);
+	}
+
+	public void testTies() {
+		RankedResult result = new RankedResult(types(4), 2);
+		result.add(0, 20);
+		result.add(1, 20);
+		//as far as the farthest kept: the types kept first stay
+		result.add(2, 20);
+		result.add(3, 20);
+		result.rank();
+		assertEquals(2, result.size());
+		assertEquals(1, result.getId(0) + result.getId(1));
+		assertEquals(20, result.getDistance(0), 0);
+		assertEquals(20, result.getDistance(1), 0);
+	}
+
+	public void testOf() {
+		List<Object> types = types(5);
+		float[] averages = { 30, -1, 10, 20, -1 };
+		RankedResult result = RankedResult.of(types, averages, 5);
+		assertEquals(3, result.size());
+		assertEquals("Type2", result.getType(0));
+		assertEquals("Type3", result.getType(1));
+		assertEquals("Type0", result.getType(2));
+
+		HashMap<Object, Integer> scores = new HashMap<Object, Integer>();
+		scores.put("Type0", Integer.valueOf(30));
+		scores.put("Type1", Integer.valueOf(-1));
+		scores.put("Type2", Integer.valueOf(10));
+		scores.put("Type3", Integer.valueOf(20));
+		result = RankedResult.of(types, scores, 2);
+		assertEquals(2, result.size());
+		assertEquals("Type2", result.getType(0));
+		assertEquals("Type3", result.getType(1));
+	}
+
+	public void testRankedOnce() {
+		RankedResult result = new RankedResult(types(3), 3);
+		result.add(0, 10);
+		try {
+			result.getId(0);
+			fail("read before it was ranked");
+		} catch (IllegalStateException e) {
+			//expected
+		}
+		result.rank();
+		result.rank();
+		assertEquals(1, result.size());
+		try {
+			result.add(1, 5);
+			fail("added after it was ranked");
+		} catch (IllegalStateException e) {
+			//expected
+		}
+		try {
+			result.getId(1);
+			fail("read past its size");
+		} catch (IndexOutOfBoundsException e) {
+			//expected
+		}
+
+		//cleared, it is filled again
+		result.clear();
+		result.add(1, 5);
+		result.add(2, 1);
+		result.rank();
+		assertEquals(2, result.size());
+		assertEquals(2, result.getId(0));
+	}
+
+	public void testEmpty() {
+		RankedResult result = new RankedResult(types(2), 0);
+		result.add(0, 10);
+		result.rank();
+		assertEquals(0, result.size());
+		assertEquals("", result.toString());
+	}
+
+}
@@ -0,0 +1,92 @@
+/**
+ * Copyright (c) 2010 Ugo Sangiorgi and others.
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Contributors:
+ *  Ugo Sangiorgi <ugo.sangiorgi@gmail.com> - Initial contribution
+ *
+ *
+ * $Id$
+ */
+package org.eclipse.sketch.examples.shapes.tests;
+
+import junit.framework.TestCase;
+import junit.textui.TestRunner;
+
+import org.eclipse.sketch.Sketch.Dna;
+import org.eclipse.sketch.chain.LevenshteinHandler.Mode;
+import org.eclipse.sketch.chain.RecognitionCache;
+
+/**
+ * Checks that the {@link RecognitionCache} only gives a result for the version of the bank
+ * it was computed with.
+ */
+public class RecognitionCacheTest extends TestCase {
+
+	private static final Dna SQUARE = new Dna("33333333555555557777777711111111");
+	private static final Dna TRIANGLE = new Dna("2222222266666666444444448888");
+
+	public static void main(String[] args) {
+		TestRunner.run(RecognitionCacheTest.class);
+	}
+
+	public RecognitionCacheTest(String name) {
+		super(name);
+	}
+
+	public void testHit() {
+		RecognitionCache cache = new RecognitionCache(4);
+		float[] result = { 12.5f, -1, 40.25f };
+		cache.put(SQUARE, Mode.EXHAUSTIVE, result, 3);
+		result[0] = 0;
+
+		float[] found = cache.get(SQUARE, Mode.EXHAUSTIVE, 3);
+		assertNotNull(found);
+		assertEquals(3, found.length);
+		assertTrue(found[0] == 12.5f && found[1] == -1 && found[2] == 40.25f);
+		assertNull(cache.get(SQUARE, Mode.INDEXED, 3));
+		assertNull(cache.get(TRIANGLE, Mode.EXHAUSTIVE, 3));
+		assertEquals(1, (int)cache.getHits());
+		assertEquals(2, (int)cache.getMisses());
+	}
+
+	public void testNewerVersionInvalidates() {
+		RecognitionCache cache = new RecognitionCache(4);
+		cache.put(SQUARE, Mode.EXHAUSTIVE, new float[] { 1 }, 3);
+		assertNull(cache.get(SQUARE, Mode.EXHAUSTIVE, 4));
+		assertEquals(0, cache.size());
+		//the results of the older version are gone for good
+		assertNull(cache.get(SQUARE, Mode.EXHAUSTIVE, 3));
+	}
+
+	public void testOlderVersionIsIgnored() {
+		RecognitionCache cache = new RecognitionCache(4);
+		cache.put(SQUARE, Mode.EXHAUSTIVE, new float[] { 1 }, 5);
+		//a recognizer still reading an older snapshot neither finds nor stores anything
+		assertNull(cache.get(SQUARE, Mode.EXHAUSTIVE, 4));
+		cache.put(TRIANGLE, Mode.EXHAUSTIVE, new float[] { 2 }, 4);
+		assertNull(cache.get(TRIANGLE, Mode.EXHAUSTIVE, 5));
+		assertNotNull(cache.get(SQUARE, Mode.EXHAUSTIVE, 5));
+	}
+
+	public void testLeastRecentlyUsedIsEvicted() {
+		RecognitionCache cache = new RecognitionCache(2);
+		Dna circle = new Dna("3456781234567812");
+		cache.put(SQUARE, Mode.EXHAUSTIVE, new float[] { 1 }, 1);
+		cache.put(TRIANGLE, Mode.EXHAUSTIVE, new float[] { 2 }, 1);
+		assertNotNull(cache.get(SQUARE, Mode.EXHAUSTIVE, 1));
+		cache.put(circle, Mode.EXHAUSTIVE, new float[] { 3 }, 1);
+		assertEquals(2, cache.size());
+		assertNull(cache.get(TRIANGLE, Mode.EXHAUSTIVE, 1));
+		assertNotNull(cache.get(SQUARE, Mode.EXHAUSTIVE, 1));
+		assertNotNull(cache.get(circle, Mode.EXHAUSTIVE, 1));
+
+		cache.setCapacity(0);
+		cache.put(SQUARE, Mode.EXHAUSTIVE, new float[] { 1 }, 1);
+		assertEquals(0, cache.size());
+	}
+
+}
@@ -0,0 +1,119 @@
+/**
+ * Copyright (c) 2010 Ugo Sangiorgi and others.
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Contributors:
+ *  Ugo Sangiorgi <ugo.sangiorgi@gmail.com> - Initial contribution
+ *
+ *
+ * $Id$
+ */
+package org.eclipse.sketch.examples.shapes.tests;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+import junit.textui.TestRunner;
+
+import org.eclipse.sketch.DnaProfile;
+import org.eclipse.sketch.RunLengthDna;
+import org.eclipse.sketch.Sketch.Dna;
+import org.eclipse.sketch.chain.LevenshteinHandler;
+import org.eclipse.sketch.chain.RunLengthLevenshtein;
+import org.eclipse.sketch.exceptions.IllegalLengthException;
+
+/**
+ * Checks that the run-length distance gives the same distances as {@link LevenshteinHandler#run(String, String)},
+ * and that a run-length DNA is stretched and profiled as the DNA it stands for.
+ */
+public class RunLengthLevenshteinTest extends TestCase {
+
+	public static void main(String[] args) {
+		TestRunner.run(RunLengthLevenshteinTest.class);
+	}
+
+	public RunLengthLevenshteinTest(String name) {
+		super(name);
+	}
+
+	private static String randomDna(Random random, int length, int longestRun) {
+		return DnaTest.randomSymbols(random, length, DnaTest.ALPHABET, longestRun);
+	}
+
+	private static void assertSameDistance(String s, String t) {
+		RunLengthDna rs = new RunLengthDna(new Dna(s));
+		RunLengthDna rt = new RunLengthDna(new Dna(t));
+		int expected = LevenshteinHandler.run(s, t);
+		assertEquals(s + " / " + t, expected, RunLengthLevenshtein.distance(rs, rt));
+		assertEquals(t + " / " + s, expected, RunLengthLevenshtein.distance(rt, rs));
+	}
+
+	public void testEncoding() {
+		RunLengthDna runs = new RunLengthDna(new Dna("33333555"));
+		assertEquals(2, runs.runs());
+		assertEquals(8, runs.length());
+		assertEquals(Dna.symbolOf('5'), runs.runSymbol(1));
+		assertEquals(3, runs.runLength(1));
+		assertEquals("33333555", runs.toDna().toString());
+		assertEquals(new Dna("33333555").rotate90().toString(), runs.rotate90().toDna().toString());
+	}
+
+	public void testShortRuns() {
+		Random random = new Random(1);
+		for (int i = 0; i < 2000; i++)
+			assertSameDistance(randomDna(random, random.nextInt(40), 3), randomDna(random, random.nextInt(40), 3));
+	}
+
+	public void testLongRuns() {
+		Random random = new Random(2);
+		for (int i = 0; i < 500; i++)
+			assertSameDistance(randomDna(random, 1 + random.nextInt(300), 30), randomDna(random, 1 + random.nextInt(300), 30));
+	}
+
+	public void testStretch() throws IllegalLengthException {
+		Random random = new Random(3);
+		for (int i = 0; i < 1000; i++) {
+			Dna dna = new Dna(randomDna(random, 1 + random.nextInt(60), 1 + random.nextInt(10)));
+			int length = dna.length() + random.nextInt(3 * dna.length());
+			RunLengthDna stretched = new RunLengthDna(dna).stretch(length);
+			assertEquals(dna.stretch(length).toString(), stretched.toDna().toString());
+			assertEquals(new RunLengthDna(dna.stretch(length)).runs(), stretched.runs());
+		}
+		try {
+			new RunLengthDna(new Dna("33335555")).stretch(7);
+			fail("stretched to a shorter length");
+		} catch (IllegalLengthException e) {
+			//expected
+		}
+	}
+
+	public void testProfile() {
+		Random random = new Random(4);
+		for (int i = 0; i < 1000; i++) {
+			Dna dna = new Dna(randomDna(random, random.nextInt(60), 1 + random.nextInt(10)));
+			DnaProfile other = new DnaProfile(new Dna(randomDna(random, random.nextInt(60), 5)));
+			DnaProfile expected = new DnaProfile(dna);
+			DnaProfile runs = new DnaProfile(new RunLengthDna(dna));
+			assertEquals(expected.length(), runs.length());
+			for (int quarters = 0; quarters < 4; quarters++) {
+				assertEquals(expected.histogramBound(other, quarters), runs.histogramBound(other, quarters));
+				assertEquals(expected.gramBound(other, quarters), runs.gramBound(other, quarters));
+				assertEquals(other.histogramBound(expected, quarters), other.histogramBound(runs, quarters));
+				assertEquals(other.gramBound(expected, quarters), other.gramBound(runs, quarters));
+			}
+		}
+	}
+
+	public void testEmptyAndSingleRuns() {
+		assertSameDistance("", "");
+		assertSameDistance("", "33335555");
+		assertSameDistance("33335555", "");
+		assertSameDistance("3333", "33333333");
+		assertSameDistance("3333", "5555");
+		assertSameDistance("33333333555555557777777711111111", "4333332345555555557777777777811111111");
+	}
+
+}